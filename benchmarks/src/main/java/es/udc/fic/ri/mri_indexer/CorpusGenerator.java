@@ -0,0 +1,103 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Writes synthetic collections whose terms follow a Zipf distribution over a fixed vocabulary. The same seed
+ * always produces the same files, so results of different runs can be compared.
+ */
+final class CorpusGenerator {
+
+    static final int VOCABULARY_SIZE = 20000;
+    static final long SEED = 42;
+
+    private static final int WORDS_PER_LINE = 12;
+
+    private CorpusGenerator() { }
+
+    /* Returns the word of the given rank in the vocabulary (0 is the most frequent one) */
+    static String word(int rank) {
+        StringBuilder word = new StringBuilder();
+        int n = rank;
+        do {
+            word.append((char) ('a' + n % 26));
+            n /= 26;
+        } while (n > 0);
+        return word.append("x").toString();
+    }
+
+    /**
+     * Writes numFiles files of about fileSizeKb each into a new temporary folder, returning it.
+     */
+    static Path generate(int numFiles, int fileSizeKb, long seed) throws IOException {
+        Path folder = Files.createTempDirectory("mri-corpus");
+        String[] vocabulary = new String[VOCABULARY_SIZE];
+        double[] cumulative = new double[VOCABULARY_SIZE];
+        double sum = 0;
+        for (int i=0; i<VOCABULARY_SIZE; i++) {
+            vocabulary[i] = word(i);
+            sum += 1.0 / (i + 1);
+            cumulative[i] = sum;
+        }
+
+        Random random = new Random(seed);
+        long fileSize = fileSizeKb * 1024L;
+        for (int i=0; i<numFiles; i++) {
+            Path file = folder.resolve(String.format("doc%06d.txt", i));
+            try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                long written = 0;
+                int words = 0;
+                while (written < fileSize) {
+                    int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                    String word = vocabulary[rank < 0 ? Math.min(-rank - 1, VOCABULARY_SIZE - 1) : rank];
+                    writer.write(word);
+                    writer.write(++words % WORDS_PER_LINE == 0 ? '\n' : ' ');
+                    written += word.length() + 1;
+                }
+            }
+        }
+        return folder;
+    }
+
+    /**
+     * Indexes the collection into an in-memory directory with IndexFiles.
+     */
+    static Directory index(Path folder, int numThreads) throws IOException, InterruptedException {
+        Directory dir = new ByteBuffersDirectory();
+        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+            IndexFiles.indexAll(new String[] { folder.toString() }, writer, null, numThreads, 1024);
+        }
+        return dir;
+    }
+
+    static void delete(Path folder) throws IOException {
+        Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,62 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time taken by IndexFiles to index a synthetic collection into memory, for several collection sizes, file sizes
+ * and numbers of indexing threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexFilesBenchmark {
+
+    @Param({ "200", "2000" })
+    public int numFiles;
+
+    @Param({ "1", "16", "256" })
+    public int fileSizeKb;
+
+    @Param({ "1", "4" })
+    public int threads;
+
+    private Path corpus;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        corpus = CorpusGenerator.generate(numFiles, fileSizeKb, CorpusGenerator.SEED);
+    }
+
+    /* IndexFiles keeps the counts and the first error of a run in static fields, so each iteration starts anew */
+    @Setup(Level.Iteration)
+    public void resetRun() {
+        IndexFiles.reset();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        CorpusGenerator.delete(corpus);
+    }
+
+    @Benchmark
+    public int indexAll() throws IOException, InterruptedException {
+        try (Directory dir = new ByteBuffersDirectory();
+             IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+            IndexFiles.indexAll(new String[] { corpus.toString() }, writer, null, threads, 1024);
+            writer.commit();
+            return writer.getDocStats().numDocs;
+        }
+    }
+}
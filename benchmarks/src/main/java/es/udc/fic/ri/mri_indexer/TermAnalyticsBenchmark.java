@@ -0,0 +1,99 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.Directory;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time taken by the analytics of BestTerms, SimilarTerms and TermsClusters over an in-memory index of a synthetic
+ * collection. Each operation runs the same query from the given number of threads at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TermAnalyticsBenchmark {
+
+    private static final String FIELD = "contents";
+    private static final int TOP = 20;
+    private static final int K = 4;
+
+    @Param({ "500", "2000" })
+    public int numDocs;
+
+    @Param({ "1", "4" })
+    public int threads;
+
+    @Param({ "tfxidf" })
+    public String rep;
+
+    private Directory dir;
+    private DirectoryReader reader;
+    private ExecutorService executor;
+    private String term;
+    private int docId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Path corpus = CorpusGenerator.generate(numDocs, 2, CorpusGenerator.SEED);
+        try {
+            dir = CorpusGenerator.index(corpus, Runtime.getRuntime().availableProcessors());
+        } finally {
+            CorpusGenerator.delete(corpus);
+        }
+        reader = DirectoryReader.open(dir);
+        executor = Executors.newFixedThreadPool(threads);
+        term = CorpusGenerator.word(10);
+        docId = numDocs / 2;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        executor.shutdown();
+        reader.close();
+        dir.close();
+    }
+
+    @Benchmark
+    public List<Object> bestTerms() throws Exception {
+        return runConcurrently(() -> BestTerms.getBestTerms(reader, FIELD, docId, rep, TOP));
+    }
+
+    @Benchmark
+    public List<Object> similarTerms() throws Exception {
+        return runConcurrently(() -> SimilarTerms.getSimilarTerms(SimilarTerms.getTermVectors(reader, FIELD, rep), term, TOP));
+    }
+
+    @Benchmark
+    public List<Object> termsClusters() throws Exception {
+        return runConcurrently(() -> {
+            TermMatrix vectors = SimilarTerms.getTermVectors(reader, FIELD, rep);
+            List<TermSimilarity> ranking = SimilarTerms.getSimilarTerms(vectors, term, TOP);
+            return TermsClusters.getClusters(vectors, ranking, new SphericalKMeans(K,
+                    TermsClusters.DEFAULT_MAX_ITERATIONS, TermsClusters.DEFAULT_TOLERANCE, TermsClusters.DEFAULT_SEED));
+        });
+    }
+
+    private List<Object> runConcurrently(Callable<Object> query) throws Exception {
+        List<Future<Object>> futures = new ArrayList<>(threads);
+        for (int i=0; i<threads; i++) {
+            futures.add(executor.submit(query));
+        }
+        List<Object> results = new ArrayList<>(threads);
+        for (Future<Object> future : futures) {
+            results.add(future.get());
+        }
+        return results;
+    }
+}
@@ -0,0 +1,227 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Measures the recall of the projected and approx modes of SimilarTerms against the exact ranking of the full
+ * mode, over a sample of terms of the field, so the dimensions, tables, bits and probes can be chosen from data.
+ * For each mode it shows the recall@top (the fraction of the exact top terms it finds), the number of terms
+ * scored per query and the milliseconds per query. The approx mode is measured for each of the probes given.
+ * Only the exact top terms with a similarity above 0 count: when fewer terms than top share a document with the
+ * one queried, the rest of the exact ranking are ties at 0 in the order of the ordinals, which no approximation
+ * is expected to find.
+ */
+public class ApproxRecall implements IndexQuery {
+
+    private static final String USAGE = "java es.udc.fic.ri.mri_indexer.ApproxRecall"
+            + " [-index INDEX_PATH] [-field FIELD] [-rep [bin,tf,tfxidf]] [-top N] [-sample N] [-seed SEED]"
+            + " [-dims D] [-projectionSeed SEED] [-tables L] [-bits B] [-probes P1,P2,...]\n\n";
+
+    private String indexPath = null;
+    private String fieldName = null;
+    private String rep = null;
+    private int top = 10;
+    private int sample = 100;
+    private long seed = 1;
+    private int dims = SimilarTerms.DEFAULT_DIMS;
+    private long projectionSeed = SimilarTerms.DEFAULT_PROJECTION_SEED;
+    private int tables = SimilarTerms.DEFAULT_TABLES;
+    private int bits = SimilarTerms.DEFAULT_BITS;
+    private int[] probes = { 0, 1, 2, 4, 8 };
+
+    private ApproxRecall() { }
+
+    /**
+     * Parses the arguments of the tool, throwing an IllegalArgumentException with the message to show if they
+     * are wrong. The index is only required when needsIndex is set.
+     */
+    static ApproxRecall parse(String[] args, boolean needsIndex) {
+        ApproxRecall query = new ApproxRecall();
+        for (int i=0; i<args.length; i++) {
+            if ("-index".equals(args[i])) {
+                query.indexPath = args[++i];
+            } else if ("-field".equals(args[i])) {
+                query.fieldName = args[++i];
+            } else if ("-rep".equals(args[i])) {
+                query.rep = args[++i];
+            } else if ("-top".equals(args[i])) {
+                query.top = Integer.parseInt(args[++i]);
+            } else if ("-sample".equals(args[i])) {
+                query.sample = Integer.parseInt(args[++i]);
+            } else if ("-seed".equals(args[i])) {
+                query.seed = Long.parseLong(args[++i]);
+            } else if ("-dims".equals(args[i])) {
+                query.dims = Integer.parseInt(args[++i]);
+            } else if ("-projectionSeed".equals(args[i])) {
+                query.projectionSeed = Long.parseLong(args[++i]);
+            } else if ("-tables".equals(args[i])) {
+                query.tables = Integer.parseInt(args[++i]);
+            } else if ("-bits".equals(args[i])) {
+                query.bits = Integer.parseInt(args[++i]);
+            } else if ("-probes".equals(args[i])) {
+                String[] values = args[++i].split(",");
+                query.probes = new int[values.length];
+                for (int j=0; j<values.length; j++) {
+                    query.probes[j] = Integer.parseInt(values[j]);
+                }
+            }
+        }
+
+        if ((needsIndex && query.indexPath == null) || query.fieldName == null || query.rep == null) {
+            throw new IllegalArgumentException(USAGE);
+        } else if (!(query.rep.equals("bin") || query.rep.equals("tf") || query.rep.equals("tfxidf"))) {
+            throw new IllegalArgumentException("Unknown rep: " + query.rep);
+        } else if (query.top < 1) {
+            throw new IllegalArgumentException("top must be greater than 0: " + query.top);
+        } else if (query.sample < 1) {
+            throw new IllegalArgumentException("sample must be greater than 0: " + query.sample);
+        } else if (query.dims < 1) {
+            throw new IllegalArgumentException("dims must be greater than 0: " + query.dims);
+        } else if (query.tables < 1) {
+            throw new IllegalArgumentException("tables must be greater than 0: " + query.tables);
+        } else if (query.bits < 1 || query.bits > 30) {
+            throw new IllegalArgumentException("bits must be between 1 and 30: " + query.bits);
+        }
+        for (int p : query.probes) {
+            if (p < 0) {
+                throw new IllegalArgumentException("probes must be positive: " + p);
+            }
+        }
+        return query;
+    }
+
+    public static void main(String[] args) {
+        ApproxRecall query = null;
+        try {
+            query = parse(args, true);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(-1);
+        }
+
+        Directory dir = null;
+        DirectoryReader indexReader = null;
+
+        Date start = new Date();
+        try {
+            dir = FSDirectory.open(Paths.get(query.indexPath));
+            indexReader = DirectoryReader.open(dir);
+            query.run(indexReader, System.out, System.err);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (indexReader != null) {
+                    indexReader.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            try {
+                if (dir != null) {
+                    dir.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        Date end = new Date();
+        System.out.println("\n" + (end.getTime() - start.getTime()) + " total milliseconds");
+    }
+
+    @Override
+    public void run(DirectoryReader indexReader, PrintStream out, PrintStream err) throws IOException {
+        TermNorms norms = TermNorms.open(indexReader, fieldName, rep);
+        if (norms.size() < 2) {
+            err.println("Not enough terms in field '" + fieldName + "'");
+            return;
+        }
+        TermEmbeddings embeddings = TermEmbeddings.open(indexReader, norms, fieldName, rep, dims, projectionSeed);
+        TermLsh lsh = TermLsh.open(indexReader, norms, embeddings, fieldName, rep, tables, bits, projectionSeed);
+        TermMatrix vectors = SimilarTerms.getTermVectors(indexReader, fieldName, rep);
+
+        /* Distinct terms drawn with the seed, by a partial shuffle of the ordinals */
+        int numTerms = norms.size();
+        int[] ords = new int[numTerms];
+        for (int i=0; i<numTerms; i++) {
+            ords[i] = i;
+        }
+        Random random = new Random(seed);
+        String[] terms = new String[Math.min(sample, numTerms)];
+        for (int i=0; i<terms.length; i++) {
+            int j = i + random.nextInt(numTerms - i);
+            int ord = ords[j];
+            ords[j] = ords[i];
+            ords[i] = ord;
+            terms[i] = norms.getTerm(ord);
+        }
+
+        long exactNanos = 0;
+        List<Set<String>> exact = new ArrayList<>(terms.length);
+        for (String term : terms) {
+            long start = System.nanoTime();
+            List<TermSimilarity> ranking = SimilarTerms.getSimilarTerms(vectors, term, top);
+            exactNanos += System.nanoTime() - start;
+            Set<String> names = new HashSet<>();
+            for (TermSimilarity similar : ranking) {
+                if (similar.getSimilarity() > 0) {
+                    names.add(similar.getName());
+                }
+            }
+            exact.add(names);
+        }
+
+        out.printf("Recall@%d over %d terms of %s (%s, %d dims, %d tables of %d bits)%n%n", top, terms.length,
+                fieldName, rep, dims, tables, bits);
+        out.printf("%-20s%-12s%-12s%-12s%n", "MODE", "RECALL", "SCORED", "MS/QUERY");
+        out.printf("%-20s%-12f%-12d%-12.3f%n", "full", 1.0, numTerms - 1, exactNanos / 1e6 / terms.length);
+        printMode(out, "projected", norms, embeddings, null, 0, terms, exact);
+        for (int p : probes) {
+            printMode(out, "approx probes=" + p, norms, embeddings, lsh, p, terms, exact);
+        }
+    }
+
+    private void printMode(PrintStream out, String name, TermNorms norms, TermEmbeddings embeddings, TermLsh lsh,
+                           int probes, String[] terms, List<Set<String>> exact) {
+        long nanos = 0;
+        long scored = 0;
+        double recall = 0;
+        for (int i=0; i<terms.length; i++) {
+            long start = System.nanoTime();
+            List<TermSimilarity> ranking = SimilarTerms.getSimilarTerms(norms, embeddings, lsh, probes, terms[i], top);
+            nanos += System.nanoTime() - start;
+
+            /* Counted apart, so the time is the one of a query */
+            scored += lsh == null ? norms.size() - 1
+                    : lsh.getCandidates(embeddings.getVector(norms.find(new BytesRef(terms[i]))), probes)
+                    .cardinality() - 1;
+            Set<String> found = getNames(ranking);
+            found.retainAll(exact.get(i));
+            recall += exact.get(i).isEmpty() ? 1 : (double) found.size() / exact.get(i).size();
+        }
+        out.printf("%-20s%-12f%-12d%-12.3f%n", name, recall / terms.length, scored / terms.length,
+                nanos / 1e6 / terms.length);
+    }
+
+    private static Set<String> getNames(List<TermSimilarity> ranking) {
+        Set<String> names = new HashSet<>();
+        for (TermSimilarity term : ranking) {
+            names.add(term.getName());
+        }
+        return names;
+    }
+}
@@ -3,13 +3,16 @@ package es.udc.fic.ri.mri_indexer;
 import org.apache.lucene.index.*;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefArray;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.Counter;
 
 import java.io.*;
 import java.nio.file.Paths;
-import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.LinkedList;
 import java.util.List;
 
 class TermStats {
@@ -31,131 +34,71 @@ class TermStats {
     public double getTfxIdf() { return tfxidf; }
 }
 
-public class BestTerms {
+public class BestTerms implements IndexQuery {
 
-    private BestTerms() { }
-
-    public static void main(String[] args) {
-        String usage = "java java es.udc.fic.ri.mri_indexer.BestTerms" +
-        "[-index INDEX_PATH] [-docID ID] [-field NAME] [-top N] [-order [tf,df,tfxidf]] [-outputfile FILE]";
+    private static final String USAGE = "java java es.udc.fic.ri.mri_indexer.BestTerms" +
+            "[-index INDEX_PATH] [-docID ID] [-field NAME] [-top N] [-order [tf,df,tfxidf]] [-outputfile FILE]";
 
-        String indexPath = null;
-        int docId = -1;
-        String fieldName = null;
-        int top = -1;
-        String order = null;
-        String output = null;
+    private String indexPath = null;
+    private int docId = -1;
+    private String fieldName = null;
+    private int top = -1;
+    private String order = null;
+    private String output = null;
 
-        Directory dir = null;
-        DirectoryReader indexReader = null;
-        PrintStream writer = null;
+    private BestTerms() { }
 
+    /**
+     * Parses the arguments of the tool, throwing an IllegalArgumentException with the message to show if they
+     * are wrong. The index is only required when needsIndex is set.
+     */
+    static BestTerms parse(String[] args, boolean needsIndex) {
+        BestTerms query = new BestTerms();
         for(int i=0; i<args.length; i++) {
             if ("-index".equals(args[i])) {
-                indexPath = args[++i];
+                query.indexPath = args[++i];
             } else if ("-docID".equals(args[i])) {
-                docId = Integer.parseInt(args[++i]);
+                query.docId = Integer.parseInt(args[++i]);
             } else if ("-field".equals(args[i])) {
-                fieldName = args[++i];
+                query.fieldName = args[++i];
             } else if ("-top".equals(args[i])) {
-                top = Integer.parseInt(args[++i]);
+                query.top = Integer.parseInt(args[++i]);
             } else if ("-order".equals(args[i])) {
-                order = args[++i];
+                query.order = args[++i];
             } else if ("-outputfile".equals(args[i])) {
-                output = args[++i];
+                query.output = args[++i];
             }
         }
 
-        if (indexPath == null || fieldName == null || order == null) {
-            System.err.println(usage);
-            System.exit(-1);
-        } else if (docId < 0) {
-            System.err.println("docId must be greater than 0: " + docId);
-            System.exit(-1);
-        } else if (top < 1) {
-            System.err.println("top must be greater than 0: " + docId);
-            System.exit(-1);
-        } else if (!(order.equals("tf") || order.equals("df") || order.equals("tfxidf"))) {
-            System.err.println("Order must be 'tf', 'df' or 'tfxidf': " + order);
+        if ((needsIndex && query.indexPath == null) || query.fieldName == null || query.order == null) {
+            throw new IllegalArgumentException(USAGE);
+        } else if (query.docId < 0) {
+            throw new IllegalArgumentException("docId must be greater than 0: " + query.docId);
+        } else if (query.top < 1) {
+            throw new IllegalArgumentException("top must be greater than 0: " + query.docId);
+        } else if (!(query.order.equals("tf") || query.order.equals("df") || query.order.equals("tfxidf"))) {
+            throw new IllegalArgumentException("Order must be 'tf', 'df' or 'tfxidf': " + query.order);
+        }
+        return query;
+    }
+
+    public static void main(String[] args) {
+        BestTerms query = null;
+        try {
+            query = parse(args, true);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
             System.exit(-1);
         }
 
+        Directory dir = null;
+        DirectoryReader indexReader = null;
+
         Date start = new Date();
-        label : try {
-            dir = FSDirectory.open(Paths.get(indexPath));
+        try {
+            dir = FSDirectory.open(Paths.get(query.indexPath));
             indexReader = DirectoryReader.open(dir);
-            int numDocs = indexReader.numDocs();
-
-            /* Get the terms of a specific field */
-            List<TermStats> termStats = new LinkedList<>();
-            /*
-            // If we had term vectors we could use this code
-            final Terms terms = indexReader.getTermVector(docId, fieldName);
-            if (terms == null) {
-                System.err.println("No terms for field '" + fieldName + "' in document " + docId);
-                break label;
-            }
-
-            List<TermStats> termStats = new LinkedList<>();
-            final TermsEnum termsEnum = terms.iterator();
-            while (termsEnum.next() != null) {
-                BytesRef term = termsEnum.term();
-                termStats.add(new TermStats(term.utf8ToString(), termsEnum.totalTermFreq(),
-                        indexReader.docFreq(new Term(fieldName, term)), numDocs));
-            }
-            */
-
-            final Terms terms = MultiTerms.getTerms(indexReader, fieldName);
-            if (terms != null) {
-                final TermsEnum termsEnum = terms.iterator();
-
-                while (termsEnum.next() != null) {
-                    BytesRef term = termsEnum.term();
-                    PostingsEnum posting = MultiTerms.getTermPostingsEnum(indexReader, fieldName, term);
-
-                    if (posting != null) {
-                        int id;
-                        while ((id = posting.nextDoc()) != PostingsEnum.NO_MORE_DOCS) {
-                            if (id == docId) {
-                                termStats.add(new TermStats(termsEnum.term().utf8ToString(),
-                                        posting.freq(), termsEnum.docFreq(), numDocs));
-                            }
-                        }
-                    }
-                }
-            }
-
-            if (order.equals("tf")) {
-                termStats.sort(Comparator.comparingDouble(TermStats::getTf).reversed());
-            } else if (order.equals("df")) {
-                termStats.sort(Comparator.comparingDouble(TermStats::getDf).reversed());
-            } else {
-                termStats.sort(Comparator.comparingDouble(TermStats::getTfxIdf).reversed());
-            }
-
-            /* Redirect output to a file */
-            PrintStream stdout = System.out;
-            if (output != null) {
-                File file = new File(output);
-                if (!file.exists()) {
-                    file.createNewFile();
-                }
-                writer = new PrintStream(file);
-                System.setOut(writer);
-            }
-
-            System.out.printf("%-20s%-10s%-10s%-10s%n", "TERM", "TF", "DF", "TFxIDF");
-            int n = Math.min(top, termStats.size());
-            for (int i = 0; i < n; i++) {
-                TermStats term = termStats.get(i);
-                System.out.printf("%-20s%-10d%-10d%-10f%n", term.getName(), term.getTf(), term.getDf(), term.getTfxIdf());
-            }
-
-            /* Reset output */
-            if (output != null) {
-                System.setOut(stdout);
-            }
-
+            query.run(indexReader, System.out, System.err);
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
@@ -173,12 +116,120 @@ public class BestTerms {
             } catch (IOException e) {
                 e.printStackTrace();
             }
-            if (writer != null) {
-                writer.close();
-            }
         }
 
         Date end = new Date();
         System.out.println("\n" + (end.getTime() - start.getTime()) + " total milliseconds");
     }
+
+    @Override
+    public void run(DirectoryReader indexReader, PrintStream out, PrintStream err) throws IOException {
+        List<TermStats> termStats = getBestTerms(indexReader, fieldName, docId, order, top);
+
+        /* Write the ranking to the output file if there is one */
+        PrintStream writer = out;
+        if (output != null) {
+            File file = new File(output);
+            if (!file.exists()) {
+                file.createNewFile();
+            }
+            writer = new PrintStream(file);
+        }
+
+        try {
+            writer.printf("%-20s%-10s%-10s%-10s%n", "TERM", "TF", "DF", "TFxIDF");
+            for (TermStats term : termStats) {
+                writer.printf("%-20s%-10d%-10d%-10f%n", term.getName(), term.getTf(), term.getDf(), term.getTfxIdf());
+            }
+        } finally {
+            if (output != null) {
+                writer.close();
+            }
+        }
+    }
+
+    @Override
+    public String getCacheKey() {
+        return output == null ? String.join(" ", "BestTerms", fieldName, Integer.toString(docId), order,
+                Integer.toString(top)) : null;
+    }
+
+    /**
+     * Returns the top terms of the field in the given document, sorted by the order given (tf, df or tfxidf).
+     * The terms are read from the term vector of the document if the field has them, otherwise the postings of
+     * each term in the segment of the document are advanced straight to it.
+     */
+    static List<TermStats> getBestTerms(IndexReader indexReader, String fieldName, int docId, String order, int top)
+            throws IOException {
+        int numDocs = indexReader.numDocs();
+        Candidates candidates = new Candidates(numDocs, order, top);
+        if (docId < indexReader.maxDoc()) {
+            final Terms vector = indexReader.getTermVector(docId, fieldName);
+            if (vector != null) {
+                final TermsEnum termsEnum = vector.iterator();
+                BytesRef term;
+                while ((term = termsEnum.next()) != null) {
+                    candidates.add(term, termsEnum.totalTermFreq());
+                }
+            } else {
+                /* Only the segment holding the document can have postings for it */
+                List<LeafReaderContext> leaves = indexReader.leaves();
+                LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+                int localDoc = docId - leaf.docBase;
+
+                final Terms terms = leaf.reader().terms(fieldName);
+                if (terms != null) {
+                    final TermsEnum termsEnum = terms.iterator();
+                    PostingsEnum posting = null;
+                    BytesRef term;
+                    while ((term = termsEnum.next()) != null) {
+                        posting = termsEnum.postings(posting, PostingsEnum.FREQS);
+                        if (posting.advance(localDoc) == localDoc) {
+                            candidates.add(term, posting.freq());
+                        }
+                    }
+                }
+            }
+        }
+        return candidates.getTop(indexReader, fieldName);
+    }
+
+    /* Terms of the document kept in primitive arrays, only the ones in the top are turned into TermStats */
+    private static class Candidates {
+        private final int numDocs;
+        private final String order;
+        private final TopTerms top;
+        private final BytesRefArray terms = new BytesRefArray(Counter.newCounter());
+        private long[] tfs = new long[16];
+
+        Candidates(int numDocs, String order, int top) {
+            this.numDocs = numDocs;
+            this.order = order;
+            this.top = new TopTerms(top);
+        }
+
+        void add(BytesRef term, long tf) {
+            int ord = terms.append(term);
+            tfs = ArrayUtil.grow(tfs, ord + 1);
+            tfs[ord] = tf;
+        }
+
+        /* The df of the terms are looked up at once, every segment in parallel */
+        List<TermStats> getTop(IndexReader indexReader, String fieldName) throws IOException {
+            int[] dfs = SegmentTerms.getDocFreqs(indexReader, fieldName, terms);
+            for (int ord=0; ord<terms.size(); ord++) {
+                long tf = tfs[ord];
+                int df = dfs[ord];
+                top.insert(ord, order.equals("tf") ? tf : order.equals("df") ? df : tf * Math.log10((double) numDocs / df));
+            }
+
+            int[] ords = top.sort();
+            List<TermStats> termStats = new ArrayList<>(ords.length);
+            BytesRefBuilder spare = new BytesRefBuilder();
+            for (int ord : ords) {
+                termStats.add(new TermStats(terms.get(spare, ord).utf8ToString(), tfs[ord], dfs[ord], numDocs));
+            }
+            return termStats;
+        }
+    }
 }
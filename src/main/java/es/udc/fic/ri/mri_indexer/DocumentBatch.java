@@ -0,0 +1,158 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Documents built by a worker waiting to be written, which are sent to the writer in a single call once
+ * maxDocs documents or maxBytes bytes are pending. A batch with updates is written a document at a time with
+ * updateDocument instead, as IndexWriter.updateDocuments replaces every document of the batch by the same term,
+ * and deleting the old documents beforehand would lose them if their new versions failed. A document which fails
+ * on its own is reported and left out, while an error which closes the writer is thrown. When writing to a partial
+ * index, it is told about the documents written so it knows when it is finished. The documents are taken from
+ * a pool of templates which are reused once the batch is written.
+ */
+class DocumentBatch {
+
+    private final IndexWriter writer;
+    private final int maxDocs;
+    private final long maxBytes;
+    private final IndexProgress progress;
+    private final PartialIndex partial;
+
+    private final List<Document> docs = new ArrayList<>();
+    private final List<Term> terms = new ArrayList<>();
+    private int numUpdates = 0;
+    private final List<DocumentTemplate> templates = new ArrayList<>();
+    private int usedTemplates = 0;
+    private long bytes = 0;
+    private long accepted = 0;
+
+    DocumentBatch(IndexWriter writer, int maxDocs, long maxBytes, IndexProgress progress, PartialIndex partial) {
+        this.writer = writer;
+        this.maxDocs = maxDocs;
+        this.maxBytes = maxBytes;
+        this.progress = progress;
+        this.partial = partial;
+    }
+
+    IndexWriter getWriter() {
+        return writer;
+    }
+
+    PartialIndex getPartial() {
+        return partial;
+    }
+
+    boolean isEmpty() {
+        return docs.isEmpty();
+    }
+
+    /* Returns a template free to be filled, as the documents of the batch can't be reused until written */
+    DocumentTemplate nextTemplate() {
+        if (usedTemplates == templates.size()) {
+            templates.add(new DocumentTemplate());
+        }
+        return templates.get(usedTemplates++);
+    }
+
+    /* Number of documents given to the batch so far */
+    long getAccepted() {
+        return accepted;
+    }
+
+    /**
+     * Adds a document to the batch, replacing the ones with the given term (if not null), and writes the batch
+     * when it is full.
+     */
+    void add(Document doc, Term term, long size) throws IOException {
+        accepted++;
+        docs.add(doc);
+        terms.add(term);
+        if (term != null) {
+            numUpdates++;
+        }
+        bytes += size;
+        if (docs.size() >= maxDocs || bytes >= maxBytes) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes a document right away, along with the pending ones. Needed for documents that read their contents
+     * from an open file.
+     */
+    void addNow(Document doc, Term term) throws IOException {
+        accepted++;
+        try {
+            flush();
+            write(doc, term);
+        } finally {
+            if (partial != null) {
+                partial.done(1);
+            }
+        }
+    }
+
+    void flush() throws IOException {
+        if (docs.isEmpty()) {
+            return;
+        }
+
+        try {
+            if (numUpdates == 0) {
+                try {
+                    writer.addDocuments(docs);
+                    progress.addAdded(docs.size());
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    // a failing document discards the whole block, so the rest are written one by one
+                    if (isClosed()) {
+                        throw e;
+                    }
+                }
+            }
+            for (int i=0; i<docs.size(); i++) {
+                write(docs.get(i), terms.get(i));
+            }
+        } finally {
+            if (partial != null) {
+                partial.done(docs.size());
+            }
+            docs.clear();
+            terms.clear();
+            numUpdates = 0;
+            bytes = 0;
+            usedTemplates = 0;
+        }
+    }
+
+    /* Writes a single document, replacing the old one only if the new one is written */
+    private void write(Document doc, Term term) throws IOException {
+        try {
+            if (term == null) {
+                writer.addDocument(doc);
+                progress.addAdded(1);
+            } else {
+                writer.updateDocument(term, doc);
+                progress.addUpdated(1);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (isClosed()) {
+                throw e;
+            }
+            progress.addFailed(1);
+            System.err.println("Could not index '" + doc.get("path") + "': " + e);
+        }
+    }
+
+    /* Whether the writer was closed by an error, after which nothing else can be written */
+    private boolean isClosed() {
+        return writer.getTragicException() != null || !writer.isOpen();
+    }
+}
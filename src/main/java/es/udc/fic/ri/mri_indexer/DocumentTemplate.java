@@ -0,0 +1,221 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.document.*;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Document whose fields are reused from one file to the next, as Lucene allows changing the value of a field
+ * once the document holding it has been written. A template must not be filled again until its document is
+ * written, so each batch keeps as many of them as documents it holds.
+ */
+class DocumentTemplate {
+
+    private static String hostname;
+
+    /* Contents indexed with term vectors, so the terms of a document can be read without the postings */
+    private static final FieldType STORED_VECTORS_TYPE = vectorsType(TextField.TYPE_STORED);
+    private static final FieldType VECTORS_TYPE = vectorsType(TextField.TYPE_NOT_STORED);
+
+    /* Whether the contents are indexed with term vectors, set once before indexing */
+    static boolean termVectors = false;
+
+    private final Document doc = new Document();
+
+    private final Field path = new StringField("path", "", Field.Store.YES);
+    private final LongPoint modified = new LongPoint("modified", 0L);
+    private final Field hostnameField = new StringField("hostname", getHostname(), Field.Store.YES);
+    private final Field thread = new StringField("thread", "", Field.Store.YES);
+    private final FloatPoint sizeKb = new FloatPoint("sizeKb", 0f);
+    private final Field size = new NumericDocValuesField(IncrementalIndex.SIZE_FIELD, 0L);
+    private final Field modifiedValue = new NumericDocValuesField(IncrementalIndex.MODIFIED_FIELD, 0L);
+    private final Field creationTime = new StringField("creationTime", "", Field.Store.YES);
+    private final Field lastAccessTime = new StringField("lastAccessTime", "", Field.Store.YES);
+    private final Field lastModifiedTime = new StringField("lastModifiedTime", "", Field.Store.YES);
+    private final Field creationTimeLucene = new StringField("creationTimeLucene", "", Field.Store.YES);
+    private final Field lastAccessTimeLucene = new StringField("lastAccessTimeLucene", "", Field.Store.YES);
+    private final Field lastModifiedTimeLucene = new StringField("lastModifiedTimeLucene", "", Field.Store.YES);
+
+    /* The contents are created on first use, as their type depends on how they are read */
+    private Field storedContents;
+    private Field textContents;
+    private Field readerContents;
+    private Field tokenContents;
+    private Field storedTextContents;
+    private StoredCopyField storedCopyContents;
+
+    /**
+     * Stored field whose value is the copy kept by a StoredContentsReader, taken when the writer stores the field.
+     * The writer stores each field after inverting it and the fields in the order of the document, so when it
+     * follows the contents read through the same reader the copy is complete by then. The writer asks for the
+     * string value first and outside of the code where an error would close it, so that is where the copy is
+     * finished and a failed read only loses the document.
+     */
+    private static class StoredCopyField extends Field {
+
+        private StoredContentsReader copy;
+
+        StoredCopyField() {
+            super("contents", StoredField.TYPE);
+        }
+
+        @Override
+        public String stringValue() {
+            try {
+                return copy.getText();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public BytesRef binaryValue() {
+            try {
+                byte[] bytes = copy.getBytes();
+                return bytes == null ? null : new BytesRef(bytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static FieldType vectorsType(FieldType base) {
+        FieldType type = new FieldType(base);
+        type.setStoreTermVectors(true);
+        type.freeze();
+        return type;
+    }
+
+    /* The hostname can take a DNS lookup, so it is resolved once per run */
+    private static synchronized String getHostname() {
+        if (hostname == null) {
+            try {
+                hostname = InetAddress.getLocalHost().getHostName();
+            } catch (UnknownHostException e) {
+                hostname = "unknown";
+            }
+        }
+        return hostname;
+    }
+
+    /**
+     * Fills the fields describing the file, leaving the document without contents.
+     */
+    Document fill(Path file, BasicFileAttributes attrs) {
+        doc.clear();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+
+        // Add the path of the file as a field named "path".  Use a
+        // field that is indexed (i.e. searchable), but don't tokenize
+        // the field into separate words and don't index term frequency
+        // or positional information:
+        path.setStringValue(file.toString());
+        doc.add(path);
+
+        // Add the last modified date of the file a field named "modified".
+        // Use a LongPoint that is indexed (i.e. efficiently filterable with
+        // PointRangeQuery).  This indexes to milli-second resolution, which
+        // is often too fine.  You could instead create a number based on
+        // year/month/day/hour/minutes/seconds, down the resolution you require.
+        // For example the long value 2011021714 would mean
+        // February 17, 2011, 2-3 PM.
+        modified.setLongValue(lastModified);
+        doc.add(modified);
+
+        doc.add(hostnameField);
+
+        thread.setStringValue(Thread.currentThread().getName());
+        doc.add(thread);
+
+        sizeKb.setFloatValue((float)attrs.size()/1024);
+        doc.add(sizeKb);
+
+        // Fingerprint of the file checked by incremental runs
+        size.setLongValue(attrs.size());
+        doc.add(size);
+        modifiedValue.setLongValue(lastModified);
+        doc.add(modifiedValue);
+
+        creationTime.setStringValue(attrs.creationTime().toString());
+        doc.add(creationTime);
+        lastAccessTime.setStringValue(attrs.lastAccessTime().toString());
+        doc.add(lastAccessTime);
+        lastModifiedTime.setStringValue(attrs.lastModifiedTime().toString());
+        doc.add(lastModifiedTime);
+
+        creationTimeLucene.setStringValue(DateTools.timeToString(attrs.creationTime().toMillis(), DateTools.Resolution.MILLISECOND));
+        doc.add(creationTimeLucene);
+        lastAccessTimeLucene.setStringValue(DateTools.timeToString(attrs.lastAccessTime().toMillis(), DateTools.Resolution.MILLISECOND));
+        doc.add(lastAccessTimeLucene);
+        lastModifiedTimeLucene.setStringValue(DateTools.timeToString(lastModified, DateTools.Resolution.MILLISECOND));
+        doc.add(lastModifiedTimeLucene);
+
+        return doc;
+    }
+
+    /* Indexes the contents from a String, storing them as well if store is set */
+    void setContents(String content, boolean store) {
+        Field field;
+        if (store) {
+            if (storedContents == null) {
+                storedContents = termVectors ? new Field("contents", content, STORED_VECTORS_TYPE)
+                        : new TextField("contents", content, Field.Store.YES);
+            }
+            field = storedContents;
+        } else {
+            if (textContents == null) {
+                textContents = termVectors ? new Field("contents", content, VECTORS_TYPE)
+                        : new TextField("contents", content, Field.Store.NO);
+            }
+            field = textContents;
+        }
+        field.setStringValue(content);
+        doc.add(field);
+    }
+
+    /* Indexes the contents read from the given reader, which must stay open until the document is written */
+    void setContents(Reader reader) {
+        if (readerContents == null) {
+            readerContents = termVectors ? new Field("contents", reader, VECTORS_TYPE)
+                    : new TextField("contents", reader);
+        }
+        readerContents.setReaderValue(reader);
+        doc.add(readerContents);
+    }
+
+    /* Indexes the contents from tokens already analyzed */
+    void setContents(TokenStream tokens) {
+        if (tokenContents == null) {
+            tokenContents = termVectors ? new Field("contents", tokens, VECTORS_TYPE)
+                    : new TextField("contents", tokens);
+        }
+        tokenContents.setTokenStream(tokens);
+        doc.add(tokenContents);
+    }
+
+    /* Stores the contents without indexing them */
+    void setStoredContents(String content) {
+        if (storedTextContents == null) {
+            storedTextContents = new StoredField("contents", content);
+        }
+        storedTextContents.setStringValue(content);
+        doc.add(storedTextContents);
+    }
+
+    /* Stores the copy of the contents kept by the reader, which must be added after the contents read through it */
+    void setStoredContents(StoredContentsReader copy) {
+        if (storedCopyContents == null) {
+            storedCopyContents = new StoredCopyField();
+        }
+        storedCopyContents.copy = copy;
+        doc.add(storedCopyContents);
+    }
+}
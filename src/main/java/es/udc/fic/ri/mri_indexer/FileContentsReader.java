@@ -0,0 +1,243 @@
+package es.udc.fic.ri.mri_indexer;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Reader decoding a file straight from NIO buffers. Files bigger than the threshold are memory mapped (in windows
+ * of at most 1GB), while smaller ones are read at once into a pooled direct buffer. Files are read up to their end
+ * when they are read, not up to the size the walk found, so a file which grew in between is not cut short. The
+ * decoder and the buffers are reused from one file to the next, so reading a file doesn't go through the stream
+ * layers of InputStreamReader nor allocates more than the Reader itself. They are pooled among all the threads rather than
+ * by thread, so there are as many as readers open at once, even when each file is read by a new virtual thread.
+ * Buffers are cast to Buffer when calling the methods which return a ByteBuffer or CharBuffer since Java 9, so the
+ * classes still run on Java 8.
+ *
+ * The windows mapped are unmapped as soon as they are done with, as MMapDirectory does, since the GC releases them
+ * only when it collects the buffers, and indexing many big files could run out of mappings (vm.max_map_count) or
+ * address space first. No one else sees the mapped buffers, so they are never used once unmapped.
+ */
+class FileContentsReader extends Reader {
+
+    private static final long MAX_WINDOW = 1L << 30;
+    private static final int CHAR_BUFFER_SIZE = 8192;
+
+    /* Buffers and decoder held by one reader at a time, given back to the pool when it is closed */
+    private static class PooledBuffers {
+        ByteBuffer bytes;
+        CharBuffer chars = CharBuffer.allocate(CHAR_BUFFER_SIZE);
+        CharsetDecoder decoder;
+    }
+
+    private static final Queue<PooledBuffers> POOL = new ConcurrentLinkedQueue<>();
+
+    /* Releases a mapped buffer right away, or null if the JVM doesn't allow it */
+    private static final Consumer<ByteBuffer> UNMAPPER = getUnmapper();
+
+    private PooledBuffers buffers;
+    private final CharsetDecoder decoder;
+    private final CharBuffer chars;
+    private FileChannel channel;
+    private ByteBuffer bytes;
+    private long nextPosition;
+    private long size;
+    private boolean endOfInput = false;
+    private boolean flushed = false;
+
+    private FileContentsReader(PooledBuffers buffers, CharsetDecoder decoder, CharBuffer chars, FileChannel channel,
+                               ByteBuffer bytes, long nextPosition, long size) {
+        this.buffers = buffers;
+        this.decoder = decoder;
+        this.chars = chars;
+        this.channel = channel;
+        this.bytes = bytes;
+        this.nextPosition = nextPosition;
+        this.size = size;
+    }
+
+    /**
+     * Opens a reader over the file, mapping it if its size is at least mmapThreshold bytes.
+     */
+    static Reader open(Path file, Charset charset, int mmapThreshold) throws IOException {
+        PooledBuffers buffers = POOL.poll();
+        if (buffers == null) {
+            buffers = new PooledBuffers();
+        }
+        if (buffers.decoder == null || !buffers.decoder.charset().equals(charset)) {
+            buffers.decoder = newDecoder(charset);
+        }
+        CharsetDecoder decoder = buffers.decoder.reset();
+        CharBuffer chars = buffers.chars;
+        ((Buffer) chars).clear();
+        ((Buffer) chars).flip();
+
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            long size = channel.size();
+            if (size < mmapThreshold) {
+                if (buffers.bytes == null || buffers.bytes.capacity() < mmapThreshold) {
+                    buffers.bytes = ByteBuffer.allocateDirect(mmapThreshold);
+                }
+                ByteBuffer bytes = buffers.bytes;
+                ((Buffer) bytes).clear();
+                while (bytes.hasRemaining() && channel.read(bytes) != -1) {
+                    // read the whole file
+                }
+                if (bytes.hasRemaining() || channel.position() >= channel.size()) {
+                    ((Buffer) bytes).flip();
+                    channel.close();
+                    return new FileContentsReader(buffers, decoder, chars, null, bytes, 0, 0);
+                }
+                // it grew past the buffer while being read, so it is mapped instead
+                size = channel.size();
+            }
+
+            long window = Math.min(size, MAX_WINDOW);
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, window);
+            return new FileContentsReader(buffers, decoder, chars, channel, bytes, window, size);
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            POOL.offer(buffers);
+            throw e;
+        }
+    }
+
+    private static CharsetDecoder newDecoder(Charset charset) {
+        return charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (!chars.hasRemaining()) {
+            if (!fill()) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, chars.remaining());
+        chars.get(cbuf, off, n);
+        return n;
+    }
+
+    /* Decodes the next chars, returning false at the end of the file */
+    private boolean fill() throws IOException {
+        if (flushed || bytes == null) {
+            return false;
+        }
+
+        chars.compact();
+        try {
+            CoderResult result = decoder.decode(bytes, chars, endOfInput);
+            if (result.isError()) {
+                result.throwException();
+            }
+            if (result.isUnderflow()) {
+                if (endOfInput) {
+                    decoder.flush(chars);
+                    flushed = true;
+                } else if (!nextWindow()) {
+                    endOfInput = true;
+                }
+            }
+        } finally {
+            ((Buffer) chars).flip();
+        }
+        return chars.hasRemaining() || !flushed;
+    }
+
+    /* Maps the next window of the file, keeping the bytes of a char split between windows */
+    private boolean nextWindow() throws IOException {
+        if (channel != null && nextPosition >= size) {
+            // the file may have grown since it was opened
+            size = channel.size();
+        }
+        if (channel == null || nextPosition >= size) {
+            return false;
+        }
+        long start = nextPosition - bytes.remaining();
+        long window = Math.min(size - start, MAX_WINDOW);
+        ByteBuffer done = bytes;
+        bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, window);
+        unmap(done);
+        nextPosition = start + window;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            unmap(bytes);
+        }
+        bytes = null;
+        if (buffers != null) {
+            POOL.offer(buffers);
+            buffers = null;
+        }
+    }
+
+    private static void unmap(ByteBuffer buffer) {
+        if (UNMAPPER != null && buffer != null) {
+            UNMAPPER.accept(buffer);
+        }
+    }
+
+    /* Unsafe.invokeCleaner since Java 9, the cleaner of the buffer before, looked up as MMapDirectory does */
+    private static Consumer<ByteBuffer> getUnmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            return buffer -> invoke(invokeCleaner, unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Java 8
+        }
+        try {
+            Method cleaner = Class.forName("java.nio.DirectByteBuffer").getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> {
+                Object bufferCleaner = invoke(cleaner, buffer);
+                if (bufferCleaner != null) {
+                    invoke(clean, bufferCleaner);
+                }
+            };
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (ReflectiveOperationException e) {
+            // left to the GC
+            return null;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Snapshot of the documents already in an index, used to index only the files that changed since the last run.
+ * Each document keeps the size and the last modified time of its file as doc values ("size" and "modified"), so
+ * a file is unchanged when both of them match. Every file looked up is marked as seen, so once the whole
+ * collection has been walked the documents whose file was not found can be deleted.
+ */
+class IncrementalIndex implements Closeable {
+
+    static final String SIZE_FIELD = "size";
+    static final String MODIFIED_FIELD = "modified";
+
+    private final DirectoryReader reader;
+    private final List<LeafReaderContext> leaves;
+    private final FixedBitSet[] seen;
+    private final ThreadLocal<LeafLookup[]> lookups;
+    private final AtomicInteger unchanged = new AtomicInteger();
+
+    /* Per thread state to look up a path in a segment, as the enums can't be shared */
+    private static class LeafLookup {
+        final LeafReader reader;
+        final TermsEnum termsEnum;
+        PostingsEnum postings;
+        NumericDocValues size;
+        NumericDocValues modified;
+
+        LeafLookup(LeafReader reader) throws IOException {
+            this.reader = reader;
+            Terms terms = reader.terms("path");
+            this.termsEnum = terms == null ? null : terms.iterator();
+        }
+
+        /* Doc values are iterators, so they are reopened when asked for a document behind them */
+        long getValue(String field, int doc) throws IOException {
+            NumericDocValues values = SIZE_FIELD.equals(field) ? size : modified;
+            if (values == null || values.docID() > doc) {
+                values = reader.getNumericDocValues(field);
+                if (SIZE_FIELD.equals(field)) {
+                    size = values;
+                } else {
+                    modified = values;
+                }
+            }
+            return values != null && values.advanceExact(doc) ? values.longValue() : -1;
+        }
+    }
+
+    private IncrementalIndex(DirectoryReader reader) {
+        this.reader = reader;
+        this.leaves = reader.leaves();
+        this.seen = new FixedBitSet[leaves.size()];
+        for (int i=0; i<seen.length; i++) {
+            seen[i] = new FixedBitSet(leaves.get(i).reader().maxDoc());
+        }
+        this.lookups = ThreadLocal.withInitial(() -> new LeafLookup[leaves.size()]);
+    }
+
+    static IncrementalIndex open(IndexWriter writer) throws IOException {
+        return new IncrementalIndex(DirectoryReader.open(writer));
+    }
+
+    /**
+     * Returns true if the file is already indexed with the same size and last modified time, marking it as seen.
+     */
+    boolean isUnchanged(Path file, BasicFileAttributes attrs) throws IOException {
+        BytesRef path = new BytesRef(file.toString());
+        LeafLookup[] leafLookups = lookups.get();
+
+        for (int i=0; i<leaves.size(); i++) {
+            LeafLookup lookup = leafLookups[i];
+            if (lookup == null) {
+                lookup = leafLookups[i] = new LeafLookup(leaves.get(i).reader());
+            }
+            if (lookup.termsEnum == null || !lookup.termsEnum.seekExact(path)) {
+                continue;
+            }
+
+            Bits liveDocs = lookup.reader.getLiveDocs();
+            lookup.postings = lookup.termsEnum.postings(lookup.postings, PostingsEnum.NONE);
+            int doc;
+            while ((doc = lookup.postings.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                if (liveDocs != null && !liveDocs.get(doc)) {
+                    continue;
+                }
+                synchronized (seen[i]) {
+                    seen[i].set(doc);
+                }
+                if (lookup.getValue(SIZE_FIELD, doc) == attrs.size()
+                        && lookup.getValue(MODIFIED_FIELD, doc) == attrs.lastModifiedTime().toMillis()) {
+                    unchanged.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Deletes the documents under the given folders whose file has not been seen, as they no longer exist.
+     * Returns the number of files removed from the index.
+     */
+    int deleteMissing(IndexWriter writer, List<Path> folders) throws IOException {
+        int deleted = 0;
+        for (int i=0; i<leaves.size(); i++) {
+            LeafReader leaf = leaves.get(i).reader();
+            Terms terms = leaf.terms("path");
+            if (terms == null) {
+                continue;
+            }
+
+            Bits liveDocs = leaf.getLiveDocs();
+            TermsEnum termsEnum = terms.iterator();
+            PostingsEnum postings = null;
+            BytesRef term;
+            while ((term = termsEnum.next()) != null) {
+                postings = termsEnum.postings(postings, PostingsEnum.NONE);
+                int doc;
+                while ((doc = postings.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                    if ((liveDocs == null || liveDocs.get(doc)) && !seen[i].get(doc)
+                            && isUnder(Paths.get(term.utf8ToString()), folders)) {
+                        writer.deleteDocuments(new Term("path", BytesRef.deepCopyOf(term)));
+                        deleted++;
+                        break;
+                    }
+                }
+            }
+        }
+        return deleted;
+    }
+
+    int getUnchanged() {
+        return unchanged.get();
+    }
+
+    private static boolean isUnder(Path file, List<Path> folders) {
+        for (Path folder : folders) {
+            if (file.startsWith(folder)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -1,21 +1,27 @@
 package es.udc.fic.ri.mri_indexer;
 
 import java.io.*;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.nio.file.attribute.FileTime;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
@@ -33,55 +39,196 @@ public class IndexFiles {
     private static Map<String,String> properties;
 
     private static boolean update = false;
+    private static IncrementalIndex incremental = null;
     private static String[] onlyFiles = null;
     private static int numTopLines = -1;
     private static int numBottomLines = -1;
+    private static boolean storeContents = true;
+    private static int maxStoredChars = -1;
+    private static boolean compressStoredContents = false;
+    private static Charset charset = StandardCharsets.UTF_8;
+    private static int mmapThreshold = 512 * 1024;
+
+    private static int batchSize = 64;
+    private static long batchSizeBytes = 4 * 1024 * 1024;
+    private static IndexProgress progress = new IndexProgress();
+
+    /* First error which closed a writer, after which the documents left are only taken from the queue */
+    private static final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private final static int DEFAULT_QUEUE_SIZE = 1024;
+    private final static int DEFAULT_PIPELINE_QUEUE_SIZE = 64;
+    private final static int DEFAULT_VIRTUAL_READS = 64;
+    private final static int DEFAULT_PROGRESS_INTERVAL = 10;
+    private final static int IDLE_MILLIS = 100;
+    private final static int MAX_INITIAL_CHARS = 64 * 1024 * 1024;
 
     private IndexFiles() {}
 
+    /* A file waiting to be indexed and the writer (and partial index, if any) that must receive it */
+    static class IndexTask {
+        final Path file;
+        final BasicFileAttributes attrs;
+        final IndexWriter writer;
+        final PartialIndex partial;
+
+        IndexTask(Path file, BasicFileAttributes attrs, IndexWriter writer, PartialIndex partial) {
+            this.file = file;
+            this.attrs = attrs;
+            this.writer = writer;
+            this.partial = partial;
+        }
+    }
+
+    /* Marks the end of the queue, one per worker */
+    static final IndexTask END_OF_QUEUE = new IndexTask(null, null, null, null);
+
     public static class WorkerThread implements Runnable {
 
-        private final Path folder;
-        private final IndexWriter writer;
-        private final boolean close;
+        private final BlockingQueue<IndexTask> queue;
 
-        public WorkerThread(String folder, IndexWriter writer, boolean close) {
-            this.folder = Paths.get(folder);
-            this.writer = writer;
-            this.close = close;
+        public WorkerThread(BlockingQueue<IndexTask> queue) {
+            this.queue = queue;
         }
 
         @Override
         public void run() {
+            Map<IndexWriter, DocumentBatch> batches = new IdentityHashMap<>();
             try {
-                indexDocs(writer, folder);
-                writer.commit();
-                if (close) {
-                    writer.close();
+                IndexTask task;
+                while ((task = queue.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS)) != END_OF_QUEUE) {
+                    if (task != null) {
+                        indexTask(task, batches);
+                    }
+
+                    // Finish the partial indexes whose files have all been taken
+                    for (DocumentBatch batch : batches.values()) {
+                        if (batch.getPartial() != null && !batch.isEmpty() && batch.getPartial().isDequeued()) {
+                            try {
+                                batch.flush();
+                            } catch (IOException | RuntimeException e) {
+                                fail(batch.getWriter(), e);
+                            }
+                        }
+                    }
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                for (DocumentBatch batch : batches.values()) {
+                    try {
+                        batch.flush();
+                    } catch (IOException | RuntimeException e) {
+                        fail(batch.getWriter(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void indexTask(IndexTask task, Map<IndexWriter, DocumentBatch> batches) {
+        DocumentBatch batch = batches.get(task.writer);
+        if (batch == null) {
+            batch = new DocumentBatch(task.writer, batchSize, batchSizeBytes, progress, task.partial);
+            batches.put(task.writer, batch);
+        }
+        if (task.partial != null) {
+            task.partial.dequeued();
+        }
+
+        long accepted = batch.getAccepted();
+        try {
+            if (hasFailed()) {
+                return;
+            } else if (incremental != null && incremental.isUnchanged(task.file, task.attrs)) {
+                progress.addSkipped(1);
+            } else {
+                indexDoc(batch, task.file, task.attrs);
+            }
+        } catch (IOException | RuntimeException e) {
+            // don't index files that can't be read, but stop if the writer is gone
+            failDocument(batch.getWriter(), progress, task.file, e);
+        } finally {
+            if (task.partial != null && batch.getAccepted() == accepted) {
+                task.partial.done(1);
             }
         }
     }
 
+    /**
+     * Records the error if it closed the writer, so the workers stop indexing and the run ends with it. Other
+     * errors only lose the document that caused them.
+     */
+    static void fail(IndexWriter writer, Throwable e) {
+        if (writer.getTragicException() == null && writer.isOpen()) {
+            return;
+        }
+        if (failure.compareAndSet(null, e)) {
+            System.err.println("The index writer was closed by an error, the documents left won't be indexed");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Counts a file which could not be read or indexed and prints why, as DocumentBatch does for the documents
+     * the writer rejects. If the error closed the writer it is recorded by fail instead.
+     */
+    static void failDocument(IndexWriter writer, IndexProgress progress, Path file, Throwable e) {
+        if (writer.getTragicException() != null || !writer.isOpen()) {
+            fail(writer, e);
+            return;
+        }
+        progress.addFailed(1);
+        System.err.println("Could not index '" + file + "': " + e);
+    }
+
+    /* Starts a new run in the same JVM, with the counts at 0 and without the error of the last run */
+    static void reset() {
+        progress = new IndexProgress();
+        failure.set(null);
+    }
+
+    static boolean hasFailed() {
+        return failure.get() != null;
+    }
+
+    /* Throws the error which closed a writer, if any, once every worker is done */
+    static void checkFailure() throws IOException {
+        Throwable e = failure.get();
+        if (e != null) {
+            throw new IOException("Indexing failed", e);
+        }
+    }
+
     public static void main(String[] args) {
         String usage = "java es.udc.fic.ri.mri_indexer.IndexFiles"
                 + " [-index INDEX_PATH] [-openmode [create, append, create_or_append]] [-update]"
-                + " [-numThreads N] [-onlyFiles] [-partialIndexes]";
+                + " [-incremental] [-numThreads N] [-onlyFiles] [-partialIndexes]"
+                + " [-pipeline] [-readerThreads N] [-builderThreads N] [-virtualReads [N]]"
+                + " [-profile [default, bulk, incremental, low-memory]] [-forceMerge MAX_SEGMENTS] [-cleanPartials]";
 
         String indexPath = null;
         OpenMode openMode = null;
+        boolean incrementalMode = false;
+        String profileName = null;
         boolean threads = false;
         int numThreads = -1;
         String[] partialIndexesPath = null;
-        Directory[] partialDirectories = null;
+        int maxSegments = -1;
+        boolean cleanPartials = false;
+        boolean pipeline = false;
+        int readerThreads = 2 * Runtime.getRuntime().availableProcessors();
+        int builderThreads = Runtime.getRuntime().availableProcessors();
+        int virtualReads = 0;
 
         for(int i=0; i<args.length; i++) {
             if ("-index".equals(args[i])) {
                 indexPath = args[++i];
             } else if ("-update".equals(args[i])) {
                 update = true;
+            } else if ("-incremental".equals(args[i])) {
+                update = true;
+                incrementalMode = true;
             } else if ("-openmode".equals(args[i])) {
                 String mode = args[++i];
                 switch (mode) {
@@ -97,6 +244,28 @@ public class IndexFiles {
                 numThreads = Integer.parseInt(args[++i]);
             } else if ("-partialIndexes".equals(args[i])) {
                 partialIndexesPath = getProperty("partialIndexes").split(" ");
+            } else if ("-profile".equals(args[i])) {
+                profileName = args[++i];
+            } else if ("-forceMerge".equals(args[i])) {
+                maxSegments = Integer.parseInt(args[++i]);
+            } else if ("-cleanPartials".equals(args[i])) {
+                cleanPartials = true;
+            } else if ("-pipeline".equals(args[i])) {
+                pipeline = true;
+            } else if ("-readerThreads".equals(args[i])) {
+                readerThreads = Integer.parseInt(args[++i]);
+            } else if ("-builderThreads".equals(args[i])) {
+                builderThreads = Integer.parseInt(args[++i]);
+            } else if ("-virtualReads".equals(args[i])) {
+                pipeline = true;
+                virtualReads = DEFAULT_VIRTUAL_READS;
+                if (i + 1 < args.length && !args[i + 1].startsWith("-")) {
+                    virtualReads = Integer.parseInt(args[++i]);
+                    if (virtualReads < 1) {
+                        System.err.println("virtualReads must be greater than 0: " + virtualReads);
+                        System.exit(-1);
+                    }
+                }
             } else if ("-onlyFiles".equals(args[i])) {
                 onlyFiles = getProperty("onlyFiles").split(" ");
             }
@@ -105,6 +274,9 @@ public class IndexFiles {
         if (indexPath == null || openMode == null) {
             System.err.println(usage);
             System.exit(-1);
+        } else if (incrementalMode && partialIndexesPath != null) {
+            System.err.println("-incremental can't be used with -partialIndexes");
+            System.exit(-1);
         }
 
         String[] docsPath = getProperty("docs").split(" ");
@@ -114,20 +286,49 @@ public class IndexFiles {
         } else if (partialIndexesPath != null && docsPath.length != partialIndexesPath.length) {
             System.err.println("a partial index must be given for each doc");
             System.exit(-1);
-        } else if (partialIndexesPath != null){
-            partialDirectories = new Directory[partialIndexesPath.length];
+        } else if (maxSegments == 0 || maxSegments < -1) {
+            System.err.println("forceMerge must be greater than 0: " + maxSegments);
+            System.exit(-1);
         }
 
         if (!threads) {
-            numThreads = Math.min(Runtime.getRuntime().availableProcessors(), docsPath.length);
+            numThreads = Runtime.getRuntime().availableProcessors();
         } else if (numThreads < 1) {
             System.err.println("numThreads must be greater than 0: " + numThreads);
             System.exit(-1);
-        } else {
-            numThreads = Math.min(Runtime.getRuntime().availableProcessors(), numThreads);
-            numThreads = Math.min(numThreads, docsPath.length);
         }
-        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+
+        if (readerThreads < 1) {
+            System.err.println("readerThreads must be greater than 0: " + readerThreads);
+            System.exit(-1);
+        } else if (builderThreads < 1) {
+            System.err.println("builderThreads must be greater than 0: " + builderThreads);
+            System.exit(-1);
+        } else if (virtualReads > 0 && !IndexPipeline.hasVirtualThreads()) {
+            System.err.println("-virtualReads needs Java 21 or later, running on "
+                    + System.getProperty("java.version"));
+            System.exit(-1);
+        }
+
+        int queueSize = DEFAULT_QUEUE_SIZE;
+        String queue = getProperty("queueSize");
+        if (queue != null) {
+            queueSize = Integer.parseInt(queue);
+            if (queueSize < 1) {
+                System.err.println("queueSize must be greater than 0: " + queueSize);
+                System.exit(-1);
+            }
+        }
+
+        int pipelineQueueSize = DEFAULT_PIPELINE_QUEUE_SIZE;
+        String pipelineQueue = getProperty("pipelineQueueSize");
+        if (pipelineQueue != null) {
+            pipelineQueueSize = Integer.parseInt(pipelineQueue.trim());
+            if (pipelineQueueSize < 1) {
+                System.err.println("pipelineQueueSize must be greater than 0: " + pipelineQueueSize);
+                System.exit(-1);
+            }
+        }
 
         String top = getProperty("onlyTopLines");
         if (top != null) {
@@ -147,51 +348,176 @@ public class IndexFiles {
             }
         }
 
+        String store = getProperty("storeContents");
+        if (store != null) {
+            storeContents = Boolean.parseBoolean(store.trim());
+        }
+
+        String vectors = getProperty("termVectors");
+        if (vectors != null) {
+            DocumentTemplate.termVectors = Boolean.parseBoolean(vectors.trim());
+        }
+
+        String maxStored = getProperty("maxStoredChars");
+        if (maxStored != null) {
+            maxStoredChars = Integer.parseInt(maxStored.trim());
+            if (maxStoredChars < 0) {
+                System.err.println("maxStoredChars must be positive");
+                System.exit(-1);
+            }
+        }
+
+        String compress = getProperty("compressStoredContents");
+        if (compress != null) {
+            compressStoredContents = Boolean.parseBoolean(compress.trim());
+        }
+
+        String charsetName = getProperty("charset");
+        if (charsetName != null) {
+            try {
+                charset = Charset.forName(charsetName.trim());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown charset: " + charsetName);
+                System.exit(-1);
+            }
+        }
+
+        String mmap = getProperty("mmapThresholdKb");
+        if (mmap != null) {
+            mmapThreshold = Integer.parseInt(mmap.trim()) * 1024;
+            if (mmapThreshold < 0) {
+                System.err.println("mmapThresholdKb must be positive");
+                System.exit(-1);
+            }
+        }
+
+        String batch = getProperty("batchSize");
+        if (batch != null) {
+            batchSize = Integer.parseInt(batch.trim());
+            if (batchSize < 1) {
+                System.err.println("batchSize must be greater than 0: " + batchSize);
+                System.exit(-1);
+            }
+        }
+
+        String batchKb = getProperty("batchSizeKb");
+        if (batchKb != null) {
+            batchSizeBytes = Long.parseLong(batchKb.trim()) * 1024;
+            if (batchSizeBytes < 1) {
+                System.err.println("batchSizeKb must be greater than 0: " + batchKb);
+                System.exit(-1);
+            }
+        }
+
+        int progressInterval = DEFAULT_PROGRESS_INTERVAL;
+        String interval = getProperty("progressInterval");
+        if (interval != null) {
+            progressInterval = Integer.parseInt(interval.trim());
+            if (progressInterval < 1) {
+                System.err.println("progressInterval must be greater than 0: " + progressInterval);
+                System.exit(-1);
+            }
+        }
+
+        if (profileName == null) {
+            profileName = getProperty("writerProfile");
+        }
+        WriterProfile profile = WriterProfile.get(profileName == null ? "default" : profileName.trim());
+        if (profile == null) {
+            System.err.println("Unknown writer profile: " + profileName + ", must be one of "
+                    + String.join(", ", WriterProfile.NAMES));
+            System.exit(-1);
+        }
+        profile.override(properties);
+
         Date start = new Date();
         try {
+            System.out.println("Writer profile: " + profile);
             System.out.println("Indexing to directory '" + indexPath + "'...");
-            IndexWriter writer = createWriter(indexPath, new StandardAnalyzer(), openMode);
+            final IndexWriter writer = createWriter(indexPath, new StandardAnalyzer(), openMode, profile);
             Directory dir = writer.getDirectory();
 
-            for (int i=0; i<docsPath.length; i++) {
-                if (!Files.isReadable(Paths.get(docsPath[i]))) {
-                    System.out.println("Document directory '" + docsPath[i] + "' does not exist or is not readable, please check the path");
-                    continue;
-                }
-
-                // Run each doc in a thread
-                IndexWriter iw = writer;
-                if (partialIndexesPath != null) {
-                    iw = createWriter(partialIndexesPath[i], new StandardAnalyzer(), OpenMode.CREATE);
-                    partialDirectories[i] = iw.getDirectory();
+            // Each partial index is merged as soon as it is finished
+            PartialIndex[] partials = null;
+            ExecutorService mergeExecutor = null;
+            final List<Future<?>> merges = Collections.synchronizedList(new ArrayList<>());
+            if (partialIndexesPath != null) {
+                final ExecutorService executor = Executors.newFixedThreadPool(profile.getMergeThreads());
+                final boolean clean = cleanPartials;
+                partials = new PartialIndex[partialIndexesPath.length];
+                for (int i=0; i<partialIndexesPath.length; i++) {
+                    Path partialPath = Paths.get(partialIndexesPath[i]);
+                    partials[i] = new PartialIndex(partialPath,
+                            createWriter(partialIndexesPath[i], new StandardAnalyzer(), OpenMode.CREATE, profile),
+                            partial -> merges.add(executor.submit(() -> {
+                                mergePartialIndex(writer, partial, clean);
+                                return null;
+                            })));
                 }
-                final Runnable worker = new WorkerThread(docsPath[i], iw, partialIndexesPath != null);
-                executor.execute(worker);
-
+                mergeExecutor = executor;
             }
 
-            executor.shutdown();
+            if (incrementalMode) {
+                incremental = IncrementalIndex.open(writer);
+            }
 
+            progress.start(progressInterval);
             try {
-                executor.awaitTermination(1, TimeUnit.HOURS);
+                if (pipeline) {
+                    System.out.println("Pipeline: " + (virtualReads > 0 ? virtualReads + " virtual" : readerThreads)
+                            + " readers, " + builderThreads + " builders, " + numThreads + " indexers");
+                    IndexPipeline stages = new IndexPipeline(incremental, progress, batchSize, batchSizeBytes,
+                            readerThreads, builderThreads, numThreads, pipelineQueueSize, virtualReads);
+                    stages.indexAll(docsPath, writer, partials, queueSize);
+                } else {
+                    indexAll(docsPath, writer, partials, numThreads, queueSize);
+                }
                 System.out.println("Finished all threads");
             } catch (final InterruptedException e) {
                 e.printStackTrace();
                 System.exit(-2);
+            } finally {
+                progress.stop();
+            }
+            System.out.println(progress);
+
+            // Remove the files that no longer exist
+            if (incremental != null) {
+                List<Path> folders = new ArrayList<>();
+                for (String docPath : docsPath) {
+                    if (Files.isReadable(Paths.get(docPath))) {
+                        folders.add(Paths.get(docPath));
+                    }
+                }
+                int deleted = incremental.deleteMissing(writer, folders);
+                System.out.println(incremental.getUnchanged() + " unchanged documents skipped, "
+                        + deleted + " missing documents deleted");
+                incremental.close();
             }
 
-            // Merge partial indexes
-            if (partialDirectories != null) {
-                writer.addIndexes(partialDirectories);
-                for (Directory partialDir : partialDirectories) {
-                    partialDir.close();
+            // Wait for the partial indexes still being merged
+            if (mergeExecutor != null) {
+                mergeExecutor.shutdown();
+                for (Future<?> merge : merges) {
+                    try {
+                        merge.get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        e.printStackTrace();
+                    }
                 }
+                System.out.println("Merged all partial indexes");
+            }
+
+            if (maxSegments != -1) {
+                System.out.println("Merging down to " + maxSegments + " segments...");
+                writer.forceMerge(maxSegments);
             }
 
             writer.close();
             dir.close();
 
             Date end = new Date();
+            System.out.println("Writer profile: " + profile);
             System.out.println(end.getTime() - start.getTime() + " total milliseconds");
 
         } catch (IOException e) {
@@ -202,124 +528,274 @@ public class IndexFiles {
 
     }
 
-    static void indexDocs(final IndexWriter writer, Path path) throws IOException {
+    /**
+     * Indexes every document under the given paths. The directory walk fills a bounded queue which is drained
+     * by numThreads workers, so the load is spread among them regardless of how the documents are distributed
+     * among the folders. Returns once every queued document has been indexed.
+     */
+    static void indexAll(String[] docsPath, IndexWriter writer, PartialIndex[] partials, int numThreads, int queueSize)
+            throws IOException, InterruptedException {
+        BlockingQueue<IndexTask> queue = new ArrayBlockingQueue<>(queueSize);
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> workers = new ArrayList<>(numThreads);
+        for (int i=0; i<numThreads; i++) {
+            workers.add(executor.submit(new WorkerThread(queue)));
+        }
+
+        progress.addQueue("files", queue);
+        try {
+            walkAll(docsPath, writer, partials, queue);
+        } finally {
+            for (int i=0; i<numThreads; i++) {
+                queue.put(END_OF_QUEUE);
+            }
+            executor.shutdown();
+        }
+
+        for (Future<?> worker : workers) {
+            try {
+                worker.get();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * Queues every document under the given paths, each one along with the writer of its partial index if any.
+     */
+    static void walkAll(String[] docsPath, IndexWriter writer, PartialIndex[] partials, BlockingQueue<IndexTask> queue)
+            throws IOException, InterruptedException {
+        for (int i=0; i<docsPath.length; i++) {
+            Path path = Paths.get(docsPath[i]);
+            PartialIndex partial = partials == null ? null : partials[i];
+            try {
+                if (!Files.isReadable(path)) {
+                    System.out.println("Document directory '" + docsPath[i] + "' does not exist or is not readable, please check the path");
+                    continue;
+                }
+                indexDocs(partial == null ? writer : partial.getWriter(), partial, path, queue);
+            } finally {
+                if (partial != null) {
+                    partial.walked();
+                }
+            }
+        }
+    }
+
+    static void indexDocs(final IndexWriter writer, final PartialIndex partial, Path path,
+                          final BlockingQueue<IndexTask> queue) throws IOException, InterruptedException {
         if (Files.isDirectory(path)) {
+            final InterruptedException[] interrupted = new InterruptedException[1];
             Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
                 @Override
                 public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-                    try {
-                        if (onlyFiles == null) {
-                            indexDoc(writer, file, attrs.lastModifiedTime().toMillis());
-                        } else {
-                            for (String extension : onlyFiles) {
-                                if (file.toString().endsWith(extension)) {
-                                    indexDoc(writer, file, attrs.lastModifiedTime().toMillis());
-                                }
+                    if (accept(file)) {
+                        try {
+                            if (partial != null) {
+                                partial.queued();
                             }
+                            queue.put(new IndexTask(file, attrs, writer, partial));
+                        } catch (InterruptedException e) {
+                            interrupted[0] = e;
+                            return FileVisitResult.TERMINATE;
                         }
-                    } catch (IOException e) {
-                        // don't index files that can't be read.
                     }
                     return FileVisitResult.CONTINUE;
                 }
 
-            });
-        } else {
-            if (onlyFiles == null) {
-                indexDoc(writer, path, Files.getLastModifiedTime(path).toMillis());
-            } else {
-                for (String extension : onlyFiles) {
-                    if (path.endsWith(extension)) {
-                        indexDoc(writer, path, Files.getLastModifiedTime(path).toMillis());
-                        break;
-                    }
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // don't index files that can't be read.
+                    return FileVisitResult.CONTINUE;
                 }
+
+            });
+            if (interrupted[0] != null) {
+                throw interrupted[0];
+            }
+        } else if (accept(path)) {
+            if (partial != null) {
+                partial.queued();
             }
+            queue.put(new IndexTask(path, Files.readAttributes(path, BasicFileAttributes.class), writer, partial));
         }
     }
 
-    static void indexDoc(IndexWriter writer, Path file, long lastModified) throws IOException {
-        try (InputStream stream = Files.newInputStream(file)) {
-            Document doc = new Document();
-
-            // Add the path of the file as a field named "path".  Use a
-            // field that is indexed (i.e. searchable), but don't tokenize
-            // the field into separate words and don't index term frequency
-            // or positional information:
-            Field pathField = new StringField("path", file.toString(), Field.Store.YES);
-            doc.add(pathField);
-
-            // Add the last modified date of the file a field named "modified".
-            // Use a LongPoint that is indexed (i.e. efficiently filterable with
-            // PointRangeQuery).  This indexes to milli-second resolution, which
-            // is often too fine.  You could instead create a number based on
-            // year/month/day/hour/minutes/seconds, down the resolution you require.
-            // For example the long value 2011021714 would mean
-            // February 17, 2011, 2-3 PM.
-            doc.add(new LongPoint("modified", lastModified));
-
-            // Add the contents of the file to a field named "contents".  Specify a Reader,
-            // so that the text of the file is tokenized and indexed, but not stored.
-            // Note that FileReader expects the file to be in UTF-8 encoding.
-            // If that's not the case searching for special characters will fail.
-            String content;
-            if (numTopLines == -1 && numBottomLines == -1) {
-                content = new BufferedReader(new InputStreamReader(stream)).lines().collect(Collectors.joining("\n"));
-            } else {
-                content = getLines(stream, numTopLines, numBottomLines).stream().collect(Collectors.joining("\n"));
+    /**
+     * Adds a finished partial index to the main one, removing its files afterwards if clean is set.
+     */
+    static void mergePartialIndex(IndexWriter writer, PartialIndex partial, boolean clean) throws IOException {
+        IndexWriter partialWriter = partial.getWriter();
+        Directory partialDir = partialWriter.getDirectory();
+        partialWriter.commit();
+        partialWriter.close();
+
+        writer.addIndexes(partialDir);
+        if (clean) {
+            for (String file : partialDir.listAll()) {
+                partialDir.deleteFile(file);
             }
-            doc.add(new TextField("contents", content, Field.Store.YES));
+        }
+        partialDir.close();
+        if (clean) {
+            Files.deleteIfExists(partial.getPath());
+        }
+        System.out.println("Merged partial index '" + partial.getPath() + "'");
+    }
 
-            String hostname;
-            try {
-                hostname = InetAddress.getLocalHost().getHostName();
-            } catch (UnknownHostException e) {
-                hostname = "unknown";
+    private static boolean accept(Path file) {
+        if (onlyFiles == null) {
+            return true;
+        }
+        for (String extension : onlyFiles) {
+            if (file.toString().endsWith(extension)) {
+                return true;
             }
+        }
+        return false;
+    }
 
-            Field hostnameField = new StringField("hostname", hostname, Field.Store.YES);
-            doc.add(hostnameField);
-
-            Field threadField = new StringField("thread", Thread.currentThread().getName(), Field.Store.YES);
-            doc.add(threadField);
+    static void indexDoc(DocumentBatch batch, Path file, BasicFileAttributes attrs) throws IOException {
+        DocumentTemplate template = batch.nextTemplate();
+        Document doc = template.fill(file, attrs);
+        Term term = getUpdateTerm(batch.getWriter(), file);
+
+        // Add the contents of the file to a field named "contents".  Specify a Reader,
+        // so that the text of the file is tokenized and indexed straight from the file
+        // instead of being loaded in memory. The stored copy (if any) is capped and/or
+        // compressed as the tokenizer reads the text, so the file is read and decoded
+        // once. Only when the whole text must be stored as it is, which needs it in
+        // memory anyway, the file is read into a String, both indexed and stored.
+        // The file is decoded with the charset given in the properties (UTF-8 by default).
+        // If that's not its encoding searching for special characters will fail.
+        if (streamsContents()) {
+            // Documents read straight from the file must be written before closing it
+            try (Reader in = openContents(file)) {
+                StoredContentsReader copy = newStoredCopy(in);
+                if (copy == null) {
+                    template.setContents(in);
+                } else {
+                    template.setContents(copy);
+                    template.setStoredContents(copy);
+                }
+                batch.addNow(doc, term);
+            }
+            return;
+        }
 
-            BasicFileAttributes attr = Files.readAttributes(file, BasicFileAttributes.class);
+        String content = readContents(file, attrs);
+        template.setContents(content, storesWholeText());
+        if (storeContents && !storesWholeText()) {
+            template.setStoredContents(newStoredCopy(new StringReader(content)));
+        }
+        batch.add(doc, term, 2L * content.length());
+    }
 
-            Field sizeField = new FloatPoint("sizeKb", (float)attr.size()/1024);
-            doc.add(sizeField);
+    /* Sets how the contents are read and stored, as the properties do (-1 to take every line or char) */
+    static void setContentsOptions(int topLines, int bottomLines, boolean store, int maxStored, boolean compress) {
+        numTopLines = topLines;
+        numBottomLines = bottomLines;
+        storeContents = store;
+        maxStoredChars = maxStored;
+        compressStoredContents = compress;
+    }
 
-            FileTime creationTime = attr.creationTime();
-            Field creationTimeField = new StringField("creationTime", creationTime.toString(), Field.Store.YES);
-            doc.add(creationTimeField);
+    /* Whether the whole text is stored as it is, so it has to be read in memory anyway */
+    private static boolean storesWholeText() {
+        return storeContents && maxStoredChars == -1 && !compressStoredContents;
+    }
 
-            FileTime lastAccessTime = attr.lastAccessTime();
-            Field lastAccessTimeField = new StringField("lastAccessTime", lastAccessTime.toString(), Field.Store.YES);
-            doc.add(lastAccessTimeField);
+    /* Whether the contents are indexed straight from the file rather than read into a String first */
+    static boolean streamsContents() {
+        return numTopLines == -1 && numBottomLines == -1 && !storesWholeText();
+    }
 
-            FileTime lastModifiedTime = attr.lastModifiedTime();
-            Field lastModifiedTimeField = new StringField("lastModifiedTime", lastModifiedTime.toString(), Field.Store.YES);
-            doc.add(lastModifiedTimeField);
+    /**
+     * Wraps the reader of the contents so it keeps the copy to be stored, capped and compressed as given in the
+     * properties, or returns null if the contents are not stored.
+     */
+    static StoredContentsReader newStoredCopy(Reader in) {
+        return storeContents ? new StoredContentsReader(in, maxStoredChars, compressStoredContents) : null;
+    }
 
-            Date creationTimeLucene = new Date(creationTime.toMillis());
-            Field creationTimeLuceneField = new StringField("creationTimeLucene", DateTools.dateToString(creationTimeLucene, DateTools.Resolution.MILLISECOND), Field.Store.YES);
-            doc.add(creationTimeLuceneField);
+    /* Term replacing the previous document of the file, or null if the documents are just added */
+    static Term getUpdateTerm(IndexWriter writer, Path file) {
+        if (update && writer.getConfig().getOpenMode() != OpenMode.CREATE) {
+            return new Term("path", file.toString());
+        }
+        return null;
+    }
 
-            Date lastAccessTimeLucene = new Date(lastAccessTime.toMillis());
-            Field lastAccessTimeLuceneField = new StringField("lastAccessTimeLucene", DateTools.dateToString(lastAccessTimeLucene, DateTools.Resolution.MILLISECOND), Field.Store.YES);
-            doc.add(lastAccessTimeLuceneField);
+    /**
+     * Reads the text to index from the file, whole or only the lines given in the properties.
+     */
+    static String readContents(Path file, BasicFileAttributes attrs) throws IOException {
+        if (numTopLines == -1 && numBottomLines == -1) {
+            // decoded straight into the String, which is sized after the file as most chars take a byte
+            StringBuilder content = new StringBuilder((int) Math.min(attrs.size(), MAX_INITIAL_CHARS));
+            char[] buffer = new char[8192];
+            try (Reader in = openContents(file)) {
+                int read;
+                while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+                    content.append(buffer, 0, read);
+                }
+            }
+            return content.toString();
+        }
 
-            Date lastModifiedTimeLucene = new Date(lastModifiedTime.toMillis());
-            Field lastModifiedTimeLuceneField = new StringField("lastModifiedTimeLucene", DateTools.dateToString(lastModifiedTimeLucene, DateTools.Resolution.MILLISECOND), Field.Store.YES);
-            doc.add(lastModifiedTimeLuceneField);
+        List<String> lines;
+        if (numTopLines == -1 && attrs.isRegularFile() && isAsciiCompatible(charset)) {
+            lines = getLastLines(file, numBottomLines);
+        } else {
+            try (Reader in = openContents(file)) {
+                lines = getLines(in, numTopLines, numBottomLines);
+            }
+        }
+        return String.join("\n", lines);
+    }
 
-            if (!update || writer.getConfig().getOpenMode() == OpenMode.CREATE) {
-                System.out.println("[" + Thread.currentThread().getName() + "] adding " + file + " to " + writer.getDirectory().toString().split(" ")[0]);
-                writer.addDocument(doc);
+    /**
+     * Builds the document of a file whose text is already read and analyzed, so the writer only has to invert the
+     * tokens.
+     */
+    static Document buildDocument(DocumentTemplate template, Path file, BasicFileAttributes attrs, String content,
+                                  PreAnalyzedTokens tokens) throws IOException {
+        Document doc = template.fill(file, attrs);
+        template.setContents(tokens);
+        if (storeContents) {
+            if (storesWholeText()) {
+                template.setStoredContents(content);
             } else {
-                System.out.println("[" + Thread.currentThread().getName() + "] updating " + file + " to " + writer.getDirectory().toString().split(" ")[0]);
-                writer.updateDocument(new Term("path", file.toString()), doc);
+                template.setStoredContents(newStoredCopy(new StringReader(content)));
             }
         }
+        return doc;
+    }
+
+    /**
+     * Builds the document of a file whose contents were analyzed as they were read, along with the copy to be
+     * stored kept meanwhile, if any.
+     */
+    static Document buildDocument(DocumentTemplate template, Path file, BasicFileAttributes attrs,
+                                  StoredContentsReader copy, PreAnalyzedTokens tokens) throws IOException {
+        Document doc = template.fill(file, attrs);
+        template.setContents(tokens);
+        if (copy != null) {
+            copy.finish();
+            template.setStoredContents(copy);
+        }
+        return doc;
+    }
+
+    static Reader openContents(Path file) throws IOException {
+        return FileContentsReader.open(file, charset, mmapThreshold);
+    }
+
+    /* Returns true if the line breaks are encoded as in ASCII, so they can be looked for in the raw bytes */
+    private static boolean isAsciiCompatible(Charset charset) {
+        return Arrays.equals("\n".getBytes(charset), new byte[] { '\n' });
     }
 
     private static String getProperty(String name) {
@@ -339,42 +815,90 @@ public class IndexFiles {
         return properties.get(name);
     }
 
-    private static IndexWriter createWriter(String path, Analyzer analyzer, OpenMode openMode) throws IOException {
+    private static IndexWriter createWriter(String path, Analyzer analyzer, OpenMode openMode, WriterProfile profile)
+            throws IOException {
         Directory dir = FSDirectory.open(Paths.get(path));
         IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
         iwc.setOpenMode(openMode);
+        profile.apply(iwc);
         return new IndexWriter(dir, iwc);
     }
 
-    private static List<String> getLines(InputStream stream, int start, int end) {
-        List<String> first = new LinkedList<>();
-        List<String> last = new LinkedList<>();
+    /**
+     * Returns the first start lines and the last end lines of the reader (-1 to skip either of them). The last
+     * lines are kept in a ring buffer, so no more than start + end lines are held in memory at any time.
+     */
+    static List<String> getLines(Reader reader, int start, int end) throws IOException {
+        List<String> lines = new ArrayList<>();
+        String[] last = new String[Math.max(end, 0)];
+        long numLast = 0;
 
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+        try (BufferedReader in = new BufferedReader(reader)) {
             int i = 0;
             String line;
             while ((line = in.readLine()) != null) {
                 if (i < start) {
-                    first.add(line);
+                    lines.add(line);
                     i++;
-                } else if (end != -1){
-                    last.add(line);
+                } else if (last.length > 0) {
+                    last[(int) (numLast++ % last.length)] = line;
+                } else {
+                    break;
                 }
             }
+        }
 
-            if (last.size() > 0) {
-                last = last.subList(Math.max(0, last.size()-end), last.size());
-            }
+        int n = (int) Math.min(numLast, last.length);
+        for (long j = numLast - n; j < numLast; j++) {
+            lines.add(last[(int) (j % last.length)]);
+        }
+        return lines;
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
+    /**
+     * Returns the last n lines of the file. The file is scanned backwards from its end looking for the line
+     * breaks, so only the blocks holding those lines are read. Lines are expected to end with "\n" or "\r\n".
+     */
+    static List<String> getLastLines(Path file, int n) throws IOException {
+        List<String> lines = new ArrayList<>(n);
+        if (n == 0) {
+            return lines;
         }
 
-        first.addAll(last);
-        return first;
-    }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long start = 0;
+            long position = size;
+            int numBreaks = 0;
+            byte[] block = new byte[8192];
+
+            search : while (position > 0) {
+                int length = (int) Math.min(block.length, position);
+                position -= length;
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, length);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) == -1) {
+                        break;
+                    }
+                }
 
-}
+                for (int i = length - 1; i >= 0; i--) {
+                    // the break at the end of the file just finishes the last line
+                    if (block[i] == '\n' && position + i != size - 1 && ++numBreaks == n) {
+                        start = position + i + 1;
+                        break search;
+                    }
+                }
+            }
 
+            channel.position(start);
+            BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), charset));
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
 
+}
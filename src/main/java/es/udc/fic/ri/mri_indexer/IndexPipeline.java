@@ -0,0 +1,431 @@
+package es.udc.fic.ri.mri_indexer;
+
+import es.udc.fic.ri.mri_indexer.IndexFiles.IndexTask;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexes the documents in three stages joined by bounded queues, so each one gets the threads its work needs
+ * instead of a single worker doing it all: readers load the files (mostly waiting for the disk), builders fill the
+ * documents and analyze their text (CPU bound) and indexers hand them to the IndexWriter in batches, which is left
+ * with inverting the tokens. A full queue holds back the stages before it, so the text kept in memory is bounded
+ * by the size of the queues.
+ *
+ * Readers only load the text into a String when it is needed whole, to be stored as it is or cut to some lines.
+ * Otherwise they open the file, which reads the small ones at once into a pooled buffer, and the builders analyze
+ * the text as they decode it, keeping the stored copy (capped or compressed) along the way. Each builder fills
+ * the documents from its own pool of templates, which the indexers give back once the documents are written.
+ *
+ * On Java 21 or later the files can be read instead by a virtual thread each, with a semaphore bounding the reads
+ * in flight, for storage where reads spend most of their time waiting (network mounts or spinning disks). Blocked
+ * virtual threads don't hold a platform thread, so many more reads can wait at once than there are readers, while
+ * the analysis stays on the bounded pool of builders. The virtual threads are created through reflection, so the
+ * classes still build and run on Java 8. Unchanged files are skipped by the platform thread starting the reads,
+ * so incremental runs look them up with a single set of enums rather than one per virtual thread.
+ */
+class IndexPipeline {
+
+    /* A document moving through the stages, which fill its content (or open its file) and then its fields */
+    private static class StagedDocument {
+        final IndexTask task;
+        String content;
+        Reader reader;
+        Document doc;
+        DocumentTemplate template;
+        Queue<DocumentTemplate> templates;
+        long size;
+
+        StagedDocument(IndexTask task) {
+            this.task = task;
+        }
+    }
+
+    /* Marks the end of a queue, one per thread of the stage draining it */
+    private static final StagedDocument END_OF_QUEUE = new StagedDocument(null);
+
+    private static final int IDLE_MILLIS = 100;
+
+    /* Executors.newVirtualThreadPerTaskExecutor, or null before Java 21 */
+    private static final Method VIRTUAL_EXECUTOR = getVirtualExecutor();
+
+    private final IncrementalIndex incremental;
+    private final IndexProgress progress;
+    private final int batchSize;
+    private final long batchSizeBytes;
+    private final int readerThreads;
+    private final int builderThreads;
+    private final int indexerThreads;
+    private final int queueSize;
+    private final int virtualReads;
+
+    /**
+     * Creates a pipeline with the given threads in each stage. If virtualReads is greater than 0, the files are
+     * read by virtual threads, up to virtualReads at once, instead of by readerThreads platform threads.
+     */
+    IndexPipeline(IncrementalIndex incremental, IndexProgress progress, int batchSize, long batchSizeBytes,
+                  int readerThreads, int builderThreads, int indexerThreads, int queueSize, int virtualReads) {
+        this.incremental = incremental;
+        this.progress = progress;
+        this.batchSize = batchSize;
+        this.batchSizeBytes = batchSizeBytes;
+        this.readerThreads = readerThreads;
+        this.builderThreads = builderThreads;
+        this.indexerThreads = indexerThreads;
+        this.queueSize = queueSize;
+        this.virtualReads = virtualReads;
+    }
+
+    private static Method getVirtualExecutor() {
+        String version = System.getProperty("java.specification.version");
+        if (version == null || version.startsWith("1.") || Integer.parseInt(version.split("\\.")[0]) < 21) {
+            return null;
+        }
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /* Whether the files can be read by virtual threads in this JVM */
+    static boolean hasVirtualThreads() {
+        return VIRTUAL_EXECUTOR != null;
+    }
+
+    /**
+     * Indexes every document queued by the directory walk, returning once all of them have been indexed. Each
+     * stage is told to end once the one before it has finished.
+     */
+    void indexAll(String[] docsPath, IndexWriter writer, PartialIndex[] partials, int walkQueueSize)
+            throws IOException, InterruptedException {
+        BlockingQueue<IndexTask> files = new ArrayBlockingQueue<>(walkQueueSize);
+        BlockingQueue<StagedDocument> read = new ArrayBlockingQueue<>(queueSize);
+        BlockingQueue<StagedDocument> built = new ArrayBlockingQueue<>(queueSize);
+        progress.addQueue("files", files);
+        progress.addQueue("read", read);
+        progress.addQueue("built", built);
+
+        // With virtual reads a single platform thread takes the files and starts a virtual thread for each one
+        int numReaders = virtualReads > 0 ? 1 : readerThreads;
+        ExecutorService executor = Executors.newFixedThreadPool(numReaders + builderThreads + indexerThreads);
+        List<Future<?>> readers = new ArrayList<>(numReaders);
+        List<Future<?>> builders = new ArrayList<>(builderThreads);
+        List<Future<?>> indexers = new ArrayList<>(indexerThreads);
+        for (int i=0; i<numReaders; i++) {
+            readers.add(executor.submit(() -> virtualReads > 0 ? readVirtual(files, read) : read(files, read)));
+        }
+        for (int i=0; i<builderThreads; i++) {
+            builders.add(executor.submit(() -> build(read, built)));
+        }
+        for (int i=0; i<indexerThreads; i++) {
+            indexers.add(executor.submit(() -> index(built)));
+        }
+
+        try {
+            try {
+                try {
+                    IndexFiles.walkAll(docsPath, writer, partials, files);
+                } finally {
+                    for (int i=0; i<numReaders; i++) {
+                        files.put(IndexFiles.END_OF_QUEUE);
+                    }
+                    await(readers);
+                }
+            } finally {
+                for (int i=0; i<builderThreads; i++) {
+                    read.put(END_OF_QUEUE);
+                }
+                await(builders);
+            }
+        } finally {
+            for (int i=0; i<indexerThreads; i++) {
+                built.put(END_OF_QUEUE);
+            }
+            executor.shutdown();
+            await(indexers);
+        }
+        IndexFiles.checkFailure();
+    }
+
+    private static void await(List<Future<?>> stage) throws InterruptedException {
+        for (Future<?> thread : stage) {
+            try {
+                thread.get();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            }
+        }
+    }
+
+    /* Reader stage: skips the unchanged files and loads the text of the rest */
+    private Void read(BlockingQueue<IndexTask> in, BlockingQueue<StagedDocument> out) throws InterruptedException {
+        IndexTask task;
+        while ((task = in.take()) != IndexFiles.END_OF_QUEUE) {
+            if (!skip(task)) {
+                read(task, out);
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Reader stage on virtual threads: the unchanged files are skipped on this thread, and a permit is taken before
+     * starting each read and given back after it
+     */
+    private Void readVirtual(BlockingQueue<IndexTask> in, BlockingQueue<StagedDocument> out)
+            throws InterruptedException {
+        Semaphore reads = new Semaphore(virtualReads);
+        ExecutorService executor = newVirtualExecutor();
+        try {
+            IndexTask task;
+            while ((task = in.take()) != IndexFiles.END_OF_QUEUE) {
+                if (skip(task)) {
+                    continue;
+                }
+                reads.acquire();
+                IndexTask file = task;
+                executor.execute(() -> {
+                    try {
+                        read(file, out);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        reads.release();
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+        return null;
+    }
+
+    private static ExecutorService newVirtualExecutor() {
+        if (VIRTUAL_EXECUTOR == null) {
+            throw new IllegalStateException("Virtual threads need Java 21 or later");
+        }
+        try {
+            return (ExecutorService) VIRTUAL_EXECUTOR.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create the virtual threads", e);
+        }
+    }
+
+    /* Drops the file if indexing has failed or it didn't change since the last run, returning true if so */
+    private boolean skip(IndexTask task) {
+        if (IndexFiles.hasFailed()) {
+            drop(task);
+            return true;
+        }
+        try {
+            if (incremental != null && incremental.isUnchanged(task.file, task.attrs)) {
+                progress.addSkipped(1);
+                drop(task);
+                return true;
+            }
+        } catch (IOException | RuntimeException e) {
+            IndexFiles.failDocument(task.writer, progress, task.file, e);
+            drop(task);
+            return true;
+        }
+        return false;
+    }
+
+    private void read(IndexTask task, BlockingQueue<StagedDocument> out) throws InterruptedException {
+        StagedDocument staged = new StagedDocument(task);
+        try {
+            if (IndexFiles.streamsContents()) {
+                staged.reader = IndexFiles.openContents(task.file);
+            } else {
+                staged.content = IndexFiles.readContents(task.file, task.attrs);
+            }
+        } catch (IOException | RuntimeException e) {
+            // don't index files that can't be read.
+            IndexFiles.failDocument(task.writer, progress, task.file, e);
+            drop(task);
+            return;
+        }
+        try {
+            out.put(staged);
+        } catch (InterruptedException e) {
+            close(staged);
+            throw e;
+        }
+    }
+
+    /* Builder stage: fills the fields of the document and analyzes its text */
+    private Void build(BlockingQueue<StagedDocument> in, BlockingQueue<StagedDocument> out)
+            throws InterruptedException {
+        Queue<DocumentTemplate> templates = new ConcurrentLinkedQueue<>();
+        StagedDocument staged;
+        while ((staged = in.take()) != END_OF_QUEUE) {
+            IndexTask task = staged.task;
+            if (IndexFiles.hasFailed()) {
+                close(staged);
+                drop(task);
+                continue;
+            }
+            staged.template = templates.poll();
+            if (staged.template == null) {
+                staged.template = new DocumentTemplate();
+            }
+            staged.templates = templates;
+            try {
+                build(staged);
+            } catch (IOException | RuntimeException e) {
+                IndexFiles.failDocument(task.writer, progress, task.file, e);
+                release(staged);
+                drop(task);
+                continue;
+            } finally {
+                close(staged);
+            }
+            staged.content = null;
+            out.put(staged);
+        }
+        return null;
+    }
+
+    private static void build(StagedDocument staged) throws IOException {
+        IndexTask task = staged.task;
+        PreAnalyzedTokens tokens;
+        if (staged.reader != null) {
+            StoredContentsReader copy = IndexFiles.newStoredCopy(staged.reader);
+            tokens = PreAnalyzedTokens.analyze(task.writer.getAnalyzer(), "contents",
+                    copy == null ? staged.reader : copy, task.attrs.size());
+            staged.doc = IndexFiles.buildDocument(staged.template, task.file, task.attrs, copy, tokens);
+            // the tokens, and the copy if it is stored, stay in memory until the document is written
+            staged.size = tokens.ramBytesUsed() + (copy == null ? 0 : copy.ramBytesUsed());
+        } else {
+            tokens = PreAnalyzedTokens.analyze(task.writer.getAnalyzer(), "contents", staged.content);
+            staged.doc = IndexFiles.buildDocument(staged.template, task.file, task.attrs, staged.content, tokens);
+            // the tokens, and the text if it is stored, stay in memory until the document is written
+            staged.size = tokens.ramBytesUsed() + 2L * staged.content.length();
+        }
+    }
+
+    /* Closes the file of a document, if it was opened, once it has been analyzed or dropped */
+    private static void close(StagedDocument staged) {
+        if (staged.reader != null) {
+            try {
+                staged.reader.close();
+            } catch (IOException e) {
+                // nothing left to read
+            }
+            staged.reader = null;
+        }
+    }
+
+    /* Gives the template of a document back to the builder which filled it, once it is written or dropped */
+    private static void release(StagedDocument staged) {
+        if (staged.template != null) {
+            staged.templates.offer(staged.template);
+            staged.template = null;
+            staged.doc = null;
+        }
+    }
+
+    /* Indexer stage: writes the documents in batches, as the workers of IndexFiles do */
+    private Void index(BlockingQueue<StagedDocument> in) throws InterruptedException {
+        Map<IndexWriter, DocumentBatch> batches = new IdentityHashMap<>();
+        Map<DocumentBatch, List<StagedDocument>> pending = new IdentityHashMap<>();
+        try {
+            StagedDocument staged;
+            while ((staged = in.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS)) != END_OF_QUEUE) {
+                if (staged != null) {
+                    index(staged.task, staged, batches, pending);
+                }
+
+                // Finish the partial indexes whose files have all been taken
+                for (DocumentBatch batch : batches.values()) {
+                    if (batch.getPartial() != null && !batch.isEmpty() && batch.getPartial().isDequeued()) {
+                        try {
+                            batch.flush();
+                        } catch (IOException | RuntimeException e) {
+                            IndexFiles.fail(batch.getWriter(), e);
+                        }
+                        release(batch, pending.get(batch));
+                    }
+                }
+            }
+        } finally {
+            for (DocumentBatch batch : batches.values()) {
+                try {
+                    batch.flush();
+                } catch (IOException | RuntimeException e) {
+                    IndexFiles.fail(batch.getWriter(), e);
+                }
+                release(batch, pending.get(batch));
+            }
+        }
+        return null;
+    }
+
+    /* Gives the templates of the documents of the batch back once it has been written */
+    private static void release(DocumentBatch batch, List<StagedDocument> pending) {
+        if (batch.isEmpty()) {
+            for (StagedDocument staged : pending) {
+                release(staged);
+            }
+            pending.clear();
+        }
+    }
+
+    private void index(IndexTask task, StagedDocument staged, Map<IndexWriter, DocumentBatch> batches,
+                       Map<DocumentBatch, List<StagedDocument>> pending) {
+        DocumentBatch batch = batches.get(task.writer);
+        if (batch == null) {
+            batch = new DocumentBatch(task.writer, batchSize, batchSizeBytes, progress, task.partial);
+            batches.put(task.writer, batch);
+            pending.put(batch, new ArrayList<>());
+        }
+        if (task.partial != null) {
+            task.partial.dequeued();
+        }
+
+        long accepted = batch.getAccepted();
+        try {
+            if (!IndexFiles.hasFailed()) {
+                pending.get(batch).add(staged);
+                batch.add(staged.doc, IndexFiles.getUpdateTerm(task.writer, task.file), staged.size);
+            }
+        } catch (IOException | RuntimeException e) {
+            IndexFiles.fail(task.writer, e);
+        } finally {
+            if (task.partial != null && batch.getAccepted() == accepted) {
+                task.partial.done(1);
+            }
+            if (batch.getAccepted() == accepted) {
+                release(staged);
+            }
+            release(batch, pending.get(batch));
+        }
+    }
+
+    /* A document leaving the pipeline before the indexers, which its partial index must not wait for */
+    private static void drop(IndexTask task) {
+        if (task.partial != null) {
+            task.partial.dequeued();
+            task.partial.done(1);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package es.udc.fic.ri.mri_indexer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the documents written by every worker and periodically prints a single line with the totals, instead
+ * of a line per document. The line also shows how full the queues between the stages are, so the stage
+ * holding back the others can be told.
+ */
+class IndexProgress {
+
+    private final AtomicLong added = new AtomicLong();
+    private final AtomicLong updated = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final long start = System.currentTimeMillis();
+    private final Map<String, BlockingQueue<?>> queues = new LinkedHashMap<>();
+    private ScheduledExecutorService reporter;
+
+    void addAdded(int n) { added.addAndGet(n); }
+    void addUpdated(int n) { updated.addAndGet(n); }
+    void addSkipped(int n) { skipped.addAndGet(n); }
+    void addFailed(int n) { failed.addAndGet(n); }
+
+    /* Shows the documents waiting in the queue and its capacity under the given name */
+    synchronized void addQueue(String name, BlockingQueue<?> queue) {
+        queues.put(name, queue);
+    }
+
+    /* Prints the progress every given seconds until stopped */
+    void start(int seconds) {
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> System.out.println(this), seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    void stop() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        long written = added.get() + updated.get();
+        long millis = Math.max(1, System.currentTimeMillis() - start);
+        StringBuilder line = new StringBuilder(String.format(
+                "[progress] %d documents written (%d added, %d updated), %d skipped, %d failed, %.1f docs/s",
+                written, added.get(), updated.get(), skipped.get(), failed.get(), written * 1000.0 / millis));
+        String separator = ", queued: ";
+        for (Map.Entry<String, BlockingQueue<?>> entry : queues.entrySet()) {
+            BlockingQueue<?> queue = entry.getValue();
+            int size = queue.size();
+            line.append(separator).append(entry.getKey()).append(' ').append(size).append('/')
+                    .append(size + queue.remainingCapacity());
+            separator = ", ";
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,26 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.index.DirectoryReader;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Query over an open index, already parsed from the arguments of a tool. The tools run one from their main, while
+ * QueryServer runs many of them over a shared reader.
+ */
+interface IndexQuery {
+
+    /**
+     * Runs the query over the reader, writing the result to out and the messages about the query to err.
+     */
+    void run(DirectoryReader reader, PrintStream out, PrintStream err) throws IOException;
+
+    /**
+     * Returns a key naming the result of the query for a given reader, or null if it must not be cached because
+     * it has side effects or its result is not worth caching.
+     */
+    default String getCacheKey() {
+        return null;
+    }
+}
@@ -0,0 +1,107 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FilterDirectory;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Files kept by the tools in the folder of an index, next to the files of Lucene. Their names don't start with
+ * an underscore, so the IndexWriter leaves them alone. Each one starts with a magic number and the generation of
+ * the commit it was built from, so a file of an older commit is ignored and built again.
+ */
+class IndexSideFile {
+
+    private static final int HEADER_SIZE = 4 + 8;
+
+    private IndexSideFile() { }
+
+    /**
+     * Returns the path of the file in the folder of the index, or null if the index is not in the file system.
+     */
+    static Path getPath(DirectoryReader reader, String name) {
+        Directory dir = FilterDirectory.unwrap(reader.directory());
+        if (!(dir instanceof FSDirectory)) {
+            return null;
+        }
+        return ((FSDirectory) dir).getDirectory().resolve(name);
+    }
+
+    /**
+     * Name of the file for a field. Lowercase letters and digits are kept, and any other char (uppercase letters
+     * and underscores too) is written as its hex code between underscores, so two fields never share a file, not
+     * even in file systems which ignore case.
+     */
+    static String getName(String prefix, String fieldName, String... suffixes) {
+        StringBuilder name = new StringBuilder(prefix).append('-');
+        for (int i=0; i<fieldName.length(); i++) {
+            char c = fieldName.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+                name.append(c);
+            } else {
+                name.append('_').append(Integer.toHexString(c)).append('_');
+            }
+        }
+        for (String suffix : suffixes) {
+            name.append('-').append(suffix);
+        }
+        return name.toString();
+    }
+
+    /**
+     * Maps the file if it exists as a regular file and was written with the given magic number for the given
+     * generation, returning null otherwise.
+     */
+    static ByteBuffer map(Path file, int magic, long generation) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() >= HEADER_SIZE && channel.size() <= Integer.MAX_VALUE) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.getInt(0) == magic && buffer.getLong(4) == generation) {
+                    return buffer;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the whole buffer into the file. It is written aside and moved, so a concurrent run never maps half a
+     * file. If the folder can't be written (a read-only or shared index) a warning is printed and the file is left
+     * out, as the buffer already holds what it would, so the tools still work building it on every run.
+     */
+    static void write(Path file, ByteBuffer buffer) {
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                ByteBuffer bytes = buffer.duplicate();
+                ((Buffer) bytes).rewind();
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Warning: could not write '" + file + "', it will be built again next time: " + e);
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException deleteException) {
+                    // left behind, ignored by Lucene and by the next runs
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.index.IndexWriter;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Partial index built for one of the top level folders. It keeps track of the files queued for it and of the
+ * ones already written, so as soon as the folder has been walked and all of its files written the index is
+ * handed to the listener, without waiting for the rest of folders.
+ */
+class PartialIndex {
+
+    private final Path path;
+    private final IndexWriter writer;
+    private final Consumer<PartialIndex> onFinished;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger dequeued = new AtomicInteger();
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private volatile boolean walked = false;
+
+    PartialIndex(Path path, IndexWriter writer, Consumer<PartialIndex> onFinished) {
+        this.path = path;
+        this.writer = writer;
+        this.onFinished = onFinished;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    IndexWriter getWriter() {
+        return writer;
+    }
+
+    /* Called by the walk for each file queued */
+    void queued() {
+        queued.incrementAndGet();
+    }
+
+    /* Called by the walk once the whole folder is queued */
+    void walked() {
+        walked = true;
+        if (done.get() == queued.get()) {
+            finish();
+        }
+    }
+
+    /* Called by a worker when it takes a file of this index */
+    void dequeued() {
+        dequeued.incrementAndGet();
+    }
+
+    /* Called when the documents of n files are written, or when they will never be */
+    void done(int n) {
+        if (done.addAndGet(n) == queued.get() && walked) {
+            finish();
+        }
+    }
+
+    /**
+     * Returns true once every file of the folder has been taken by a worker, meaning that the documents still
+     * waiting in a batch must be written to finish the index.
+     */
+    boolean isDequeued() {
+        return walked && dequeued.get() == queued.get();
+    }
+
+    private void finish() {
+        if (finished.compareAndSet(false, true)) {
+            onFinished.accept(this);
+        }
+    }
+}
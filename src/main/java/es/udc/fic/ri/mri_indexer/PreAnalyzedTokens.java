@@ -0,0 +1,130 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Tokens of a text analyzed ahead of indexing, replayed to the IndexWriter like CachingTokenFilter does. Instead
+ * of a captured State per token (a clone of every attribute) only what the writer indexes is kept, in arrays: the
+ * chars of the terms one after the other, and the position increment and offsets of each token. The analyzer's
+ * stream is closed once the text is analyzed, so it is free for the next text before the writer replays these
+ * tokens from another thread. Other attributes, such as payloads or types, are not kept.
+ */
+final class PreAnalyzedTokens extends TokenStream {
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+    private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+
+    private char[] chars;
+    private int numChars = 0;
+    private int[] termEnds = new int[16];
+    private int[] posIncs = new int[16];
+    private int[] startOffsets = new int[16];
+    private int[] endOffsets = new int[16];
+    private int numTokens = 0;
+    private int finalOffset;
+    private int finalPosInc;
+    private int next = 0;
+
+    /* Chars the arrays start with at most, as the size of a file read as it is analyzed says little of its terms */
+    private static final int MAX_INITIAL_CHARS = 1024 * 1024;
+
+    private PreAnalyzedTokens(int expectedChars) {
+        chars = new char[Math.max(16, expectedChars)];
+    }
+
+    /**
+     * Analyzes the text as the analyzer would for the field, keeping every token.
+     */
+    static PreAnalyzedTokens analyze(Analyzer analyzer, String fieldName, String text) throws IOException {
+        PreAnalyzedTokens tokens = new PreAnalyzedTokens(text.length());
+        tokens.read(analyzer.tokenStream(fieldName, text));
+        return tokens;
+    }
+
+    /**
+     * Analyzes the text read from the reader, which is closed afterwards. The expected length of the text only
+     * sizes the arrays the tokens start with.
+     */
+    static PreAnalyzedTokens analyze(Analyzer analyzer, String fieldName, Reader reader, long expectedChars)
+            throws IOException {
+        PreAnalyzedTokens tokens = new PreAnalyzedTokens((int) Math.min(expectedChars, MAX_INITIAL_CHARS));
+        tokens.read(analyzer.tokenStream(fieldName, reader));
+        return tokens;
+    }
+
+    private void read(TokenStream analyzed) throws IOException {
+        try (TokenStream stream = analyzed) {
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            PositionIncrementAttribute posInc = stream.addAttribute(PositionIncrementAttribute.class);
+            OffsetAttribute offset = stream.addAttribute(OffsetAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                add(term, posInc.getPositionIncrement(), offset.startOffset(), offset.endOffset());
+            }
+            stream.end();
+            finalOffset = offset.endOffset();
+            finalPosInc = posInc.getPositionIncrement();
+        }
+    }
+
+    private void add(CharTermAttribute term, int posInc, int startOffset, int endOffset) {
+        chars = ArrayUtil.grow(chars, numChars + term.length());
+        System.arraycopy(term.buffer(), 0, chars, numChars, term.length());
+        numChars += term.length();
+        if (numTokens == termEnds.length) {
+            int size = ArrayUtil.oversize(numTokens + 1, Integer.BYTES);
+            termEnds = ArrayUtil.growExact(termEnds, size);
+            posIncs = ArrayUtil.growExact(posIncs, size);
+            startOffsets = ArrayUtil.growExact(startOffsets, size);
+            endOffsets = ArrayUtil.growExact(endOffsets, size);
+        }
+        termEnds[numTokens] = numChars;
+        posIncs[numTokens] = posInc;
+        startOffsets[numTokens] = startOffset;
+        endOffsets[numTokens++] = endOffset;
+    }
+
+    /* Bytes held by the tokens, to charge them to the batch holding the document */
+    long ramBytesUsed() {
+        return RamUsageEstimator.sizeOf(chars) + RamUsageEstimator.sizeOf(termEnds)
+                + RamUsageEstimator.sizeOf(posIncs) + RamUsageEstimator.sizeOf(startOffsets)
+                + RamUsageEstimator.sizeOf(endOffsets);
+    }
+
+    @Override
+    public boolean incrementToken() {
+        if (next == numTokens) {
+            return false;
+        }
+        clearAttributes();
+        int start = next == 0 ? 0 : termEnds[next - 1];
+        termAtt.copyBuffer(chars, start, termEnds[next] - start);
+        posIncAtt.setPositionIncrement(posIncs[next]);
+        offsetAtt.setOffset(startOffsets[next], endOffsets[next]);
+        next++;
+        return true;
+    }
+
+    @Override
+    public void end() throws IOException {
+        super.end();
+        posIncAtt.setPositionIncrement(finalPosInc);
+        offsetAtt.setOffset(finalOffset, finalOffset);
+    }
+
+    /* Rewinds the tokens, so a document failing in a block can be written again on its own */
+    @Override
+    public void reset() {
+        next = 0;
+    }
+}
@@ -0,0 +1,355 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps an index open and answers the queries of BestTerms, SimilarTerms, TermsClusters, StatsField and WriteIndex
+ * with a pool of worker threads, so a query doesn't pay for starting the JVM and opening the index. The reader is
+ * shared through a SearcherManager, refreshed periodically to see the new commits of the index.
+ *
+ * Each request is a line with the name of the tool followed by its arguments (without -index), like
+ * "SimilarTerms -field contents -term house -top 10 -rep tf". The response is the output of the tool, or a line
+ * starting with "ERROR" if the request is wrong, followed by a line with a single dot. The requests are read from
+ * the standard input, or from the clients of a local socket if a port is given, and the responses of a client are
+ * written in the order of its requests. A "QUIT" line ends the session.
+ *
+ * The responses of BestTerms, SimilarTerms and TermsClusters are kept in a ResultCache bounded in size, valid
+ * while the reader they were computed with is the current one. A "STATS" line returns its hits and misses.
+ *
+ * WriteIndex writes files, so it is only served if an output folder is given, and its -outputfile is taken
+ * relative to that folder and can't leave it. Otherwise any local process could overwrite any file the server
+ * can write.
+ */
+public class QueryServer {
+
+    private static final String END_OF_RESPONSE = ".";
+    private static final String QUIT = "QUIT";
+    private static final String STATS = "STATS";
+    private static final int DEFAULT_CACHE_SIZE_MB = 64;
+
+    private final SearcherManager manager;
+    private final ExecutorService workers;
+    private final int numThreads;
+    private final ResultCache cache;
+    private final Path outputDir;
+
+    private QueryServer(SearcherManager manager, int numThreads, long cacheBytes, Path outputDir) {
+        this.manager = manager;
+        this.numThreads = numThreads;
+        this.outputDir = outputDir;
+        this.cache = cacheBytes > 0 ? new ResultCache(cacheBytes) : null;
+        this.workers = Executors.newFixedThreadPool(numThreads);
+    }
+
+    public static void main(String[] args) {
+        String usage = "java es.udc.fic.ri.mri_indexer.QueryServer"
+                + " [-index INDEX_PATH] [-port PORT] [-numThreads N] [-refreshSeconds S] [-cacheSizeMb MB]"
+                + " [-outputDir DIR]";
+
+        String indexPath = null;
+        int port = -1;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        int refreshSeconds = 1;
+        int cacheSizeMb = DEFAULT_CACHE_SIZE_MB;
+        String outputDir = null;
+
+        for (int i=0; i<args.length; i++) {
+            if ("-index".equals(args[i])) {
+                indexPath = args[++i];
+            } else if ("-port".equals(args[i])) {
+                port = Integer.parseInt(args[++i]);
+            } else if ("-numThreads".equals(args[i])) {
+                numThreads = Integer.parseInt(args[++i]);
+            } else if ("-refreshSeconds".equals(args[i])) {
+                refreshSeconds = Integer.parseInt(args[++i]);
+            } else if ("-cacheSizeMb".equals(args[i])) {
+                cacheSizeMb = Integer.parseInt(args[++i]);
+            } else if ("-outputDir".equals(args[i])) {
+                outputDir = args[++i];
+            }
+        }
+
+        if (indexPath == null) {
+            System.err.println(usage);
+            System.exit(-1);
+        } else if (numThreads < 1) {
+            System.err.println("numThreads must be greater than 0: " + numThreads);
+            System.exit(-1);
+        } else if (refreshSeconds < 1) {
+            System.err.println("refreshSeconds must be greater than 0: " + refreshSeconds);
+            System.exit(-1);
+        } else if (cacheSizeMb < 0) {
+            System.err.println("cacheSizeMb must be positive: " + cacheSizeMb);
+            System.exit(-1);
+        } else if (outputDir != null && !Files.isDirectory(Paths.get(outputDir))) {
+            System.err.println("outputDir must be an existing folder: " + outputDir);
+            System.exit(-1);
+        }
+
+        Directory dir = null;
+        SearcherManager manager = null;
+        ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Date start = new Date();
+        try {
+            dir = FSDirectory.open(Paths.get(indexPath));
+            manager = new SearcherManager(dir, null);
+            final SearcherManager refreshed = manager;
+            refresher.scheduleWithFixedDelay(() -> {
+                try {
+                    refreshed.maybeRefresh();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+
+            QueryServer server = new QueryServer(manager, numThreads, cacheSizeMb * 1024L * 1024L,
+                    outputDir == null ? null : Paths.get(outputDir).toRealPath());
+            try {
+                if (port < 0) {
+                    System.err.println("Serving " + indexPath + " from the standard input with " + numThreads + " threads");
+                    server.serve(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)),
+                            new PrintStream(new FileOutputStream(FileDescriptor.out), false, "UTF-8"));
+                } else {
+                    System.err.println("Serving " + indexPath + " on port " + port + " with " + numThreads + " threads");
+                    server.listen(port);
+                }
+            } finally {
+                server.workers.shutdown();
+                if (server.cache != null) {
+                    System.err.println("Result cache: " + server.cache);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            refresher.shutdownNow();
+            try {
+                if (manager != null) {
+                    manager.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            try {
+                if (dir != null) {
+                    dir.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        Date end = new Date();
+        System.err.println(end.getTime() - start.getTime() + " total milliseconds");
+    }
+
+    /* Accepts clients on the loopback interface, each one served from its own thread */
+    private void listen(int port) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                Thread client = new Thread(() -> {
+                    try (Socket s = socket;
+                         BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                         PrintStream out = new PrintStream(s.getOutputStream(), false, "UTF-8")) {
+                        serve(in, out);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }, "client-" + socket.getPort());
+                client.setDaemon(true);
+                client.start();
+            }
+        }
+    }
+
+    /**
+     * Reads the requests of a session, running them in the worker pool as soon as they arrive and writing their
+     * responses in order from another thread.
+     */
+    private void serve(BufferedReader in, PrintStream out) throws IOException, InterruptedException {
+        BlockingQueue<Future<byte[]>> responses = new ArrayBlockingQueue<>(2 * numThreads);
+        Future<byte[]> end = CompletableFuture.completedFuture(new byte[0]);
+
+        Thread writer = new Thread(() -> {
+            try {
+                Future<byte[]> response;
+                while ((response = responses.take()) != end) {
+                    byte[] bytes;
+                    try {
+                        bytes = response.get();
+                    } catch (ExecutionException e) {
+                        bytes = ("ERROR " + e.getCause() + "\n").getBytes(StandardCharsets.UTF_8);
+                    }
+                    out.write(bytes, 0, bytes.length);
+                    out.println(END_OF_RESPONSE);
+                    out.flush();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "responses");
+        writer.start();
+
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                } else if (line.equals(QUIT)) {
+                    break;
+                }
+                final String request = line;
+                responses.put(workers.submit(() -> answer(request)));
+            }
+        } finally {
+            responses.put(end);
+            writer.join();
+        }
+    }
+
+    /* Runs a request over the current reader, returning its response */
+    private byte[] answer(String request) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, false, "UTF-8");
+
+        if (request.equals(STATS)) {
+            out.println(cache == null ? "Result cache disabled" : "Result cache: " + cache);
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        IndexQuery query;
+        try {
+            query = parse(request.split("\\s+"), outputDir);
+        } catch (IllegalArgumentException e) {
+            out.println("ERROR " + String.valueOf(e.getMessage()).trim());
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        String key = cache == null ? null : query.getCacheKey();
+        IndexSearcher searcher = manager.acquire();
+        try {
+            DirectoryReader reader = (DirectoryReader) searcher.getIndexReader();
+            if (key != null) {
+                byte[] cached = cache.get(reader.getVersion(), key);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+
+            query.run(reader, out, out);
+            out.flush();
+            byte[] response = bytes.toByteArray();
+            if (key != null) {
+                cache.put(reader.getVersion(), key, response);
+            }
+            return response;
+        } finally {
+            manager.release(searcher);
+        }
+    }
+
+    /**
+     * Parses a request, whose first word names the tool and the rest are its arguments. WriteIndex is only
+     * accepted with an outputDir, the real path of the folder its files must be written to.
+     */
+    static IndexQuery parse(String[] request, Path outputDir) {
+        if (request.length == 0 || request[0].isEmpty()) {
+            throw new IllegalArgumentException("Empty request");
+        }
+        String[] args = new String[request.length - 1];
+        System.arraycopy(request, 1, args, 0, args.length);
+
+        try {
+            switch (request[0]) {
+                case "BestTerms":
+                    return BestTerms.parse(args, false);
+                case "SimilarTerms":
+                    return SimilarTerms.parse(args, false);
+                case "TermsClusters":
+                    return TermsClusters.parse(args, false);
+                case "StatsField":
+                    return StatsField.parse(args, false);
+                case "WriteIndex":
+                    if (outputDir == null) {
+                        throw new IllegalArgumentException("WriteIndex is only served with -outputDir");
+                    }
+                    return WriteIndex.parse(resolveOutput(args, outputDir), false);
+                default:
+                    throw new IllegalArgumentException("Unknown tool: " + request[0]);
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // the parse loops read the value of an option without checking that it was given
+            throw new IllegalArgumentException(args.length == 0 ? "Missing arguments"
+                    : "Missing value for " + args[args.length - 1]);
+        }
+    }
+
+    /* Resolves -outputfile against the output folder, rejecting the paths which would leave it */
+    private static String[] resolveOutput(String[] args, Path outputDir) {
+        String[] resolved = args.clone();
+        for (int i=0; i<resolved.length - 1; i++) {
+            if ("-outputfile".equals(resolved[i])) {
+                Path file = outputDir.resolve(resolved[i + 1]).normalize();
+                if (!file.startsWith(outputDir) || file.equals(outputDir) || !isInside(file.getParent(), outputDir)
+                        || Files.isSymbolicLink(file)) {
+                    throw new IllegalArgumentException("outputfile must be inside the output folder: "
+                            + resolved[i + 1]);
+                }
+                resolved[++i] = file.toString();
+            }
+        }
+        return resolved;
+    }
+
+    /*
+     * Whether the folder, once its links are followed, is the output folder or one inside it. Folders still to be
+     * created (by -split) are checked through the closest one which exists.
+     */
+    private static boolean isInside(Path folder, Path outputDir) {
+        Path existing = folder;
+        while (existing != null && !Files.exists(existing)) {
+            existing = existing.getParent();
+        }
+        try {
+            return existing != null && existing.toRealPath().startsWith(outputDir);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
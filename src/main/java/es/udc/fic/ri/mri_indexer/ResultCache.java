@@ -0,0 +1,78 @@
+package es.udc.fic.ri.mri_indexer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of query responses, bounded by the bytes they take. Entries belong to the version of the reader they
+ * were computed with: the first lookup with a newer version drops all of them, so a response never outlives the
+ * commit it was computed from. Queries still running over an older reader just miss.
+ */
+class ResultCache {
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private long version = -1;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    ResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the response cached for the key and reader version, or null if there is none.
+     */
+    synchronized byte[] get(long readerVersion, String key) {
+        if (readerVersion > version) {
+            entries.clear();
+            bytes = 0;
+            version = readerVersion;
+        }
+        byte[] response = readerVersion == version ? entries.get(key) : null;
+        if (response != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return response;
+    }
+
+    /**
+     * Caches the response, evicting the least recently used ones until it fits. Responses bigger than the whole
+     * cache and responses of an older reader are not kept.
+     */
+    synchronized void put(long readerVersion, String key, byte[] response) {
+        if (readerVersion != version || response.length > maxBytes) {
+            return;
+        }
+        byte[] previous = entries.put(key, response);
+        bytes += response.length - (previous == null ? 0 : previous.length);
+
+        Iterator<Map.Entry<String, byte[]>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().getValue().length;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        return String.format("%d hits, %d misses (%.1f%% hit rate), %d evictions, %d entries, %d/%d bytes",
+                hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups, evictions, entries.size(), bytes, maxBytes);
+    }
+}
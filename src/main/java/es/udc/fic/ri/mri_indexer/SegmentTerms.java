@@ -0,0 +1,296 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefArray;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.Counter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Terms of a field in one segment, with their df and optionally their postings (documents already mapped to the
+ * ids of the whole index with the docBase of the segment). The terms are read in blocks of a few thousand terms,
+ * or fewer if their postings are many, and each segment reads its next block in a task of the common ForkJoinPool
+ * while the current one is being merged, so an index with many segments is read with all the cores instead of
+ * through the single merged enumeration of MultiTerms, while holding only two blocks per segment. The segments are
+ * then merged back into the order of the terms, giving for each term its postings in every segment, by
+ * increasing document.
+ *
+ * Only the reading of the blocks is parallel: the visitor of the merge runs on the calling thread, as what it
+ * computes usually needs the df of the term in the whole index, known only once the segments are merged.
+ */
+class SegmentTerms implements Comparable<SegmentTerms> {
+
+    private static final int BLOCK_TERMS = 4096;
+    private static final int BLOCK_POSTINGS = 1 << 16;
+
+    /* Terms read from the segment at once, with their stats and postings */
+    private static class Block {
+        final BytesRefArray terms = new BytesRefArray(Counter.newCounter());
+        int[] dfs = new int[16];
+        long[] ttfs = new long[16];
+        int[] starts;
+        int[] docs;
+        int[] freqs;
+        int numPostings = 0;
+        boolean last = false;
+
+        Block(boolean withPostings) {
+            if (withPostings) {
+                starts = new int[17];
+                docs = new int[1024];
+                freqs = new int[1024];
+            }
+        }
+
+        void addPosting(int doc, int freq) {
+            if (numPostings == docs.length) {
+                docs = ArrayUtil.grow(docs, numPostings + 1);
+                freqs = Arrays.copyOf(freqs, docs.length);
+            }
+            docs[numPostings] = doc;
+            freqs[numPostings++] = freq;
+        }
+    }
+
+    private final TermsEnum termsEnum;
+    private final int docBase;
+    private final boolean withPostings;
+    private final int index;
+    private PostingsEnum postings;
+    private Block block;
+    private ForkJoinTask<Block> nextBlock;
+
+    /* Position in the merge */
+    private final BytesRefBuilder spare = new BytesRefBuilder();
+    private int ord = -1;
+    private BytesRef term;
+
+    /* Called for each term of the merge with the segments holding it, in the order of the segments */
+    interface TermVisitor {
+        void visit(BytesRef term, int df, SegmentTerms[] segments, int[] ords, int count) throws IOException;
+    }
+
+    private SegmentTerms(TermsEnum termsEnum, int docBase, boolean withPostings, int index) {
+        this.termsEnum = termsEnum;
+        this.docBase = docBase;
+        this.withPostings = withPostings;
+        this.index = index;
+        if (termsEnum == null) {
+            block = new Block(false);
+            block.last = true;
+        } else {
+            nextBlock = ForkJoinPool.commonPool().submit(this::readBlock);
+        }
+    }
+
+    /**
+     * Opens the terms of the field in every segment of the reader, with their postings if withPostings is set,
+     * starting to read the first block of each one in parallel. The result keeps the order of the segments.
+     */
+    static List<SegmentTerms> open(IndexReader reader, String fieldName, boolean withPostings)
+            throws IOException {
+        List<SegmentTerms> segments = new ArrayList<>();
+        for (LeafReaderContext leaf : reader.leaves()) {
+            Terms terms = leaf.reader().terms(fieldName);
+            segments.add(new SegmentTerms(terms == null ? null : terms.iterator(), leaf.docBase, withPostings,
+                    segments.size()));
+        }
+        return segments;
+    }
+
+    /**
+     * Returns the df in the whole index of each of the given terms, looking them up in every segment in parallel.
+     */
+    static int[] getDocFreqs(IndexReader reader, String fieldName, BytesRefArray terms) throws IOException {
+        List<ForkJoinTask<int[]>> tasks = new ArrayList<>();
+        for (LeafReaderContext leaf : reader.leaves()) {
+            tasks.add(ForkJoinPool.commonPool().submit(() -> {
+                int[] dfs = new int[terms.size()];
+                try {
+                    Terms leafTerms = leaf.reader().terms(fieldName);
+                    if (leafTerms != null) {
+                        TermsEnum termsEnum = leafTerms.iterator();
+                        BytesRefBuilder spare = new BytesRefBuilder();
+                        for (int i=0; i<dfs.length; i++) {
+                            if (termsEnum.seekExact(terms.get(spare, i))) {
+                                dfs[i] = termsEnum.docFreq();
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return dfs;
+            }));
+        }
+
+        int[] dfs = new int[terms.size()];
+        for (int[] leafDfs : join(tasks)) {
+            for (int i=0; i<dfs.length; i++) {
+                dfs[i] += leafDfs[i];
+            }
+        }
+        return dfs;
+    }
+
+    /* Waits for the tasks, returning their results in order and rethrowing the IOException of any of them */
+    private static <T> List<T> join(List<ForkJoinTask<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<>(tasks.size());
+        for (ForkJoinTask<T> task : tasks) {
+            try {
+                results.add(task.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) cause).getCause();
+                }
+                throw new IOException(cause);
+            }
+        }
+        return results;
+    }
+
+    /* Reads the next block of the segment, only one at a time as they share the enumeration */
+    private Block readBlock() {
+        Block next = new Block(withPostings);
+        try {
+            BytesRef term;
+            while (next.terms.size() < BLOCK_TERMS && next.numPostings < BLOCK_POSTINGS) {
+                if ((term = termsEnum.next()) == null) {
+                    next.last = true;
+                    break;
+                }
+                int ord = next.terms.append(term);
+                next.dfs = ArrayUtil.grow(next.dfs, ord + 1);
+                next.dfs[ord] = termsEnum.docFreq();
+                next.ttfs = ArrayUtil.grow(next.ttfs, ord + 1);
+                next.ttfs[ord] = termsEnum.totalTermFreq();
+                if (withPostings) {
+                    postings = termsEnum.postings(postings, PostingsEnum.FREQS);
+                    int id;
+                    while ((id = postings.nextDoc()) != PostingsEnum.NO_MORE_DOCS) {
+                        next.addPosting(docBase + id, postings.freq());
+                    }
+                    next.starts = ArrayUtil.grow(next.starts, ord + 2);
+                    next.starts[ord + 1] = next.numPostings;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return next;
+    }
+
+    /* Moves to the next term of the segment, taking the block read ahead once the current one is done */
+    private boolean next() throws IOException {
+        while (block == null || ++ord >= block.terms.size()) {
+            if (block != null && block.last) {
+                return false;
+            }
+            block = join(Collections.singletonList(nextBlock)).get(0);
+            nextBlock = block.last ? null : ForkJoinPool.commonPool().submit(this::readBlock);
+            ord = -1;
+        }
+        term = block.terms.get(spare, ord);
+        return true;
+    }
+
+    /**
+     * Visits every term of the segments once, in order, with its df in the whole index. The ords given to the
+     * visitor (and the postings they point to) are only valid during the visit, which happens on the calling
+     * thread. Returns the number of terms visited.
+     */
+    static long merge(List<SegmentTerms> segments, TermVisitor visitor) throws IOException {
+        try {
+            PriorityQueue<SegmentTerms> queue = new PriorityQueue<>();
+            for (SegmentTerms segment : segments) {
+                if (segment.next()) {
+                    queue.add(segment);
+                }
+            }
+
+            SegmentTerms[] holders = new SegmentTerms[segments.size()];
+            int[] ords = new int[segments.size()];
+            long numTerms = 0;
+            while (!queue.isEmpty()) {
+                /* Ties are popped by segment, so the postings are visited by increasing document */
+                SegmentTerms first = queue.poll();
+                int count = 0;
+                int df = 0;
+                SegmentTerms segment = first;
+                while (true) {
+                    holders[count] = segment;
+                    ords[count++] = segment.ord;
+                    df += segment.block.dfs[segment.ord];
+                    if (queue.isEmpty() || !queue.peek().term.bytesEquals(first.term)) {
+                        break;
+                    }
+                    segment = queue.poll();
+                }
+                visitor.visit(first.term, df, holders, ords, count);
+                numTerms++;
+
+                for (int i=0; i<count; i++) {
+                    if (holders[i].next()) {
+                        queue.add(holders[i]);
+                    }
+                }
+            }
+            return numTerms;
+        } finally {
+            // blocks still being read must not outlive the reader
+            for (SegmentTerms segment : segments) {
+                if (segment.nextBlock != null) {
+                    segment.nextBlock.quietlyJoin();
+                }
+            }
+        }
+    }
+
+    /* Total frequency of the term in the segment */
+    long getTotalTermFreq(int ord) {
+        return block.ttfs[ord];
+    }
+
+    int getStart(int ord) {
+        return block.starts[ord];
+    }
+
+    int getEnd(int ord) {
+        return block.starts[ord + 1];
+    }
+
+    int getDoc(int i) {
+        return block.docs[i];
+    }
+
+    int getFreq(int i) {
+        return block.freqs[i];
+    }
+
+    /* Ordered by the current term and then by segment */
+    @Override
+    public int compareTo(SegmentTerms other) {
+        int cmp = term.compareTo(other.term);
+        return cmp != 0 ? cmp : Integer.compare(index, other.index);
+    }
+}
@@ -1,158 +1,375 @@
 package es.udc.fic.ri.mri_indexer;
 
-import org.apache.commons.math3.linear.ArrayRealVector;
-import org.apache.commons.math3.linear.RealVector;
 import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.FixedBitSet;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.nio.file.Paths;
 import java.util.*;
 
-class TermSimilarity {
-    private String name;
-    private Double similarity;
+public class SimilarTerms implements IndexQuery {
 
-    public TermSimilarity(String name, Double similarity) {
-        this.name = name;
-        this.similarity = similarity;
-    }
+    private static final String USAGE = "java es.udc.fic.ri.mri_indexer.SimilarTerms"
+            + " [-index INDEX_PATH] [-field FIELD] [-term TERM] [-top N] [-rep [bin,tf,tfxidf]]"
+            + " [-mode [full,query,projected,approx]] [-dims D] [-projectionSeed SEED] [-tables L] [-bits B]"
+            + " [-probes P]\n\n";
 
-    public String getName() { return name; }
-    public Double getSimilarity() { return similarity; }
-}
+    static final int DEFAULT_DIMS = 256;
+    static final long DEFAULT_PROJECTION_SEED = 1;
+    static final int DEFAULT_TABLES = 16;
+    static final int DEFAULT_BITS = 8;
+    static final int DEFAULT_PROBES = 2;
 
-public class SimilarTerms {
+    private String indexPath = null;
+    private String fieldName = null;
+    private String termName = null;
+    private int top = -1;
+    private String rep = null;
+    private String mode = "full";
+    private int dims = DEFAULT_DIMS;
+    private long projectionSeed = DEFAULT_PROJECTION_SEED;
+    private int tables = DEFAULT_TABLES;
+    private int bits = DEFAULT_BITS;
+    private int probes = DEFAULT_PROBES;
 
     private SimilarTerms() { }
 
-    public static void main(String[] args) {
-        String usage = "java es.udc.fic.ri.mri_indexer.SimilarTerms"
-                + " [-index INDEX_PATH] [-field FIELD] [-term TERM] [-top N] [-rep [bin,tf,tfxidf]]\n\n";
-
-        String indexPath = null;
-        String fieldName = null;
-        String termName = null;
-        int top = -1;
-        String rep = null;
-
-        Directory dir = null;
-        IndexReader indexReader = null;
-
+    /**
+     * Parses the arguments of the tool, throwing an IllegalArgumentException with the message to show if they
+     * are wrong. The index is only required when needsIndex is set.
+     */
+    static SimilarTerms parse(String[] args, boolean needsIndex) {
+        SimilarTerms query = new SimilarTerms();
         for (int i=0; i<args.length; i++) {
             if ("-index".equals(args[i])) {
-                indexPath = args[++i];
+                query.indexPath = args[++i];
             } else if ("-field".equals(args[i])) {
-                fieldName = args[++i];
+                query.fieldName = args[++i];
             } else if ("-term".equals(args[i])) {
-                termName = args[++i];
+                query.termName = args[++i];
             } else if ("-top".equals(args[i])) {
-                top = Integer.parseInt(args[++i]);
+                query.top = Integer.parseInt(args[++i]);
             } else if ("-rep".equals(args[i])) {
-                rep = args[++i];
+                query.rep = args[++i];
+            } else if ("-mode".equals(args[i])) {
+                query.mode = args[++i];
+            } else if ("-dims".equals(args[i])) {
+                query.dims = Integer.parseInt(args[++i]);
+            } else if ("-projectionSeed".equals(args[i])) {
+                query.projectionSeed = Long.parseLong(args[++i]);
+            } else if ("-tables".equals(args[i])) {
+                query.tables = Integer.parseInt(args[++i]);
+            } else if ("-bits".equals(args[i])) {
+                query.bits = Integer.parseInt(args[++i]);
+            } else if ("-probes".equals(args[i])) {
+                query.probes = Integer.parseInt(args[++i]);
             }
         }
 
-        if (indexPath == null || fieldName == null || termName == null || rep == null) {
-            System.err.println(usage);
-            System.exit(-1);
-        } else if (!(rep.equals("bin") || rep.equals("tf") || rep.equals("tfxidf"))) {
-            System.err.println("Unknown rep: " + rep);
-            System.exit(-1);
-        } else if (top < 0) {
-            System.err.println("top must be positive: " + top);
+        if ((needsIndex && query.indexPath == null) || query.fieldName == null || query.termName == null
+                || query.rep == null) {
+            throw new IllegalArgumentException(USAGE);
+        } else if (!(query.rep.equals("bin") || query.rep.equals("tf") || query.rep.equals("tfxidf"))) {
+            throw new IllegalArgumentException("Unknown rep: " + query.rep);
+        } else if (query.top < 0) {
+            throw new IllegalArgumentException("top must be positive: " + query.top);
+        } else if (!(query.mode.equals("full") || query.mode.equals("query") || query.mode.equals("projected")
+                || query.mode.equals("approx"))) {
+            throw new IllegalArgumentException("Unknown mode: " + query.mode);
+        } else if (query.dims < 1) {
+            throw new IllegalArgumentException("dims must be greater than 0: " + query.dims);
+        } else if (query.tables < 1) {
+            throw new IllegalArgumentException("tables must be greater than 0: " + query.tables);
+        } else if (query.bits < 1 || query.bits > 30) {
+            throw new IllegalArgumentException("bits must be between 1 and 30: " + query.bits);
+        } else if (query.probes < 0) {
+            throw new IllegalArgumentException("probes must be positive: " + query.probes);
+        }
+        return query;
+    }
+
+    public static void main(String[] args) {
+        SimilarTerms query = null;
+        try {
+            query = parse(args, true);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
             System.exit(-1);
         }
 
+        Directory dir = null;
+        DirectoryReader indexReader = null;
+
         Date start = new Date();
-        label : try {
-            dir = FSDirectory.open(Paths.get(indexPath));
+        try {
+            dir = FSDirectory.open(Paths.get(query.indexPath));
             indexReader = DirectoryReader.open(dir);
-            int numDocs = indexReader.numDocs();
+            query.run(indexReader, System.out, System.err);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (indexReader != null) {
+                    indexReader.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            try {
+                if (dir != null) {
+                    dir.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        Date end = new Date();
+        System.out.println("\n" + (end.getTime() - start.getTime()) + " total milliseconds");
+    }
 
-            Map<String, RealVector> vectors = new LinkedHashMap<>();
+    @Override
+    public void run(DirectoryReader indexReader, PrintStream out, PrintStream err) throws IOException {
+        List<TermSimilarity> rankingTerms;
+        if (mode.equals("projected") || mode.equals("approx")) {
+            TermNorms norms = TermNorms.open(indexReader, fieldName, rep);
+            TermEmbeddings embeddings = TermEmbeddings.open(indexReader, norms, fieldName, rep, dims, projectionSeed);
+            TermLsh lsh = mode.equals("approx")
+                    ? TermLsh.open(indexReader, norms, embeddings, fieldName, rep, tables, bits, projectionSeed)
+                    : null;
+            rankingTerms = getSimilarTerms(norms, embeddings, lsh, probes, termName, top);
+        } else if (mode.equals("query") && hasTermVectors(indexReader, fieldName)) {
+            TermNorms norms = TermNorms.open(indexReader, fieldName, rep);
+            rankingTerms = getSimilarTerms(indexReader, norms, fieldName, termName, rep, top);
+        } else {
+            if (mode.equals("query")) {
+                err.println("No term vectors for field '" + fieldName + "', scoring the whole vocabulary");
+            }
+            rankingTerms = getSimilarTerms(getTermVectors(indexReader, fieldName, rep), termName, top);
+        }
+        if (rankingTerms == null) {
+            err.println("Term not found in the collection: " + termName);
+            return;
+        }
 
+        /* Print result */
+        out.printf("Top %d similar terms to %s%n%n", top, termName);
+        out.printf("%-20s%-10s%n", "TERM", "SIMILARITY");
 
-            /* Get the vector of each term */
-            final Terms terms = MultiTerms.getTerms(indexReader, fieldName);
-            if (terms != null) {
-                final TermsEnum termsEnum = terms.iterator();
+        for (TermSimilarity term : rankingTerms) {
+            out.printf("%-20s%-10f%n", term.getName(), term.getSimilarity());
+        }
+    }
+
+    @Override
+    public String getCacheKey() {
+        return String.join(" ", "SimilarTerms", fieldName, termName, rep, Integer.toString(top), mode,
+                Integer.toString(dims), Long.toString(projectionSeed), Integer.toString(tables),
+                Integer.toString(bits), Integer.toString(probes));
+    }
 
-                while (termsEnum.next() != null) {
-                    BytesRef term = termsEnum.term();
-                    String text = term.utf8ToString();
+    /**
+     * Returns the vector of each term of the field, with a dimension per document weighted as given in rep. Only
+     * the documents holding the term are kept in its vector.
+     */
+    static TermMatrix getTermVectors(IndexReader indexReader, String fieldName, String rep) throws IOException {
+        int numDocs = indexReader.numDocs();
+        TermMatrix vectors = new TermMatrix();
 
-                    PostingsEnum posting = MultiTerms.getTermPostingsEnum(indexReader, fieldName, term);
+        /* Get the vector of each term, reading the segments in parallel */
+        SegmentTerms.merge(SegmentTerms.open(indexReader, fieldName, true), (term, df, segments, ords, count) -> {
+            vectors.startTerm(term);
+            for (int i=0; i<count; i++) {
+                SegmentTerms segment = segments[i];
+                for (int j=segment.getStart(ords[i]); j<segment.getEnd(ords[i]); j++) {
+                    vectors.addEntry(segment.getDoc(j), getWeight(rep, segment.getFreq(j), df, numDocs));
+                }
+            }
+            vectors.finishTerm();
+        });
+        return vectors;
+    }
+
+    /**
+     * Returns the top terms sorted by their cosine similarity to the one given, which is left out of the ranking,
+     * or null if the term is not found.
+     */
+    static List<TermSimilarity> getSimilarTerms(TermMatrix vectors, String termName, int top) {
+        int termOrd = vectors.getOrd(termName);
+        if (termOrd < 0) {
+            return null;
+        }
+
+        /* Calculate similarities against our term */
+        TopTerms topTerms = new TopTerms(top);
+        for (int ord=0; ord<vectors.size(); ord++) {
+            if (ord != termOrd) {
+                topTerms.insert(ord, vectors.getCosineSimilarity(termOrd, ord));
+            }
+        }
+
+        int[] ords = topTerms.sort();
+        List<TermSimilarity> rankingTerms = new ArrayList<>(ords.length);
+        for (int i=0; i<ords.length; i++) {
+            rankingTerms.add(new TermSimilarity(vectors.getTerm(ords[i]), topTerms.getScore(i)));
+        }
+        return rankingTerms;
+    }
+
+    /**
+     * Returns the vectors of the given terms only, with the same weights as the whole matrix.
+     */
+    static TermMatrix getTermVectors(IndexReader indexReader, String fieldName, String rep,
+                                     List<TermSimilarity> rankingTerms) throws IOException {
+        int numDocs = indexReader.numDocs();
+        TermMatrix vectors = new TermMatrix();
+        for (TermSimilarity term : rankingTerms) {
+            BytesRef bytes = new BytesRef(term.getName());
+            int df = indexReader.docFreq(new Term(fieldName, bytes));
+            vectors.startTerm(bytes);
+            for (LeafReaderContext leaf : indexReader.leaves()) {
+                Terms terms = leaf.reader().terms(fieldName);
+                TermsEnum termsEnum = terms == null ? null : terms.iterator();
+                if (termsEnum != null && termsEnum.seekExact(bytes)) {
+                    PostingsEnum posting = termsEnum.postings(null, PostingsEnum.FREQS);
                     int id;
                     while ((id = posting.nextDoc()) != PostingsEnum.NO_MORE_DOCS) {
-                        if (vectors.containsKey(text)) {
-                            vectors.get(text).setEntry(id, rep.equals("bin") ? 1 :
-                                    rep.equals("tf") ? posting.freq() : posting.freq()*Math.log10((double) numDocs / termsEnum.docFreq()));
-                        } else {
-                            RealVector v = new ArrayRealVector(numDocs);
-                            v.setEntry(id, rep.equals("bin") ? 1 : rep.equals("tf") ? posting.freq() :
-                                    posting.freq() * Math.log10((double) numDocs / termsEnum.docFreq()));
-                            vectors.put(text, v);
-                        }
+                        vectors.addEntry(leaf.docBase + id, getWeight(rep, posting.freq(), df, numDocs));
                     }
                 }
             }
+            vectors.finishTerm();
+        }
+        return vectors;
+    }
 
-            if (!vectors.containsKey(termName)) {
-                System.err.println("Term not found in the collection: " + termName);
-                break label;
-            }
+    /* Whether the documents of the field keep term vectors, needed to score by query */
+    static boolean hasTermVectors(IndexReader indexReader, String fieldName) {
+        FieldInfo info = FieldInfos.getMergedFieldInfos(indexReader).fieldInfo(fieldName);
+        return info != null && info.hasVectors();
+    }
 
-            /* Calculate similarities against our term */
-            RealVector termVector = vectors.get(termName);
-            vectors.remove(termName);
+    /**
+     * Returns the top terms sorted by their cosine similarity to the one given, or null if the term is not found.
+     * Only the terms sharing a document with it can have a similarity above 0, so instead of building the whole
+     * matrix the postings of the term are walked and, for each of its documents, the term vector of the document
+     * adds to the dot product of every term in it. The df and norm of those terms come from the precomputed
+     * norms. Unlike the whole matrix, terms without any document in common are left out of the ranking.
+     */
+    static List<TermSimilarity> getSimilarTerms(IndexReader indexReader, TermNorms norms, String fieldName,
+                                                String termName, String rep, int top) throws IOException {
+        int numDocs = norms.getNumDocs();
+        BytesRef query = new BytesRef(termName);
+        int queryOrd = norms.find(query);
+        if (queryOrd < 0) {
+            return null;
+        }
+        int queryDf = norms.getDf(queryOrd);
 
-            List<TermSimilarity> rankingTerms = new LinkedList<>();
-            for (Map.Entry<String, RealVector> entry : vectors.entrySet()) {
-                String text = entry.getKey();
-                rankingTerms.add(new TermSimilarity(text, getCosineSimilarity(termVector, entry.getValue())));
-            }
+        /* Dot product of each co-occurring term with the query, accumulated by the ordinal of the term */
+        BytesRefHash candidates = new BytesRefHash();
+        double[] dots = new double[16];
+        int[] ords = new int[16];
 
-            /* Sort and print result */
-            rankingTerms.sort(Comparator.comparingDouble(TermSimilarity::getSimilarity).reversed());
+        for (LeafReaderContext leaf : indexReader.leaves()) {
+            Terms terms = leaf.reader().terms(fieldName);
+            TermsEnum termsEnum = terms == null ? null : terms.iterator();
+            if (termsEnum == null || !termsEnum.seekExact(query)) {
+                continue;
+            }
 
-            System.out.printf("Top %d similar terms to %s%n%n", top, termName);
-            System.out.printf("%-20s%-10s%n", "TERM", "SIMILARITY");
+            PostingsEnum posting = termsEnum.postings(null, PostingsEnum.FREQS);
+            int id;
+            while ((id = posting.nextDoc()) != PostingsEnum.NO_MORE_DOCS) {
+                double queryWeight = getWeight(rep, posting.freq(), queryDf, numDocs);
+                Terms vector = leaf.reader().getTermVector(id, fieldName);
+                if (vector == null) {
+                    continue;
+                }
+                TermsEnum vectorEnum = vector.iterator();
+                BytesRef term;
+                while ((term = vectorEnum.next()) != null) {
+                    int candidate = candidates.add(term);
+                    if (candidate >= 0) {
+                        dots = ArrayUtil.grow(dots, candidate + 1);
+                        ords = ArrayUtil.grow(ords, candidate + 1);
+                        ords[candidate] = norms.find(term);
+                    } else {
+                        candidate = -candidate - 1;
+                    }
+                    int df = norms.getDf(ords[candidate]);
+                    dots[candidate] += queryWeight * getWeight(rep, (int) vectorEnum.totalTermFreq(), df, numDocs);
+                }
+            }
+        }
 
-            int n = Math.min(top, rankingTerms.size());
-            for (int i=0; i<n; i++) {
-                TermSimilarity term = rankingTerms.get(i);
-                System.out.printf("%-20s%-10f%n", term.getName(), term.getSimilarity());
+        /* The ordinals follow the order of the terms, so ties are broken as with the whole matrix */
+        double queryNorm = norms.getNorm(queryOrd);
+        TopTerms topTerms = new TopTerms(top);
+        for (int candidate=0; candidate<candidates.size(); candidate++) {
+            int ord = ords[candidate];
+            if (ord != queryOrd) {
+                double similarity = dots[candidate] / (queryNorm * norms.getNorm(ord));
+                topTerms.insert(ord, Double.isNaN(similarity) ? 0.0 : similarity);
             }
+        }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                if (indexReader != null) {
-                    indexReader.close();
+        int[] winners = topTerms.sort();
+        List<TermSimilarity> rankingTerms = new ArrayList<>(winners.length);
+        for (int i=0; i<winners.length; i++) {
+            rankingTerms.add(new TermSimilarity(norms.getTerm(winners[i]), topTerms.getScore(i)));
+        }
+        return rankingTerms;
+    }
+
+    /**
+     * Returns the top terms sorted by the cosine of their projected vectors with the one of the term given, or null
+     * if the term is not found. It approximates the ranking of the whole matrix at the cost of the dimensions of
+     * the projection per term. If lsh is given only the candidates it finds with the given probes are scored.
+     */
+    static List<TermSimilarity> getSimilarTerms(TermNorms norms, TermEmbeddings embeddings, TermLsh lsh, int probes,
+                                                String termName, int top) {
+        int queryOrd = norms.find(new BytesRef(termName));
+        if (queryOrd < 0) {
+            return null;
+        }
+
+        float[] query = embeddings.getVector(queryOrd);
+        TopTerms topTerms = new TopTerms(top);
+        if (lsh == null) {
+            for (int ord=0; ord<embeddings.size(); ord++) {
+                if (ord != queryOrd) {
+                    topTerms.insert(ord, embeddings.getSimilarity(query, ord));
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
             }
-            try {
-                if (dir != null) {
-                    dir.close();
+        } else {
+            FixedBitSet candidates = lsh.getCandidates(query, probes);
+            for (int ord=candidates.nextSetBit(0); ord!=DocIdSetIterator.NO_MORE_DOCS;
+                 ord=ord+1<candidates.length() ? candidates.nextSetBit(ord + 1) : DocIdSetIterator.NO_MORE_DOCS) {
+                if (ord != queryOrd) {
+                    topTerms.insert(ord, embeddings.getSimilarity(query, ord));
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
             }
         }
 
-        Date end = new Date();
-        System.out.println("\n" + (end.getTime() - start.getTime()) + " total milliseconds");
+        int[] winners = topTerms.sort();
+        List<TermSimilarity> rankingTerms = new ArrayList<>(winners.length);
+        for (int i=0; i<winners.length; i++) {
+            rankingTerms.add(new TermSimilarity(norms.getTerm(winners[i]), topTerms.getScore(i)));
+        }
+        return rankingTerms;
     }
 
-    private static double getCosineSimilarity(RealVector v1, RealVector v2) {
-        double out = (v1.dotProduct(v2)) / (v1.getNorm() * v2.getNorm());
-        return Double.isNaN(out) ? 0.0 : out;
+    /* Weight of a term in a document for the given representation */
+    static double getWeight(String rep, int freq, int df, int numDocs) {
+        return rep.equals("bin") ? 1 : rep.equals("tf") ? freq : freq * Math.log10((double) numDocs / df);
     }
 
 }
\ No newline at end of file
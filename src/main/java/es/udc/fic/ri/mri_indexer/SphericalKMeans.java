@@ -0,0 +1,207 @@
+package es.udc.fic.ri.mri_indexer;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Spherical k-means over rows of a TermMatrix, which groups the vectors by cosine similarity: the vectors are
+ * scaled to unit length, each one is assigned to the centroid with the highest dot product and the centroids are
+ * the normalized sums of their vectors. The documents of the vectors are renumbered to the ones present in any of
+ * them, so the centroids take k x (documents in use) instead of k x (documents in the index), and every step
+ * costs the number of entries of the vectors times k.
+ *
+ * The first centroids are chosen with k-means++ from a seeded Random, so a run is repeated exactly with the same
+ * seed. The assignment step runs in parallel in the common ForkJoinPool. It stops when no vector changes its
+ * cluster, when the sum of the similarities of the vectors to their centroids improves less than tolerance
+ * (relative to it) or after maxIterations.
+ */
+class SphericalKMeans {
+
+    private final int k;
+    private final int maxIterations;
+    private final double tolerance;
+    private final long seed;
+    private int iterations = 0;
+
+    SphericalKMeans(int k, int maxIterations, double tolerance, long seed) {
+        this.k = k;
+        this.maxIterations = maxIterations;
+        this.tolerance = tolerance;
+        this.seed = seed;
+    }
+
+    /**
+     * Groups the vectors of the given terms, returning the cluster of each of them. Clusters are numbered in the
+     * order they were seeded, and there are less than k of them if there are not k different vectors.
+     */
+    int[] cluster(TermMatrix vectors, int[] ords) {
+        int n = ords.length;
+        int[] starts = new int[n + 1];
+        for (int i=0; i<n; i++) {
+            starts[i + 1] = starts[i] + vectors.getDocs(ords[i]).length;
+        }
+
+        /* Documents in use, sorted, whose positions are the dimensions of the vectors */
+        int[] space = new int[starts[n]];
+        for (int i=0; i<n; i++) {
+            int[] docs = vectors.getDocs(ords[i]);
+            System.arraycopy(docs, 0, space, starts[i], docs.length);
+        }
+        Arrays.sort(space);
+        int numDims = 0;
+        for (int i=0; i<space.length; i++) {
+            if (i == 0 || space[i] != space[i - 1]) {
+                space[numDims++] = space[i];
+            }
+        }
+
+        int[] dims = new int[starts[n]];
+        double[] values = new double[starts[n]];
+        for (int i=0; i<n; i++) {
+            int[] docs = vectors.getDocs(ords[i]);
+            double[] weights = vectors.getWeights(ords[i]);
+            double norm = vectors.getNorm(ords[i]);
+            for (int j=0; j<docs.length; j++) {
+                dims[starts[i] + j] = Arrays.binarySearch(space, 0, numDims, docs[j]);
+                values[starts[i] + j] = norm == 0 ? 0 : weights[j] / norm;
+            }
+        }
+
+        double[][] centroids = seed(starts, dims, values, numDims);
+        int numClusters = centroids.length;
+
+        int[] assignments = new int[n];
+        Arrays.fill(assignments, -1);
+        double[] similarities = new double[n];
+        double previous = Double.NEGATIVE_INFINITY;
+        iterations = 0;
+        while (iterations < maxIterations) {
+            /* Each vector only reads the centroids, so they can be assigned in any order */
+            int[] next = new int[n];
+            IntStream.range(0, n).parallel().forEach(i -> {
+                int best = 0;
+                double bestSimilarity = Double.NEGATIVE_INFINITY;
+                for (int c=0; c<numClusters; c++) {
+                    double similarity = dot(centroids[c], starts, dims, values, i);
+                    if (similarity > bestSimilarity) {
+                        best = c;
+                        bestSimilarity = similarity;
+                    }
+                }
+                next[i] = best;
+                similarities[i] = bestSimilarity;
+            });
+            iterations++;
+
+            boolean changed = !Arrays.equals(assignments, next);
+            assignments = next;
+            double objective = 0;
+            for (int i=0; i<n; i++) {
+                objective += similarities[i];
+            }
+            if (!changed || objective - previous <= tolerance * Math.abs(objective)) {
+                break;
+            }
+            previous = objective;
+
+            /* A cluster left without vectors keeps its centroid */
+            double[][] sums = new double[numClusters][];
+            for (int i=0; i<n; i++) {
+                int c = assignments[i];
+                if (sums[c] == null) {
+                    sums[c] = new double[numDims];
+                }
+                for (int j=starts[i]; j<starts[i + 1]; j++) {
+                    sums[c][dims[j]] += values[j];
+                }
+            }
+            for (int c=0; c<numClusters; c++) {
+                if (sums[c] != null) {
+                    normalize(sums[c]);
+                    centroids[c] = sums[c];
+                }
+            }
+        }
+        return assignments;
+    }
+
+    /* Number of assignment steps of the last run */
+    int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Chooses the first centroids with k-means++: the first vector at random, and each of the next ones with a
+     * probability proportional to its squared distance to the nearest centroid chosen, 2 - 2 cos for unit vectors.
+     */
+    private double[][] seed(int[] starts, int[] dims, double[] values, int numDims) {
+        int n = starts.length - 1;
+        if (n == 0 || k < 1) {
+            return new double[0][];
+        }
+
+        Random random = new Random(seed);
+        double[][] centroids = new double[Math.min(k, n)][];
+        centroids[0] = toDense(starts, dims, values, numDims, random.nextInt(n));
+        double[] distances = new double[n];
+        Arrays.fill(distances, Double.POSITIVE_INFINITY);
+
+        int numCentroids = 1;
+        while (numCentroids < centroids.length) {
+            double total = 0;
+            for (int i=0; i<n; i++) {
+                double distance = Math.max(0, 2 - 2 * dot(centroids[numCentroids - 1], starts, dims, values, i));
+                distances[i] = Math.min(distances[i], distance);
+                total += distances[i];
+            }
+            if (total <= 0) {
+                break;
+            }
+
+            double target = random.nextDouble() * total;
+            /* Falls back to the last candidate if rounding leaves the target above the sum */
+            int chosen = -1;
+            for (int i=0; i<n; i++) {
+                if (distances[i] > 0) {
+                    chosen = i;
+                    target -= distances[i];
+                    if (target < 0) {
+                        break;
+                    }
+                }
+            }
+            centroids[numCentroids++] = toDense(starts, dims, values, numDims, chosen);
+        }
+        return Arrays.copyOf(centroids, numCentroids);
+    }
+
+    private static double[] toDense(int[] starts, int[] dims, double[] values, int numDims, int i) {
+        double[] vector = new double[numDims];
+        for (int j=starts[i]; j<starts[i + 1]; j++) {
+            vector[dims[j]] = values[j];
+        }
+        return vector;
+    }
+
+    private static double dot(double[] centroid, int[] starts, int[] dims, double[] values, int i) {
+        double dot = 0;
+        for (int j=starts[i]; j<starts[i + 1]; j++) {
+            dot += centroid[dims[j]] * values[j];
+        }
+        return dot;
+    }
+
+    private static void normalize(double[] vector) {
+        double sum = 0;
+        for (double value : vector) {
+            sum += value * value;
+        }
+        double norm = Math.sqrt(sum);
+        if (norm > 0) {
+            for (int i=0; i<vector.length; i++) {
+                vector[i] /= norm;
+            }
+        }
+    }
+}
@@ -3,58 +3,106 @@ package es.udc.fic.ri.mri_indexer;
 import java.io.*;
 
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.search.CollectionStatistics;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefArray;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.Counter;
 
-public class StatsField {
-	public static void main(String[] args) throws IOException {
-		String usage = "java org.apache.lucene.demo.IndexFiles"
-	            + " [-index INDEX_PATH] [-field FIELD_NAME]";
-		 
-		String indexPath = null;
-		String field = null;
+/**
+ * Shows the statistics of the fields of the collection. With -terms it also walks the terms of each field once,
+ * several fields at a time, counting them in histograms of df and ttf and ranking the top terms by both.
+ */
+public class StatsField implements IndexQuery {
 
-		Directory dir = null;
-		DirectoryReader reader = null;
-		IndexSearcher searcher = null;
+	private static final String USAGE = "java org.apache.lucene.demo.IndexFiles"
+			+ " [-index INDEX_PATH] [-field FIELD_NAME] [-terms] [-top N] [-format text|jsonl] [-numThreads N]";
 
+	private String indexPath = null;
+	private String field = null;
+	private boolean terms = false;
+	private int top = 10;
+	private String format = "text";
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	private StatsField() { }
+
+	/**
+	 * Parses the arguments of the tool, throwing an IllegalArgumentException with the message to show if they
+	 * are wrong. The index is only required when needsIndex is set.
+	 */
+	static StatsField parse(String[] args, boolean needsIndex) {
+		StatsField query = new StatsField();
 		for (int i=0; i<args.length; i++) {
-			 if ("-index".equals(args[i])) {
-	             indexPath = args[++i];
-	         } else if ("-field".equals(args[i])){
-	        	 field = args[++i];
-	         }
+			if ("-index".equals(args[i])) {
+				query.indexPath = args[++i];
+			} else if ("-field".equals(args[i])){
+				query.field = args[++i];
+			} else if ("-terms".equals(args[i])) {
+				query.terms = true;
+			} else if ("-top".equals(args[i])) {
+				query.top = Integer.parseInt(args[++i]);
+			} else if ("-format".equals(args[i])) {
+				query.format = args[++i];
+			} else if ("-numThreads".equals(args[i])) {
+				query.numThreads = Integer.parseInt(args[++i]);
+			}
 		}
 
-		if (indexPath == null) {
-			System.err.println(usage);
+		if (needsIndex && query.indexPath == null) {
+			throw new IllegalArgumentException(USAGE);
+		} else if (!query.format.equals("text") && !query.format.equals("jsonl")) {
+			throw new IllegalArgumentException("format must be text or jsonl: " + query.format);
+		} else if (query.top < 0) {
+			throw new IllegalArgumentException("top must be positive: " + query.top);
+		} else if (query.numThreads < 1) {
+			throw new IllegalArgumentException("numThreads must be greater than 0: " + query.numThreads);
+		}
+		return query;
+	}
+
+	@Override
+	public String getCacheKey() {
+		/* Only the walk over the terms is worth keeping */
+		return terms ? "StatsField " + field + " " + top + " " + format : null;
+	}
+
+	public static void main(String[] args) throws IOException {
+		StatsField query = null;
+		try {
+			query = parse(args, true);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
 			System.exit(-1);
 		}
 
+		Directory dir = null;
+		DirectoryReader reader = null;
+
 		Date start = new Date();
 		try {
-			dir = FSDirectory.open(Paths.get(indexPath));
-			reader = DirectoryReader.open(FSDirectory.open(Paths.get(indexPath)));
-			searcher = new IndexSearcher(reader);
-
-			if (field == null) { // returns stats of all index terms
-				FieldInfos fieldInfos = FieldInfos.getMergedFieldInfos(reader);
-				for (final FieldInfo fieldInfo : fieldInfos) {
-					CollectionStatistics fieldStats = searcher.collectionStatistics(fieldInfo.name);
-					printStatistics(fieldInfo.name, fieldStats);
-				}
-			} else {
-				CollectionStatistics fieldStats = searcher.collectionStatistics(field);
-				printStatistics(field, fieldStats);
-			}
+			dir = FSDirectory.open(Paths.get(query.indexPath));
+			reader = DirectoryReader.open(FSDirectory.open(Paths.get(query.indexPath)));
+			query.run(reader, System.out, System.err);
 		} catch (CorruptIndexException e1) {
 			System.out.println("Graceful message: exception " + e1);
 			e1.printStackTrace();
@@ -82,12 +130,261 @@ public class StatsField {
 		System.out.println(end.getTime() - start.getTime() + " total milliseconds");
 	}
 
-	private static void printStatistics(String field, CollectionStatistics statistics) {
-		System.out.printf("%-20s%-20s%n", "FIELD", field);
-		System.out.printf("%-20s%-20d%n", "MAX_DOC", statistics == null ? -1 : statistics.maxDoc());
-		System.out.printf("%-20s%-20d%n", "SUM_DOC_FREQ", statistics == null ? -1 : statistics.sumDocFreq());
-		System.out.printf("%-20s%-20d%n", "SUM_TOTAL_TERM_FREQ", statistics == null ? -1 : statistics.sumTotalTermFreq());
-		System.out.printf("%-20s%-20d%n%n", "DOC_COUNT", statistics == null ? -1 : statistics.docCount());
+	@Override
+	public void run(DirectoryReader reader, PrintStream out, PrintStream err) throws IOException {
+		IndexSearcher searcher = new IndexSearcher(reader);
+
+		List<String> fields = new ArrayList<>();
+		if (field == null) { // returns stats of all index terms
+			FieldInfos fieldInfos = FieldInfos.getMergedFieldInfos(reader);
+			for (final FieldInfo fieldInfo : fieldInfos) {
+				fields.add(fieldInfo.name);
+			}
+		} else {
+			fields.add(field);
+		}
+
+		List<FieldStats> stats = new ArrayList<>();
+		if (!terms || numThreads == 1 || fields.size() < 2) {
+			for (String name : fields) {
+				stats.add(getStats(reader, searcher, name));
+			}
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(Math.min(numThreads, fields.size()));
+			try {
+				List<Future<FieldStats>> tasks = new ArrayList<>();
+				for (String name : fields) {
+					tasks.add(executor.submit(() -> getStats(reader, searcher, name)));
+				}
+				for (Future<FieldStats> task : tasks) {
+					stats.add(task.get());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+
+		for (FieldStats fieldStats : stats) {
+			if (format.equals("jsonl")) {
+				printJson(out, fieldStats);
+			} else {
+				printStatistics(out, fieldStats.field, fieldStats.statistics);
+				if (terms) {
+					printTermStatistics(out, fieldStats);
+				}
+			}
+		}
+	}
+
+	/* Walks the merged terms of the field once, if the terms were asked for */
+	private FieldStats getStats(IndexReader reader, IndexSearcher searcher, String name) throws IOException {
+		FieldStats stats = new FieldStats(name, searcher.collectionStatistics(name), top);
+		if (!terms) {
+			return stats;
+		}
+
+		Terms fieldTerms = MultiTerms.getTerms(reader, name);
+		if (fieldTerms != null) {
+			if (fieldTerms.getDocCount() > 0) {
+				stats.avgFieldLength = (double) fieldTerms.getSumTotalTermFreq() / fieldTerms.getDocCount();
+			}
+			TermsEnum termsEnum = fieldTerms.iterator();
+			BytesRef term;
+			while ((term = termsEnum.next()) != null) {
+				int df = termsEnum.docFreq();
+				long ttf = termsEnum.totalTermFreq();
+				stats.numTerms++;
+				stats.dfHistogram[getBucket(df)]++;
+				stats.ttfHistogram[getBucket(ttf)]++;
+				stats.topDf.offer(term, df);
+				stats.topTtf.offer(term, ttf);
+			}
+		}
+		return stats;
+	}
+
+	/* Bucket i of the histograms counts the terms with values in [2^i, 2^(i+1)) */
+	private static int getBucket(long value) {
+		return 63 - Long.numberOfLeadingZeros(Math.max(value, 1));
+	}
+
+	private static void printStatistics(PrintStream out, String field, CollectionStatistics statistics) {
+		out.printf("%-20s%-20s%n", "FIELD", field);
+		out.printf("%-20s%-20d%n", "MAX_DOC", statistics == null ? -1 : statistics.maxDoc());
+		out.printf("%-20s%-20d%n", "SUM_DOC_FREQ", statistics == null ? -1 : statistics.sumDocFreq());
+		out.printf("%-20s%-20d%n", "SUM_TOTAL_TERM_FREQ", statistics == null ? -1 : statistics.sumTotalTermFreq());
+		out.printf("%-20s%-20d%n%n", "DOC_COUNT", statistics == null ? -1 : statistics.docCount());
+	}
+
+	private static void printTermStatistics(PrintStream out, FieldStats stats) {
+		out.printf("%-20s%-20d%n", "NUM_TERMS", stats.numTerms);
+		out.printf("%-20s%-20.2f%n", "AVG_FIELD_LENGTH", stats.avgFieldLength);
+		printHistogram(out, "DF_HISTOGRAM", stats.dfHistogram);
+		printHistogram(out, "TTF_HISTOGRAM", stats.ttfHistogram);
+		printRanking(out, "TOP_DF", stats.topDf);
+		printRanking(out, "TOP_TTF", stats.topTtf);
+		out.println();
+	}
+
+	private static void printHistogram(PrintStream out, String name, long[] histogram) {
+		for (int i=0; i<getLength(histogram); i++) {
+			long min = 1L << i;
+			long max = (1L << i + 1) - 1;
+			out.printf("%-20s%-20s%d%n", i == 0 ? name : "", min == max ? min : min + "-" + max, histogram[i]);
+		}
+	}
+
+	private static void printRanking(PrintStream out, String name, TermRanking ranking) {
+		String[] rankedTerms = ranking.getTerms();
+		for (int i=0; i<rankedTerms.length; i++) {
+			out.printf("%-20s%-20s%d%n", i == 0 ? name : "", rankedTerms[i], ranking.getValue(i));
+		}
+	}
+
+	/* One object per field, in a line */
+	private void printJson(PrintStream out, FieldStats stats) {
+		CollectionStatistics statistics = stats.statistics;
+		StringBuilder json = new StringBuilder();
+		json.append("{\"field\":").append(toJson(stats.field));
+		json.append(",\"maxDoc\":").append(statistics == null ? -1 : statistics.maxDoc());
+		json.append(",\"sumDocFreq\":").append(statistics == null ? -1 : statistics.sumDocFreq());
+		json.append(",\"sumTotalTermFreq\":").append(statistics == null ? -1 : statistics.sumTotalTermFreq());
+		json.append(",\"docCount\":").append(statistics == null ? -1 : statistics.docCount());
+		if (terms) {
+			json.append(",\"numTerms\":").append(stats.numTerms);
+			json.append(",\"avgFieldLength\":").append(stats.avgFieldLength);
+			appendJson(json.append(",\"dfHistogram\":"), stats.dfHistogram);
+			appendJson(json.append(",\"ttfHistogram\":"), stats.ttfHistogram);
+			appendJson(json.append(",\"topDf\":"), stats.topDf, "df");
+			appendJson(json.append(",\"topTtf\":"), stats.topTtf, "ttf");
+		}
+		out.println(json.append('}'));
+	}
+
+	private static void appendJson(StringBuilder json, long[] histogram) {
+		json.append('[');
+		for (int i=0; i<getLength(histogram); i++) {
+			json.append(i == 0 ? "" : ",").append(histogram[i]);
+		}
+		json.append(']');
+	}
+
+	private static void appendJson(StringBuilder json, TermRanking ranking, String name) {
+		String[] rankedTerms = ranking.getTerms();
+		json.append('[');
+		for (int i=0; i<rankedTerms.length; i++) {
+			json.append(i == 0 ? "" : ",").append("{\"term\":").append(toJson(rankedTerms[i]))
+					.append(",\"").append(name).append("\":").append(ranking.getValue(i)).append('}');
+		}
+		json.append(']');
+	}
+
+	private static String toJson(String value) {
+		StringBuilder json = new StringBuilder("\"");
+		for (int i=0; i<value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if (c < 0x20) {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		return json.append('"').toString();
+	}
+
+	/* Number of buckets up to the last one holding terms */
+	private static int getLength(long[] histogram) {
+		int length = histogram.length;
+		while (length > 0 && histogram[length - 1] == 0) {
+			length--;
+		}
+		return length;
+	}
+
+	private static class FieldStats {
+		final String field;
+		final CollectionStatistics statistics;
+		long numTerms = 0;
+		double avgFieldLength = 0;
+		final long[] dfHistogram = new long[64];
+		final long[] ttfHistogram = new long[64];
+		final TermRanking topDf;
+		final TermRanking topTtf;
+
+		FieldStats(String field, CollectionStatistics statistics, int top) {
+			this.field = field;
+			this.statistics = statistics;
+			this.topDf = new TermRanking(top);
+			this.topTtf = new TermRanking(top);
+		}
+	}
+
+	/**
+	 * Top terms by a value, keeping the bytes of the terms which made it into the heap. Those are few when the
+	 * values come in no particular order, and they are compacted to the ones still in the heap if they pile up.
+	 */
+	private static class TermRanking {
+		private final int size;
+		private TopTerms heap;
+		private BytesRefArray heapTerms = new BytesRefArray(Counter.newCounter());
+		private String[] rankedTerms;
+		private long[] rankedValues;
+
+		TermRanking(int size) {
+			this.size = size;
+			this.heap = new TopTerms(size);
+		}
+
+		void offer(BytesRef term, long value) {
+			if (heap.insert(heapTerms.size(), value)) {
+				heapTerms.append(term);
+				if (heapTerms.size() > 64 * size + 1024) {
+					compact();
+				}
+			}
+		}
+
+		/* Renumbers the terms of the heap best first, which keeps their order in the ties */
+		private void compact() {
+			int[] ords = heap.sort();
+			TopTerms compacted = new TopTerms(size);
+			BytesRefArray compactedTerms = new BytesRefArray(Counter.newCounter());
+			BytesRefBuilder spare = new BytesRefBuilder();
+			for (int i=0; i<ords.length; i++) {
+				compacted.insert(i, heap.getScore(i));
+				compactedTerms.append(heapTerms.get(spare, ords[i]));
+			}
+			heap = compacted;
+			heapTerms = compactedTerms;
+		}
+
+		String[] getTerms() {
+			if (rankedTerms == null) {
+				int[] ords = heap.sort();
+				rankedTerms = new String[ords.length];
+				rankedValues = new long[ords.length];
+				BytesRefBuilder spare = new BytesRefBuilder();
+				for (int i=0; i<ords.length; i++) {
+					rankedTerms[i] = heapTerms.get(spare, ords[i]).utf8ToString();
+					rankedValues[i] = (long) heap.getScore(i);
+				}
+			}
+			return rankedTerms;
+		}
+
+		long getValue(int i) {
+			return rankedValues[i];
+		}
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,154 @@
+package es.udc.fic.ri.mri_indexer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Reader which keeps a copy of the text read through it to be stored, so the contents of a file are decoded once
+ * for both the tokens and the stored field. The copy keeps only the first maxChars chars (all of them if -1) and
+ * is deflated as it is read if compress is set, so it never takes more memory than what is stored. Closing the
+ * reader, as the analyzer does once it is done with the text, first reads what is left for the copy, in case the
+ * tokenizer stopped before the end. An error reading it is kept to be thrown when the copy is taken, as the
+ * analyzer can't reuse its tokenizer if closing it fails.
+ */
+class StoredContentsReader extends FilterReader {
+
+    private final char[] buffer = new char[8192];
+    private int left;
+    private final StringBuilder text;
+    private final ByteArrayOutputStream bytes;
+    private final Writer deflater;
+    private boolean finished = false;
+    private IOException failure;
+    private String storedText;
+    private byte[] storedBytes;
+
+    StoredContentsReader(Reader in, int maxChars, boolean compress) {
+        super(in);
+        this.left = maxChars == -1 ? Integer.MAX_VALUE : maxChars;
+        if (compress) {
+            text = null;
+            bytes = new ByteArrayOutputStream();
+            deflater = new OutputStreamWriter(new DeflaterOutputStream(bytes), StandardCharsets.UTF_8);
+        } else {
+            text = new StringBuilder();
+            bytes = null;
+            deflater = null;
+        }
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        int n = in.read(cbuf, off, len);
+        if (n > 0) {
+            copy(cbuf, off, n);
+        }
+        return n;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int c = in.read();
+        if (c != -1 && left > 0) {
+            buffer[0] = (char) c;
+            copy(buffer, 0, 1);
+        }
+        return c;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // skipped chars are still stored
+        long skipped = 0;
+        int read;
+        while (skipped < n && (read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped))) != -1) {
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readAheadLimit) throws IOException {
+        throw new IOException("mark() not supported");
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("reset() not supported");
+    }
+
+    private void copy(char[] cbuf, int off, int n) throws IOException {
+        if (finished || left == 0) {
+            return;
+        }
+        n = Math.min(n, left);
+        if (deflater != null) {
+            deflater.write(cbuf, off, n);
+        } else {
+            text.append(cbuf, off, n);
+        }
+        left -= n;
+    }
+
+    /**
+     * Reads the text the copy still lacks, up to maxChars, and completes the copy. Nothing read afterwards is
+     * stored.
+     */
+    void finish() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (finished) {
+            return;
+        }
+        while (left > 0 && read(buffer, 0, Math.min(buffer.length, left)) != -1) {
+            // read for the copy
+        }
+        if (deflater != null) {
+            deflater.close();
+            storedBytes = bytes.toByteArray();
+        } else {
+            storedText = text.toString();
+        }
+        finished = true;
+    }
+
+    /* The stored copy, or null if it is compressed */
+    String getText() throws IOException {
+        finish();
+        return storedText;
+    }
+
+    /* The compressed stored copy, or null if it is not compressed */
+    byte[] getBytes() throws IOException {
+        finish();
+        return storedBytes;
+    }
+
+    /* Bytes held by the finished copy, to charge it to the batch holding the document */
+    long ramBytesUsed() {
+        return storedText != null ? 2L * storedText.length() : storedBytes != null ? storedBytes.length : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            in.close();
+        }
+    }
+}
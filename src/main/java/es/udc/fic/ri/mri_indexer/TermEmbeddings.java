@@ -0,0 +1,163 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Term vectors of a field projected from a dimension per document into a few dimensions, so the cosine between
+ * two terms costs the number of dimensions instead of the size of their postings. Each document is hashed, with
+ * a seed, into one of the dimensions and a sign, and adds the weight of the term in it with that sign (the
+ * feature hashing of Weinberger et al.). Dot products are kept on average and their error shrinks with the square
+ * root of the number of dimensions. The vectors are scaled to unit length, so their dot product is their cosine.
+ *
+ * The vectors are indexed by the ordinals of the TermNorms of the same field and representation, which give the
+ * terms, and are kept in a side file of the index folder ("termembeddings-FIELD-REP-DIMS-SEED") rebuilt when the
+ * index changes. The file holds a header (magic, generation, number of terms, dimensions and seed) and the
+ * floats of each term one after the other.
+ */
+class TermEmbeddings {
+
+    private static final int MAGIC = 0x454d4231;
+    private static final int HEADER_SIZE = 4 + 8 + 4 + 4 + 8;
+
+    private final ByteBuffer buffer;
+    private final FloatBuffer vectors;
+    private final int numTerms;
+    private final int dims;
+
+    private TermEmbeddings(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.numTerms = buffer.getInt(12);
+        this.dims = buffer.getInt(16);
+        ByteBuffer floats = buffer.duplicate();
+        ((Buffer) floats).position(HEADER_SIZE);
+        this.vectors = floats.slice().asFloatBuffer();
+    }
+
+    /**
+     * Returns the projected vectors of the terms of the norms, loading them from the side file if it is up to date
+     * and building it otherwise. Indexes outside the file system, or whose folder can't be written, get them built
+     * in memory.
+     */
+    static TermEmbeddings open(DirectoryReader reader, TermNorms norms, String fieldName, String rep, int dims,
+                               long seed) throws IOException {
+        long generation = norms.getGeneration();
+        Path file = IndexSideFile.getPath(reader, IndexSideFile.getName("termembeddings", fieldName, rep,
+                Integer.toString(dims), Long.toString(seed)));
+        if (file == null) {
+            return build(reader, norms, fieldName, rep, dims, seed);
+        }
+
+        ByteBuffer buffer = IndexSideFile.map(file, MAGIC, generation);
+        if (buffer != null && buffer.getInt(12) == norms.size() && buffer.getInt(16) == dims
+                && buffer.getLong(20) == seed) {
+            return new TermEmbeddings(buffer);
+        }
+        TermEmbeddings embeddings = build(reader, norms, fieldName, rep, dims, seed);
+        IndexSideFile.write(file, embeddings.buffer);
+        return embeddings;
+    }
+
+    /* Walks every posting of the field, weighted as in SimilarTerms, adding it to the dimension of its document */
+    private static TermEmbeddings build(DirectoryReader reader, TermNorms norms, String fieldName, String rep,
+                                        int dims, long seed) throws IOException {
+        int numTerms = norms.size();
+        int numDocs = norms.getNumDocs();
+        long size = HEADER_SIZE + 4L * numTerms * dims;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Too many terms in field '" + fieldName + "' for " + dims + " dimensions: "
+                    + numTerms);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        buffer.putInt(MAGIC).putLong(norms.getGeneration()).putInt(numTerms).putInt(dims).putLong(seed);
+
+        double[] vector = new double[dims];
+        SegmentTerms.merge(SegmentTerms.open(reader, fieldName, true), (term, df, segments, ords, count) -> {
+            Arrays.fill(vector, 0);
+            for (int i=0; i<count; i++) {
+                SegmentTerms segment = segments[i];
+                for (int j=segment.getStart(ords[i]); j<segment.getEnd(ords[i]); j++) {
+                    long hash = hash(segment.getDoc(j), seed);
+                    double weight = SimilarTerms.getWeight(rep, segment.getFreq(j), df, numDocs);
+                    vector[(int) ((hash >>> 1) % dims)] += (hash & 1) == 0 ? weight : -weight;
+                }
+            }
+
+            double sum = 0;
+            for (double value : vector) {
+                sum += value * value;
+            }
+            double norm = Math.sqrt(sum);
+            for (double value : vector) {
+                buffer.putFloat(norm == 0 ? 0 : (float) (value / norm));
+            }
+        });
+        if (buffer.hasRemaining()) {
+            throw new IOException("The terms of field '" + fieldName + "' changed while projecting them");
+        }
+        ((Buffer) buffer).rewind();
+        return new TermEmbeddings(buffer);
+    }
+
+    /* Mixes the document with the seed, as the finalizer of SplitMix64 */
+    private static long hash(int doc, long seed) {
+        long z = seed + (doc + 1) * 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    int size() {
+        return numTerms;
+    }
+
+    int getDims() {
+        return dims;
+    }
+
+    float[] getVector(int ord) {
+        float[] vector = new float[dims];
+        for (int i=0; i<dims; i++) {
+            vector[i] = vectors.get(ord * dims + i);
+        }
+        return vector;
+    }
+
+    /* Cosine of the given vector, of unit length, with the one of the term */
+    double getSimilarity(float[] vector, int ord) {
+        int start = ord * dims;
+        double dot = 0;
+        for (int i=0; i<dims; i++) {
+            dot += vector[i] * vectors.get(start + i);
+        }
+        return dot;
+    }
+
+    /**
+     * Returns the projected vectors of the given terms as a matrix, whose documents are the dimensions, so they
+     * can be clustered as the full vectors are.
+     */
+    TermMatrix getVectors(TermNorms norms, List<TermSimilarity> rankingTerms) {
+        TermMatrix matrix = new TermMatrix();
+        for (TermSimilarity term : rankingTerms) {
+            BytesRef bytes = new BytesRef(term.getName());
+            float[] vector = getVector(norms.find(bytes));
+            matrix.startTerm(bytes);
+            for (int i=0; i<dims; i++) {
+                if (vector[i] != 0) {
+                    matrix.addEntry(i, vector[i]);
+                }
+            }
+            matrix.finishTerm();
+        }
+        return matrix;
+    }
+}
@@ -0,0 +1,182 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.util.FixedBitSet;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Locality sensitive hashing of the projected term vectors of a field, to find the terms most similar to one
+ * without scoring all of them. Each of the tables hashes a vector into a bucket with the signs of its dot products
+ * with a few random hyperplanes (SimHash), so two vectors fall into the same bucket with a probability which grows
+ * with their cosine. A query takes the terms of its bucket in every table, and also those of the buckets reached
+ * by flipping the bits it is least sure of (multi-probe), which raises the recall at the cost of more candidates.
+ * The candidates are then scored with their projected vectors.
+ *
+ * The tables are kept in a side file of the index folder ("termlsh-FIELD-REP-DIMS-SEED-TABLES-BITS") rebuilt
+ * when the index changes. The file holds a header (magic, generation, number of terms, tables, bits and seed)
+ * and for each table the signatures of the terms sorted, followed by the ordinals of the terms in that order.
+ * The hyperplanes are drawn again from the seed, so they are not stored.
+ */
+class TermLsh {
+
+    private static final int MAGIC = 0x4c534831;
+    private static final int HEADER_SIZE = 4 + 8 + 4 + 4 + 4 + 8;
+
+    private final ByteBuffer buffer;
+    private final IntBuffer tables;
+    private final int numTerms;
+    private final int numTables;
+    private final int bits;
+    private final float[][][] hyperplanes;
+
+    private TermLsh(ByteBuffer buffer, int dims) {
+        this.buffer = buffer;
+        this.numTerms = buffer.getInt(12);
+        this.numTables = buffer.getInt(16);
+        this.bits = buffer.getInt(20);
+        this.hyperplanes = getHyperplanes(numTables, bits, dims, buffer.getLong(24));
+        ByteBuffer ints = buffer.duplicate();
+        ((Buffer) ints).position(HEADER_SIZE);
+        this.tables = ints.slice().asIntBuffer();
+    }
+
+    /**
+     * Returns the tables of the projected vectors, loading them from the side file if it is up to date and
+     * building it otherwise. Indexes outside the file system, or whose folder can't be written, get them built in
+     * memory.
+     */
+    static TermLsh open(DirectoryReader reader, TermNorms norms, TermEmbeddings embeddings, String fieldName,
+                        String rep, int numTables, int bits, long seed) throws IOException {
+        long generation = norms.getGeneration();
+        Path file = IndexSideFile.getPath(reader, IndexSideFile.getName("termlsh", fieldName, rep,
+                Integer.toString(embeddings.getDims()), Long.toString(seed), Integer.toString(numTables),
+                Integer.toString(bits)));
+        if (file == null) {
+            return build(embeddings, generation, numTables, bits, seed);
+        }
+
+        ByteBuffer buffer = IndexSideFile.map(file, MAGIC, generation);
+        if (buffer != null && buffer.getInt(12) == embeddings.size() && buffer.getInt(16) == numTables
+                && buffer.getInt(20) == bits && buffer.getLong(24) == seed) {
+            return new TermLsh(buffer, embeddings.getDims());
+        }
+        TermLsh lsh = build(embeddings, generation, numTables, bits, seed);
+        IndexSideFile.write(file, lsh.buffer);
+        return lsh;
+    }
+
+    private static TermLsh build(TermEmbeddings embeddings, long generation, int numTables, int bits, long seed)
+            throws IOException {
+        int numTerms = embeddings.size();
+        long size = HEADER_SIZE + 8L * numTables * numTerms;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Too many terms for " + numTables + " tables: " + numTerms);
+        }
+        float[][][] hyperplanes = getHyperplanes(numTables, bits, embeddings.getDims(), seed);
+
+        /* Signature and ordinal of each term packed in a long, so sorting them sorts the buckets */
+        long[][] entries = new long[numTables][numTerms];
+        IntStream.range(0, numTerms).parallel().forEach(ord -> {
+            float[] vector = embeddings.getVector(ord);
+            for (int t=0; t<numTables; t++) {
+                entries[t][ord] = (long) getSignature(hyperplanes[t], vector, null) << 32 | ord;
+            }
+        });
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        buffer.putInt(MAGIC).putLong(generation).putInt(numTerms).putInt(numTables).putInt(bits).putLong(seed);
+        for (long[] table : entries) {
+            Arrays.parallelSort(table);
+            for (long entry : table) {
+                buffer.putInt((int) (entry >>> 32));
+            }
+            for (long entry : table) {
+                buffer.putInt((int) entry);
+            }
+        }
+        ((Buffer) buffer).rewind();
+        return new TermLsh(buffer, embeddings.getDims());
+    }
+
+    /* Hyperplanes of each table, with coordinates drawn from a normal distribution */
+    private static float[][][] getHyperplanes(int numTables, int bits, int dims, long seed) {
+        Random random = new Random(seed);
+        float[][][] hyperplanes = new float[numTables][bits][dims];
+        for (float[][] table : hyperplanes) {
+            for (float[] hyperplane : table) {
+                for (int i=0; i<dims; i++) {
+                    hyperplane[i] = (float) random.nextGaussian();
+                }
+            }
+        }
+        return hyperplanes;
+    }
+
+    /* Bit i is set if the vector is on the positive side of hyperplane i. The dot products are left in margins */
+    private static int getSignature(float[][] hyperplanes, float[] vector, double[] margins) {
+        int signature = 0;
+        for (int i=0; i<hyperplanes.length; i++) {
+            double dot = 0;
+            for (int j=0; j<vector.length; j++) {
+                dot += hyperplanes[i][j] * vector[j];
+            }
+            if (dot >= 0) {
+                signature |= 1 << i;
+            }
+            if (margins != null) {
+                margins[i] = Math.abs(dot);
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Returns the terms sharing a bucket with the vector in any table, probing in each table its own bucket and the
+     * ones reached by flipping each of the probes bits whose hyperplanes are closest to the vector.
+     */
+    FixedBitSet getCandidates(float[] vector, int probes) {
+        FixedBitSet candidates = new FixedBitSet(numTerms);
+        double[] margins = new double[bits];
+        Integer[] order = new Integer[bits];
+        for (int t=0; t<numTables; t++) {
+            int signature = getSignature(hyperplanes[t], vector, margins);
+            addBucket(t, signature, candidates);
+
+            for (int i=0; i<bits; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Double.compare(margins[a], margins[b]));
+            for (int p=0; p<Math.min(probes, bits); p++) {
+                addBucket(t, signature ^ (1 << order[p]), candidates);
+            }
+        }
+        return candidates;
+    }
+
+    /* The signatures of a table are sorted, so a bucket is the range found by a binary search */
+    private void addBucket(int table, int signature, FixedBitSet candidates) {
+        int signatures = table * 2 * numTerms;
+        int ords = signatures + numTerms;
+        int low = 0;
+        int high = numTerms;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (tables.get(signatures + mid) < signature) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int i=low; i<numTerms && tables.get(signatures + i) == signature; i++) {
+            candidates.set(tables.get(ords + i));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+
+import java.util.Arrays;
+
+/**
+ * Sparse vector of each term of a field, indexed by the ordinal of the term. The vectors are kept one after the
+ * other in two arrays holding the documents (sorted) and their weights, so the memory used grows with the number
+ * of postings instead of with terms x documents. The norm of each vector is computed when it is finished.
+ * Terms are added in the order of the terms enum, so ordinals follow the order of the terms, and their bytes are
+ * kept in a hash instead of as Strings.
+ */
+class TermMatrix {
+
+    private final BytesRefHash terms = new BytesRefHash();
+    private int[] starts = new int[17];
+    private double[] norms = new double[16];
+    private int[] docs = new int[1024];
+    private double[] weights = new double[1024];
+    private int numEntries = 0;
+
+    /* Starts the vector of the next term, whose entries must be added by increasing document */
+    int startTerm(BytesRef term) {
+        int ord = terms.add(term);
+        starts = ArrayUtil.grow(starts, ord + 2);
+        norms = ArrayUtil.grow(norms, ord + 1);
+        starts[ord] = starts[ord + 1] = numEntries;
+        return ord;
+    }
+
+    void addEntry(int doc, double weight) {
+        if (numEntries == docs.length) {
+            docs = ArrayUtil.grow(docs, numEntries + 1);
+            weights = Arrays.copyOf(weights, docs.length);
+        }
+        docs[numEntries] = doc;
+        weights[numEntries++] = weight;
+    }
+
+    /* Finishes the vector of the last term started, computing its norm */
+    void finishTerm() {
+        int ord = terms.size() - 1;
+        starts[ord + 1] = numEntries;
+        double sum = 0;
+        for (int i=starts[ord]; i<numEntries; i++) {
+            sum += weights[i] * weights[i];
+        }
+        norms[ord] = Math.sqrt(sum);
+    }
+
+    int size() {
+        return terms.size();
+    }
+
+    /* Ordinal of the term, or -1 if it is not in the matrix */
+    int getOrd(String term) {
+        return terms.find(new BytesRef(term));
+    }
+
+    String getTerm(int ord) {
+        return terms.get(ord, new BytesRef()).utf8ToString();
+    }
+
+    double getNorm(int ord) {
+        return norms[ord];
+    }
+
+    /* Documents with an entry in the vector of the term, sorted */
+    int[] getDocs(int ord) {
+        return Arrays.copyOfRange(docs, starts[ord], starts[ord + 1]);
+    }
+
+    /* Weights of the vector of the term, in the order of its documents */
+    double[] getWeights(int ord) {
+        return Arrays.copyOfRange(weights, starts[ord], starts[ord + 1]);
+    }
+
+    /**
+     * Cosine similarity of the vectors of both terms, merging their sorted documents. It is 0 when any of them
+     * is the null vector.
+     */
+    double getCosineSimilarity(int ord1, int ord2) {
+        int i = starts[ord1], end1 = starts[ord1 + 1];
+        int j = starts[ord2], end2 = starts[ord2 + 1];
+        double dot = 0;
+        while (i < end1 && j < end2) {
+            if (docs[i] < docs[j]) {
+                i++;
+            } else if (docs[i] > docs[j]) {
+                j++;
+            } else {
+                dot += weights[i++] * weights[j++];
+            }
+        }
+        double out = dot / (norms[ord1] * norms[ord2]);
+        return Double.isNaN(out) ? 0.0 : out;
+    }
+}
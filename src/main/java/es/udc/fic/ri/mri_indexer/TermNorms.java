@@ -0,0 +1,203 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefArray;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.Counter;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Document frequency and vector norm of every term of a field for a representation, by term ordinal. They are
+ * kept in a side file of the index folder ("termnorms-FIELD-REP"), written the first time they are needed and
+ * memory mapped by the next runs, so similarity queries don't have to walk every posting of the field again.
+ * The file records the generation of the commit it was built from, and it is rebuilt when the index changes
+ * (see IndexSideFile).
+ *
+ * The file holds a header (magic, generation, number of documents and number of terms), the offsets of the
+ * terms, the df and norm of each term and finally the bytes of the terms, sorted as in the index.
+ */
+class TermNorms {
+
+    private static final int MAGIC = 0x4e524d31;
+    private static final int HEADER_SIZE = 4 + 8 + 4 + 4;
+
+    private final ByteBuffer buffer;
+    private final long generation;
+    private final int numDocs;
+    private final int numTerms;
+    private final int entriesStart;
+    private final int bytesStart;
+
+    private TermNorms(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.generation = buffer.getLong(4);
+        this.numDocs = buffer.getInt(12);
+        this.numTerms = buffer.getInt(16);
+        this.entriesStart = HEADER_SIZE + 4 * (numTerms + 1);
+        this.bytesStart = entriesStart + 12 * numTerms;
+    }
+
+    /**
+     * Returns the norms of the field for the commit of the reader, loading them from the side file if it is up to
+     * date and building it otherwise. Indexes outside the file system, or whose folder can't be written, get the
+     * norms built in memory.
+     */
+    static TermNorms open(DirectoryReader reader, String fieldName, String rep) throws IOException {
+        long generation = reader.getIndexCommit().getGeneration();
+        Path file = IndexSideFile.getPath(reader, getFileName(fieldName, rep));
+        if (file == null) {
+            return build(reader, fieldName, rep, generation);
+        }
+
+        ByteBuffer buffer = IndexSideFile.map(file, MAGIC, generation);
+        if (buffer != null) {
+            return new TermNorms(buffer);
+        }
+        TermNorms norms = build(reader, fieldName, rep, generation);
+        IndexSideFile.write(file, norms.buffer);
+        return norms;
+    }
+
+    static String getFileName(String fieldName, String rep) {
+        return IndexSideFile.getName("termnorms", fieldName, rep);
+    }
+
+    /* Walks every posting of the field, with the weights of SimilarTerms, in the order of the documents */
+    private static TermNorms build(DirectoryReader reader, String fieldName, String rep, long generation)
+            throws IOException {
+        Builder builder = new Builder(rep, reader.numDocs());
+        SegmentTerms.merge(SegmentTerms.open(reader, fieldName, true), builder);
+        return builder.build(fieldName, generation);
+    }
+
+    /* Adds up the norm of each term of the merged segments, by increasing document */
+    private static class Builder implements SegmentTerms.TermVisitor {
+        private final String rep;
+        private final int numDocs;
+        private final BytesRefArray terms = new BytesRefArray(Counter.newCounter());
+        private int[] dfs = new int[16];
+        private double[] norms = new double[16];
+        private long termBytes = 0;
+
+        Builder(String rep, int numDocs) {
+            this.rep = rep;
+            this.numDocs = numDocs;
+        }
+
+        @Override
+        public void visit(BytesRef term, int df, SegmentTerms[] segments, int[] ords, int count) {
+            int ord = terms.append(term);
+            dfs = ArrayUtil.grow(dfs, ord + 1);
+            norms = ArrayUtil.grow(norms, ord + 1);
+            dfs[ord] = df;
+            termBytes += term.length;
+
+            double sum = 0;
+            for (int i=0; i<count; i++) {
+                SegmentTerms segment = segments[i];
+                for (int j=segment.getStart(ords[i]); j<segment.getEnd(ords[i]); j++) {
+                    double weight = SimilarTerms.getWeight(rep, segment.getFreq(j), df, numDocs);
+                    sum += weight * weight;
+                }
+            }
+            norms[ord] = Math.sqrt(sum);
+        }
+
+        TermNorms build(String fieldName, long generation) throws IOException {
+            int numTerms = terms.size();
+            long size = HEADER_SIZE + 4L * (numTerms + 1) + 12L * numTerms + termBytes;
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Too many terms in field '" + fieldName + "' for the norms: " + numTerms);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            buffer.putInt(MAGIC).putLong(generation).putInt(numDocs).putInt(numTerms);
+            BytesRefBuilder spare = new BytesRefBuilder();
+            int offset = 0;
+            for (int i=0; i<numTerms; i++) {
+                buffer.putInt(offset);
+                offset += terms.get(spare, i).length;
+            }
+            buffer.putInt(offset);
+            for (int i=0; i<numTerms; i++) {
+                buffer.putInt(dfs[i]).putDouble(norms[i]);
+            }
+            for (int i=0; i<numTerms; i++) {
+                BytesRef term = terms.get(spare, i);
+                buffer.put(term.bytes, term.offset, term.length);
+            }
+            ((Buffer) buffer).rewind();
+            return new TermNorms(buffer);
+        }
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+
+    /* Number of documents the weights were computed with */
+    int getNumDocs() {
+        return numDocs;
+    }
+
+    int size() {
+        return numTerms;
+    }
+
+    int getDf(int ord) {
+        return buffer.getInt(entriesStart + 12 * ord);
+    }
+
+    double getNorm(int ord) {
+        return buffer.getDouble(entriesStart + 12 * ord + 4);
+    }
+
+    String getTerm(int ord) {
+        int start = buffer.getInt(HEADER_SIZE + 4 * ord);
+        int end = buffer.getInt(HEADER_SIZE + 4 * (ord + 1));
+        byte[] bytes = new byte[end - start];
+        for (int i=0; i<bytes.length; i++) {
+            bytes[i] = buffer.get(bytesStart + start + i);
+        }
+        return new BytesRef(bytes).utf8ToString();
+    }
+
+    /**
+     * Returns the ordinal of the term, or -1 if it is not in the field. Terms are sorted, so it is a binary search.
+     */
+    int find(BytesRef term) {
+        int low = 0;
+        int high = numTerms - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(mid, term);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /* Compares the bytes of a term of the file to the ones given, as unsigned bytes like BytesRef does */
+    private int compare(int ord, BytesRef term) {
+        int start = bytesStart + buffer.getInt(HEADER_SIZE + 4 * ord);
+        int length = bytesStart + buffer.getInt(HEADER_SIZE + 4 * (ord + 1)) - start;
+        int n = Math.min(length, term.length);
+        for (int i=0; i<n; i++) {
+            int cmp = Integer.compare(buffer.get(start + i) & 0xff, term.bytes[term.offset + i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(length, term.length);
+    }
+}
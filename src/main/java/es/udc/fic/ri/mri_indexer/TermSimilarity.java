@@ -0,0 +1,14 @@
+package es.udc.fic.ri.mri_indexer;
+
+class TermSimilarity {
+    private String name;
+    private double similarity;
+
+    public TermSimilarity(String name, double similarity) {
+        this.name = name;
+        this.similarity = similarity;
+    }
+
+    public String getName() { return name; }
+    public double getSimilarity() { return similarity; }
+}
@@ -1,181 +1,112 @@
-/* Credits to the author of the code inspired on:
-https://stackoverflow.com/questions/28201731/weka-java-code-kmeans-clustering
- */
-
 package es.udc.fic.ri.mri_indexer;
 
-import org.apache.commons.math3.linear.ArrayRealVector;
-import org.apache.commons.math3.linear.RealVector;
 import org.apache.lucene.index.*;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.util.BytesRef;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.nio.file.Paths;
 import java.util.*;
 
-import weka.clusterers.SimpleKMeans;
-import weka.core.*;
-
-public class TermsClusters {
+public class TermsClusters implements IndexQuery {
+
+    private static final String USAGE = "java es.udc.fic.ri.mri_indexer.TermsClusters"
+            + " [-index INDEX_PATH] [-field FIELD] [-term TERM] [-top N] [-rep [bin,tf,tfxidf]] [-k CLUSTERS]"
+            + " [-mode [full,query,projected]] [-dims D] [-projectionSeed SEED]"
+            + " [-maxIterations N] [-tolerance T] [-seed SEED]\n\n";
+
+    static final int DEFAULT_MAX_ITERATIONS = 50;
+    static final double DEFAULT_TOLERANCE = 1e-4;
+    static final long DEFAULT_SEED = 2;
+
+    private String indexPath = null;
+    private String fieldName = null;
+    private String termName = null;
+    private int top = -1;
+    private String rep = null;
+    private int k = -1;
+    private String mode = "full";
+    private int dims = SimilarTerms.DEFAULT_DIMS;
+    private long projectionSeed = SimilarTerms.DEFAULT_PROJECTION_SEED;
+    private int maxIterations = DEFAULT_MAX_ITERATIONS;
+    private double tolerance = DEFAULT_TOLERANCE;
+    private long seed = DEFAULT_SEED;
 
     private TermsClusters() { }
 
-    public static void main(String[] args) {
-        String usage = "java es.udc.fic.ri.mri_indexer.TermsClusters"
-                + " [-index INDEX_PATH] [-field FIELD] [-term TERM] [-top N] [-rep [bin,tf,tfxidf]] [-k CLUSTERS]\n\n";
-
-        String indexPath = null;
-        String fieldName = null;
-        String termName = null;
-        int top = -1;
-        String rep = null;
-        int k = -1;
-
-        Directory dir = null;
-        IndexReader indexReader = null;
-
+    /**
+     * Parses the arguments of the tool, throwing an IllegalArgumentException with the message to show if they
+     * are wrong. The index is only required when needsIndex is set.
+     */
+    static TermsClusters parse(String[] args, boolean needsIndex) {
+        TermsClusters query = new TermsClusters();
         for(int i=0; i<args.length; i++) {
             if ("-index".equals(args[i])) {
-                indexPath = args[++i];
+                query.indexPath = args[++i];
             } else if ("-field".equals(args[i])) {
-                fieldName = args[++i];
+                query.fieldName = args[++i];
             } else if ("-term".equals(args[i])) {
-                termName = args[++i];
+                query.termName = args[++i];
             } else if ("-top".equals(args[i])) {
-                top = Integer.parseInt(args[++i]);
+                query.top = Integer.parseInt(args[++i]);
             } else if ("-rep".equals(args[i])) {
-                rep = args[++i];
+                query.rep = args[++i];
             } else if ("-k".equals(args[i])) {
-                k = Integer.parseInt(args[++i]);
+                query.k = Integer.parseInt(args[++i]);
+            } else if ("-mode".equals(args[i])) {
+                query.mode = args[++i];
+            } else if ("-dims".equals(args[i])) {
+                query.dims = Integer.parseInt(args[++i]);
+            } else if ("-projectionSeed".equals(args[i])) {
+                query.projectionSeed = Long.parseLong(args[++i]);
+            } else if ("-maxIterations".equals(args[i])) {
+                query.maxIterations = Integer.parseInt(args[++i]);
+            } else if ("-tolerance".equals(args[i])) {
+                query.tolerance = Double.parseDouble(args[++i]);
+            } else if ("-seed".equals(args[i])) {
+                query.seed = Long.parseLong(args[++i]);
             }
         }
 
-        if (indexPath == null || fieldName == null || termName == null || rep == null) {
-            System.err.println(usage);
-            System.exit(-1);
-        } else if (!(rep.equals("bin") || rep.equals("tf") || rep.equals("tfxidf"))) {
-            System.err.println("Unknown rep: " + rep);
-            System.exit(-1);
-        } else if (top < 0) {
-            System.err.println("top must be positive: " + top);
-            System.exit(-1);
-        } else if (k < 1) {
-            System.err.println("k must be greather than 0: " + k);
+        if ((needsIndex && query.indexPath == null) || query.fieldName == null || query.termName == null
+                || query.rep == null) {
+            throw new IllegalArgumentException(USAGE);
+        } else if (!(query.rep.equals("bin") || query.rep.equals("tf") || query.rep.equals("tfxidf"))) {
+            throw new IllegalArgumentException("Unknown rep: " + query.rep);
+        } else if (query.top < 0) {
+            throw new IllegalArgumentException("top must be positive: " + query.top);
+        } else if (query.k < 1) {
+            throw new IllegalArgumentException("k must be greather than 0: " + query.k);
+        } else if (!(query.mode.equals("full") || query.mode.equals("query") || query.mode.equals("projected"))) {
+            throw new IllegalArgumentException("Unknown mode: " + query.mode);
+        } else if (query.dims < 1) {
+            throw new IllegalArgumentException("dims must be greater than 0: " + query.dims);
+        } else if (query.maxIterations < 1) {
+            throw new IllegalArgumentException("maxIterations must be greater than 0: " + query.maxIterations);
+        } else if (query.tolerance < 0) {
+            throw new IllegalArgumentException("tolerance must be positive: " + query.tolerance);
+        }
+        return query;
+    }
+
+    public static void main(String[] args) {
+        TermsClusters query = null;
+        try {
+            query = parse(args, true);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
             System.exit(-1);
         }
 
+        Directory dir = null;
+        DirectoryReader indexReader = null;
+
         Date start = new Date();
-        label : try {
-            dir = FSDirectory.open(Paths.get(indexPath));
+        try {
+            dir = FSDirectory.open(Paths.get(query.indexPath));
             indexReader = DirectoryReader.open(dir);
-            int numDocs = indexReader.numDocs();
-
-            Map<String, RealVector> vectors = new LinkedHashMap<>();
-
-            /* Get the vector of each term */
-            final Terms terms = MultiTerms.getTerms(indexReader, fieldName);
-            if (terms != null) {
-                final TermsEnum termsEnum = terms.iterator();
-
-                while (termsEnum.next() != null) {
-                    BytesRef term = termsEnum.term();
-                    String text = term.utf8ToString();
-
-                    PostingsEnum posting = MultiTerms.getTermPostingsEnum(indexReader, fieldName, term);
-                    int id;
-                    while ((id = posting.nextDoc()) != PostingsEnum.NO_MORE_DOCS) {
-                        if (vectors.containsKey(text)) {
-                            vectors.get(text).setEntry(id, rep.equals("bin") ? 1 :
-                                    rep.equals("tf") ? posting.freq() : posting.freq()*Math.log10((double) numDocs / termsEnum.docFreq()));
-                        } else {
-                            RealVector v = new ArrayRealVector(numDocs);
-                            v.setEntry(id, rep.equals("bin") ? 1 : rep.equals("tf") ? posting.freq() :
-                                    posting.freq() * Math.log10((double) numDocs / termsEnum.docFreq()));
-                            vectors.put(text, v);
-                        }
-                    }
-                }
-            }
-
-            if (!vectors.containsKey(termName)) {
-                System.err.println("Term not found in the collection: " + termName);
-                break label;
-            }
-
-            /* Calculate similarities against our term */
-            RealVector termVector = vectors.get(termName);
-            vectors.remove(termName);
-
-            List<TermSimilarity> rankingTerms = new LinkedList<>();
-            for (Map.Entry<String, RealVector> entry : vectors.entrySet()) {
-                String text = entry.getKey();
-                rankingTerms.add(new TermSimilarity(text, getCosineSimilarity(termVector, entry.getValue())));
-            }
-
-            /* Create dataset for SimpleKMeans */
-            ArrayList<Attribute> attrList = new ArrayList<Attribute>();
-            for (int i=0; i<numDocs; i++) {
-                attrList.add(new Attribute("doc" + i));
-            }
-            Instances dataset = new Instances("test", attrList, 0);
-
-            /* Sort and print similarities and populate dataset */
-            rankingTerms.sort(Comparator.comparingDouble(TermSimilarity::getSimilarity).reversed());
-
-            System.out.printf("Top %d similar terms to %s%n%n", top, termName);
-            System.out.printf("%-20s%-10s%n", "TERM", "SIMILARITY");
-
-            int n = Math.min(top, rankingTerms.size());
-            for (int i=0; i<n; i++) {
-                TermSimilarity term = rankingTerms.get(i);
-                System.out.printf("%-20s%-10f%n", term.getName(), term.getSimilarity());
-
-                double[] val = vectors.get(term.getName()).toArray();
-                Instance instance = new SparseInstance(1, val);
-                dataset.add(instance);
-            }
-            System.out.println();
-
-            /* Clustering */
-            SimpleKMeans kmeans = new SimpleKMeans();
-            try {
-                kmeans.setPreserveInstancesOrder(true);
-                kmeans.setNumClusters(k);
-                kmeans.setSeed(2);
-                kmeans.setDontReplaceMissingValues(true);
-                kmeans.buildClusterer(dataset);
-                kmeans.setMaxIterations(50);
-
-                int[] assignments = kmeans.getAssignments();
-                Map<Integer, List<String>> clusters = new HashMap<>();
-
-                for (int i=0; i<n; i++) {
-                    int assignment = assignments[i];
-                    if (!clusters.containsKey(assignment)) {
-                        clusters.put(assignment, new LinkedList<>());
-                    }
-                    clusters.get(assignment).add(rankingTerms.get(i).getName());
-                }
-
-                /* Print result */
-                for (int i=0; i<k; i++) {
-                    System.out.println("************* CLUSTER " + (i+1) + " *************");
-
-                    if (clusters.containsKey(i)) {
-                        for (String text : clusters.get(i)) {
-                            System.out.println(text);
-                        }
-                    } else {
-                        System.out.println("No terms clustered");
-                    }
-
-                }
-
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+            query.run(indexReader, System.out, System.err);
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
@@ -199,9 +130,86 @@ public class TermsClusters {
         System.out.println("\n" + (end.getTime() - start.getTime()) + " total milliseconds");
     }
 
-    private static double getCosineSimilarity(RealVector v1, RealVector v2) {
-        double out = (v1.dotProduct(v2)) / (v1.getNorm() * v2.getNorm());
-        return Double.isNaN(out) ? 0.0 : out;
+    @Override
+    public void run(DirectoryReader indexReader, PrintStream out, PrintStream err) throws IOException {
+        TermMatrix vectors;
+        List<TermSimilarity> rankingTerms;
+        if (mode.equals("projected")) {
+            TermNorms norms = TermNorms.open(indexReader, fieldName, rep);
+            TermEmbeddings embeddings = TermEmbeddings.open(indexReader, norms, fieldName, rep, dims, projectionSeed);
+            rankingTerms = SimilarTerms.getSimilarTerms(norms, embeddings, null, 0, termName, top);
+            vectors = rankingTerms == null ? null : embeddings.getVectors(norms, rankingTerms);
+        } else if (mode.equals("query") && SimilarTerms.hasTermVectors(indexReader, fieldName)) {
+            TermNorms norms = TermNorms.open(indexReader, fieldName, rep);
+            rankingTerms = SimilarTerms.getSimilarTerms(indexReader, norms, fieldName, termName, rep, top);
+            vectors = rankingTerms == null ? null
+                    : SimilarTerms.getTermVectors(indexReader, fieldName, rep, rankingTerms);
+        } else {
+            if (mode.equals("query")) {
+                err.println("No term vectors for field '" + fieldName + "', scoring the whole vocabulary");
+            }
+            vectors = SimilarTerms.getTermVectors(indexReader, fieldName, rep);
+            rankingTerms = SimilarTerms.getSimilarTerms(vectors, termName, top);
+        }
+        if (rankingTerms == null) {
+            err.println("Term not found in the collection: " + termName);
+            return;
+        }
+
+        /* Print similarities */
+        out.printf("Top %d similar terms to %s%n%n", top, termName);
+        out.printf("%-20s%-10s%n", "TERM", "SIMILARITY");
+
+        int n = rankingTerms.size();
+        for (TermSimilarity term : rankingTerms) {
+            out.printf("%-20s%-10f%n", term.getName(), term.getSimilarity());
+        }
+        out.println();
+
+        /* Clustering */
+        int[] assignments = getClusters(vectors, rankingTerms, new SphericalKMeans(k, maxIterations, tolerance, seed));
+        Map<Integer, List<String>> clusters = new HashMap<>();
+
+        for (int i=0; i<n; i++) {
+            int assignment = assignments[i];
+            if (!clusters.containsKey(assignment)) {
+                clusters.put(assignment, new LinkedList<>());
+            }
+            clusters.get(assignment).add(rankingTerms.get(i).getName());
+        }
+
+        /* Print result */
+        for (int i=0; i<k; i++) {
+            out.println("************* CLUSTER " + (i+1) + " *************");
+
+            if (clusters.containsKey(i)) {
+                for (String text : clusters.get(i)) {
+                    out.println(text);
+                }
+            } else {
+                out.println("No terms clustered");
+            }
+
+        }
+    }
+
+    @Override
+    public String getCacheKey() {
+        return String.join(" ", "TermsClusters", fieldName, termName, rep, Integer.toString(top),
+                Integer.toString(k), mode, Integer.toString(dims), Long.toString(projectionSeed),
+                Integer.toString(maxIterations), Double.toString(tolerance), Long.toString(seed));
+    }
+
+    /**
+     * Groups the terms of the ranking into clusters by the cosine of their vectors, returning the cluster of each
+     * of them.
+     */
+    static int[] getClusters(TermMatrix vectors, List<TermSimilarity> rankingTerms, SphericalKMeans kmeans) {
+        int[] ords = new int[rankingTerms.size()];
+        for (int i=0; i<ords.length; i++) {
+            ords[i] = vectors.getOrd(rankingTerms.get(i).getName());
+        }
+        return kmeans.cluster(vectors, ords);
     }
 
 }
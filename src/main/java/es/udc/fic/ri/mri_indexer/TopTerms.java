@@ -0,0 +1,112 @@
+package es.udc.fic.ri.mri_indexer;
+
+/**
+ * Keeps the k best scored terms seen so far in a bounded min-heap over primitive arrays, so ranking n terms costs
+ * O(n log k) and nothing is allocated per candidate. Terms are identified by an ordinal given by the caller, which
+ * also breaks ties: between equal scores the lower ordinal wins, as a stable sort of the terms in ordinal order
+ * would do.
+ */
+class TopTerms {
+
+    private final int[] ords;
+    private final double[] scores;
+    private int size = 0;
+
+    TopTerms(int k) {
+        ords = new int[Math.max(0, k)];
+        scores = new double[Math.max(0, k)];
+    }
+
+    /**
+     * Offers a term to the ranking, returning true if it is kept.
+     */
+    boolean insert(int ord, double score) {
+        if (size < ords.length) {
+            ords[size] = ord;
+            scores[size] = score;
+            upHeap(size++);
+            return true;
+        }
+        if (size == 0 || !isWorse(ords[0], scores[0], ord, score)) {
+            return false;
+        }
+        ords[0] = ord;
+        scores[0] = score;
+        downHeap(0);
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Empties the heap, returning the ordinals of the kept terms best first. Their scores are left in the same
+     * order and can be read with getScore until the next insert.
+     */
+    int[] sort() {
+        int n = size;
+        int[] sortedOrds = new int[n];
+        double[] sortedScores = new double[n];
+        /* The worst term is always at the root, so popping fills the result from the end */
+        for (int i=n-1; i>=0; i--) {
+            sortedOrds[i] = ords[0];
+            sortedScores[i] = scores[0];
+            size--;
+            ords[0] = ords[size];
+            scores[0] = scores[size];
+            downHeap(0);
+        }
+        System.arraycopy(sortedScores, 0, scores, 0, n);
+        return sortedOrds;
+    }
+
+    /* Score of the i-th best term once sorted */
+    double getScore(int i) {
+        return scores[i];
+    }
+
+    /* Whether the first term ranks below the second one */
+    private static boolean isWorse(int ord1, double score1, int ord2, double score2) {
+        int cmp = Double.compare(score1, score2);
+        return cmp < 0 || (cmp == 0 && ord1 > ord2);
+    }
+
+    private void upHeap(int i) {
+        int ord = ords[i];
+        double score = scores[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!isWorse(ord, score, ords[parent], scores[parent])) {
+                break;
+            }
+            ords[i] = ords[parent];
+            scores[i] = scores[parent];
+            i = parent;
+        }
+        ords[i] = ord;
+        scores[i] = score;
+    }
+
+    private void downHeap(int i) {
+        if (size == 0) {
+            return;
+        }
+        int ord = ords[i];
+        double score = scores[i];
+        int child;
+        while ((child = 2 * i + 1) < size) {
+            if (child + 1 < size && isWorse(ords[child + 1], scores[child + 1], ords[child], scores[child])) {
+                child++;
+            }
+            if (!isWorse(ords[child], scores[child], ord, score)) {
+                break;
+            }
+            ords[i] = ords[child];
+            scores[i] = scores[child];
+            i = child;
+        }
+        ords[i] = ord;
+        scores[i] = score;
+    }
+}
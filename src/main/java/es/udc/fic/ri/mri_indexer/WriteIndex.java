@@ -6,69 +6,104 @@ import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.BytesRef;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
 
-public class WriteIndex {
+/**
+ * Dumps the terms of every field of the index. The raw bytes of the terms are written without decoding them,
+ * as plain text (the terms of each field in a line), JSON Lines with the df and ttf of each term, or a compact
+ * binary format. The fields are dumped concurrently, each one into its own file with -split, or into parts
+ * which are then concatenated in the order of the fields. Gzip streams can be concatenated as well, so the
+ * parts are compressed in parallel too.
+ *
+ * The binary format writes, for each field, the length of its name as a vInt followed by its UTF-8 bytes, and
+ * then for each term the length of its bytes plus one as a vInt, the bytes, its df as a vInt and its ttf as a
+ * vLong. A zero length ends the terms of the field.
+ */
+public class WriteIndex implements IndexQuery {
 
-    private WriteIndex() { }
-
-    public static void main(String[] args) {
-        String usage = "java java es.udc.fic.ri.mri_indexer.WriteIndex [-index INDEX_PATH] [-outputfile FILE]";
+    private static final String USAGE = "java java es.udc.fic.ri.mri_indexer.WriteIndex [-index INDEX_PATH] [-outputfile FILE]"
+            + " [-format text|jsonl|binary] [-compress none|gzip] [-numThreads N] [-split]";
+    private static final int BUFFER_SIZE = 1 << 16;
 
-        String indexPath = null;
-        String output = null;
+    private String indexPath = null;
+    private String output = null;
+    private String format = "text";
+    private String compress = "none";
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private boolean split = false;
 
-        BufferedWriter writer = null;
-        Directory dir = null;
-        DirectoryReader indexReader = null;
+    private WriteIndex() { }
 
+    /**
+     * Parses the arguments of the tool, throwing an IllegalArgumentException with the message to show if they
+     * are wrong. The index is only required when needsIndex is set.
+     */
+    static WriteIndex parse(String[] args, boolean needsIndex) {
+        WriteIndex query = new WriteIndex();
         for (int i=0; i<args.length; i++) {
             if ("-index".equals(args[i])) {
-                indexPath = args[++i];
+                query.indexPath = args[++i];
             } else if ("-outputfile".equals(args[i])) {
-                output = args[++i];
+                query.output = args[++i];
+            } else if ("-format".equals(args[i])) {
+                query.format = args[++i];
+            } else if ("-compress".equals(args[i])) {
+                query.compress = args[++i];
+            } else if ("-numThreads".equals(args[i])) {
+                query.numThreads = Integer.parseInt(args[++i]);
+            } else if ("-split".equals(args[i])) {
+                query.split = true;
             }
         }
 
-        if (indexPath == null || output == null) {
-            System.err.println(usage);
+        if ((needsIndex && query.indexPath == null) || query.output == null) {
+            throw new IllegalArgumentException(USAGE);
+        } else if (!query.format.equals("text") && !query.format.equals("jsonl") && !query.format.equals("binary")) {
+            throw new IllegalArgumentException("format must be text, jsonl or binary: " + query.format);
+        } else if (!query.compress.equals("none") && !query.compress.equals("gzip")) {
+            throw new IllegalArgumentException("compress must be none or gzip: " + query.compress);
+        } else if (query.numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be greater than 0: " + query.numThreads);
+        }
+        return query;
+    }
+
+    public static void main(String[] args) {
+        WriteIndex query = null;
+        try {
+            query = parse(args, true);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
             System.exit(-1);
         }
 
+        Directory dir = null;
+        DirectoryReader indexReader = null;
+
         Date start = new Date();
         try {
-            writer = Files.newBufferedWriter(Paths.get(output));
-            dir = FSDirectory.open(Paths.get(indexPath));
+            dir = FSDirectory.open(Paths.get(query.indexPath));
             indexReader = DirectoryReader.open(dir);
-
-            FieldInfos fieldInfos = FieldInfos.getMergedFieldInfos(indexReader);
-            for (final FieldInfo fieldInfo : fieldInfos) {
-                writer.write(fieldInfo.name + "\n");
-
-                final Terms terms = MultiTerms.getTerms(indexReader, fieldInfo.name);
-                if (terms != null) {
-                    final TermsEnum termsEnum = terms.iterator();
-                    while (termsEnum.next() != null) {
-                        BytesRef term = termsEnum.term();
-                        writer.write(term.utf8ToString() + " ");
-                    }
-                    writer.write("\n\n");
-                } else {
-                    writer.write("No terms stored\n\n");
-                }
-            }
+            query.run(indexReader, System.out, System.err);
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            try {
-                if (writer != null) {
-                    writer.close();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
             try {
                 if (indexReader != null) {
                     indexReader.close();
@@ -88,4 +123,217 @@ public class WriteIndex {
         Date end = new Date();
         System.out.println(end.getTime() - start.getTime() + " total milliseconds");
     }
+
+    @Override
+    public void run(DirectoryReader indexReader, PrintStream out, PrintStream err) throws IOException {
+        List<String> fields = new ArrayList<>();
+        for (FieldInfo fieldInfo : FieldInfos.getMergedFieldInfos(indexReader)) {
+            fields.add(fieldInfo.name);
+        }
+
+        Path outputPath = Paths.get(output);
+        if (split) {
+            Files.createDirectories(outputPath);
+            List<Path> files = new ArrayList<>();
+            Set<String> names = new HashSet<>();
+            for (String field : fields) {
+                // fields which only differ in the characters replaced (or in case) get a numbered suffix, as
+                // writing two of them into the same file would mix them
+                String name = field.replaceAll("[^A-Za-z0-9]", "_");
+                String unique = name;
+                for (int i=2; !names.add(unique.toLowerCase(Locale.ROOT)); i++) {
+                    unique = name + "-" + i;
+                }
+                files.add(outputPath.resolve(unique + getExtension()));
+            }
+            writeFields(indexReader, fields, files);
+        } else if (numThreads == 1 || fields.size() < 2) {
+            try (OutputStream stream = open(outputPath)) {
+                TermWriter writer = new TermWriter(format, stream);
+                for (String field : fields) {
+                    writer.writeField(indexReader, field);
+                }
+            }
+        } else {
+            /* Each field is written to a part next to the output, then they are appended in order */
+            List<Path> parts = new ArrayList<>();
+            try {
+                for (int i=0; i<fields.size(); i++) {
+                    parts.add(Files.createTempFile(outputPath.toAbsolutePath().getParent(),
+                            outputPath.getFileName().toString(), ".part" + i));
+                }
+                writeFields(indexReader, fields, parts);
+                try (FileChannel target = FileChannel.open(outputPath, StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    for (Path part : parts) {
+                        try (FileChannel source = FileChannel.open(part, StandardOpenOption.READ)) {
+                            long position = 0;
+                            long size = source.size();
+                            while (position < size) {
+                                position += source.transferTo(position, size - position, target);
+                            }
+                        }
+                    }
+                }
+            } finally {
+                for (Path part : parts) {
+                    Files.deleteIfExists(part);
+                }
+            }
+        }
+    }
+
+    /* Writes each field into its file, with up to numThreads fields at a time */
+    private void writeFields(IndexReader indexReader, List<String> fields, List<Path> files) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(numThreads, Math.max(fields.size(), 1)));
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int i=0; i<fields.size(); i++) {
+                final String field = fields.get(i);
+                final Path file = files.get(i);
+                tasks.add(executor.submit(() -> {
+                    try (OutputStream stream = open(file)) {
+                        new TermWriter(format, stream).writeField(indexReader, field);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private String getExtension() {
+        String extension = format.equals("text") ? ".txt" : format.equals("jsonl") ? ".jsonl" : ".bin";
+        return compress.equals("gzip") ? extension + ".gz" : extension;
+    }
+
+    private OutputStream open(Path file) throws IOException {
+        OutputStream stream = Files.newOutputStream(file);
+        if (compress.equals("gzip")) {
+            stream = new GZIPOutputStream(stream, BUFFER_SIZE);
+        }
+        return new BufferedOutputStream(stream, BUFFER_SIZE);
+    }
+
+    /* Writes the merged terms of the fields in one of the formats, straight from their bytes */
+    private static class TermWriter implements SegmentTerms.TermVisitor {
+        private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+        private final String format;
+        private final OutputStream out;
+        private final byte[] digits = new byte[20];
+        private byte[] jsonPrefix;
+
+        TermWriter(String format, OutputStream out) {
+            this.format = format;
+            this.out = out;
+        }
+
+        void writeField(IndexReader indexReader, String field) throws IOException {
+            byte[] name = field.getBytes(StandardCharsets.UTF_8);
+            if (format.equals("text")) {
+                out.write(name);
+                out.write('\n');
+            } else if (format.equals("jsonl")) {
+                ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+                prefix.write("{\"field\":\"".getBytes(StandardCharsets.US_ASCII));
+                writeJson(prefix, name, 0, name.length);
+                prefix.write("\",\"term\":\"".getBytes(StandardCharsets.US_ASCII));
+                jsonPrefix = prefix.toByteArray();
+            } else {
+                writeVLong(name.length);
+                out.write(name);
+            }
+
+            /* The segments are read in parallel and merged back in the order of the terms */
+            long numTerms = SegmentTerms.merge(SegmentTerms.open(indexReader, field, false), this);
+
+            if (format.equals("text")) {
+                out.write((numTerms > 0 ? "\n\n" : "No terms stored\n\n").getBytes(StandardCharsets.US_ASCII));
+            } else if (format.equals("binary")) {
+                writeVLong(0);
+            }
+        }
+
+        @Override
+        public void visit(BytesRef term, int df, SegmentTerms[] segments, int[] ords, int count) throws IOException {
+            if (format.equals("text")) {
+                out.write(term.bytes, term.offset, term.length);
+                out.write(' ');
+                return;
+            }
+
+            long ttf = 0;
+            for (int i=0; i<count; i++) {
+                ttf += segments[i].getTotalTermFreq(ords[i]);
+            }
+            if (format.equals("jsonl")) {
+                out.write(jsonPrefix);
+                writeJson(out, term.bytes, term.offset, term.length);
+                out.write("\",\"df\":".getBytes(StandardCharsets.US_ASCII));
+                writeDecimal(df);
+                out.write(",\"ttf\":".getBytes(StandardCharsets.US_ASCII));
+                writeDecimal(ttf);
+                out.write('}');
+                out.write('\n');
+            } else {
+                writeVLong(term.length + 1);
+                out.write(term.bytes, term.offset, term.length);
+                writeVLong(df);
+                writeVLong(ttf);
+            }
+        }
+
+        /* Escapes the quotes, backslashes and control characters, the rest of the UTF-8 bytes are valid JSON */
+        private static void writeJson(OutputStream out, byte[] bytes, int offset, int length) throws IOException {
+            for (int i=offset; i<offset+length; i++) {
+                int b = bytes[i] & 0xff;
+                if (b == '"' || b == '\\') {
+                    out.write('\\');
+                    out.write(b);
+                } else if (b < 0x20) {
+                    out.write('\\');
+                    out.write('u');
+                    out.write('0');
+                    out.write('0');
+                    out.write(HEX[b >> 4]);
+                    out.write(HEX[b & 0xf]);
+                } else {
+                    out.write(b);
+                }
+            }
+        }
+
+        private void writeDecimal(long value) throws IOException {
+            int pos = digits.length;
+            do {
+                digits[--pos] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            out.write(digits, pos, digits.length - pos);
+        }
+
+        /* Seven bits per byte, the highest one set while more bytes follow, as the vInts of Lucene */
+        private void writeVLong(long value) throws IOException {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+    }
 }
@@ -0,0 +1,151 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.codecs.lucene50.Lucene50StoredFieldsFormat.Mode;
+import org.apache.lucene.codecs.lucene80.Lucene80Codec;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
+
+import java.util.Map;
+
+/**
+ * Named set of IndexWriterConfig settings. The "default" profile keeps the Lucene defaults, "bulk" trades memory
+ * for throughput when loading a large collection, "incremental" suits frequent small updates and "low-memory"
+ * keeps the heap used by the writer small. Any setting of a profile can be overridden from the properties.
+ */
+class WriterProfile {
+
+    static final String[] NAMES = { "default", "bulk", "incremental", "low-memory" };
+
+    private final String name;
+    private double ramBufferSizeMB = IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB;
+    private int maxBufferedDocs = IndexWriterConfig.DISABLE_AUTO_FLUSH;
+    private double segmentsPerTier = 10;
+    private int maxMergeAtOnce = 10;
+    private double maxMergedSegmentMB = 5 * 1024;
+    private int mergeThreads = ConcurrentMergeScheduler.AUTO_DETECT_MERGES_AND_THREADS;
+    private int maxMergeCount = ConcurrentMergeScheduler.AUTO_DETECT_MERGES_AND_THREADS;
+    private boolean useCompoundFile = IndexWriterConfig.DEFAULT_USE_COMPOUND_FILE_SYSTEM;
+    private Mode storedFieldsMode = Mode.BEST_SPEED;
+
+    private WriterProfile(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the profile with the given name, or null if it doesn't exist.
+     */
+    static WriterProfile get(String name) {
+        WriterProfile profile = new WriterProfile(name);
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        switch (name) {
+            case "default":
+                break;
+            case "bulk":
+                profile.ramBufferSizeMB = 512;
+                profile.segmentsPerTier = 20;
+                profile.maxMergeAtOnce = 20;
+                profile.mergeThreads = Math.max(1, cores / 2);
+                profile.maxMergeCount = profile.mergeThreads + 5;
+                profile.useCompoundFile = false;
+                break;
+            case "incremental":
+                profile.ramBufferSizeMB = 64;
+                profile.segmentsPerTier = 5;
+                profile.maxMergeAtOnce = 5;
+                profile.mergeThreads = 1;
+                profile.maxMergeCount = 6;
+                break;
+            case "low-memory":
+                profile.ramBufferSizeMB = 8;
+                profile.maxBufferedDocs = 1000;
+                profile.maxMergedSegmentMB = 512;
+                profile.mergeThreads = 1;
+                profile.maxMergeCount = 2;
+                profile.storedFieldsMode = Mode.BEST_COMPRESSION;
+                break;
+            default:
+                return null;
+        }
+        return profile;
+    }
+
+    /**
+     * Overrides the settings of the profile given in the properties.
+     */
+    WriterProfile override(Map<String, String> properties) {
+        String value;
+        if ((value = properties.get("ramBufferSizeMB")) != null) {
+            ramBufferSizeMB = Double.parseDouble(value.trim());
+        }
+        if ((value = properties.get("maxBufferedDocs")) != null) {
+            maxBufferedDocs = Integer.parseInt(value.trim());
+        }
+        if ((value = properties.get("segmentsPerTier")) != null) {
+            segmentsPerTier = Double.parseDouble(value.trim());
+        }
+        if ((value = properties.get("maxMergeAtOnce")) != null) {
+            maxMergeAtOnce = Integer.parseInt(value.trim());
+        }
+        if ((value = properties.get("maxMergedSegmentMB")) != null) {
+            maxMergedSegmentMB = Double.parseDouble(value.trim());
+        }
+        if ((value = properties.get("mergeThreads")) != null) {
+            mergeThreads = Integer.parseInt(value.trim());
+        }
+        if ((value = properties.get("maxMergeCount")) != null) {
+            maxMergeCount = Integer.parseInt(value.trim());
+        }
+        if ((value = properties.get("useCompoundFile")) != null) {
+            useCompoundFile = Boolean.parseBoolean(value.trim());
+        }
+        if ((value = properties.get("storedFieldsMode")) != null) {
+            storedFieldsMode = "compression".equals(value.trim()) ? Mode.BEST_COMPRESSION : Mode.BEST_SPEED;
+        }
+        return this;
+    }
+
+    /* Number of threads used to merge, guessed from the number of processors when auto detected */
+    int getMergeThreads() {
+        if (mergeThreads != ConcurrentMergeScheduler.AUTO_DETECT_MERGES_AND_THREADS) {
+            return mergeThreads;
+        }
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    void apply(IndexWriterConfig iwc) {
+        iwc.setRAMBufferSizeMB(ramBufferSizeMB);
+        iwc.setMaxBufferedDocs(maxBufferedDocs);
+        iwc.setUseCompoundFile(useCompoundFile);
+        iwc.setCodec(new Lucene80Codec(storedFieldsMode));
+
+        TieredMergePolicy mergePolicy = new TieredMergePolicy();
+        mergePolicy.setSegmentsPerTier(segmentsPerTier);
+        mergePolicy.setMaxMergeAtOnce(maxMergeAtOnce);
+        mergePolicy.setMaxMergedSegmentMB(maxMergedSegmentMB);
+        if (!useCompoundFile) {
+            mergePolicy.setNoCFSRatio(0.0);
+        }
+        iwc.setMergePolicy(mergePolicy);
+
+        ConcurrentMergeScheduler mergeScheduler = new ConcurrentMergeScheduler();
+        int auto = ConcurrentMergeScheduler.AUTO_DETECT_MERGES_AND_THREADS;
+        if (mergeThreads != auto || maxMergeCount != auto) {
+            int threads = getMergeThreads();
+            mergeScheduler.setMaxMergesAndThreads(Math.max(threads, maxMergeCount != auto ? maxMergeCount : threads + 5), threads);
+        }
+        iwc.setMergeScheduler(mergeScheduler);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (ramBufferSizeMB=%s, maxBufferedDocs=%s, segmentsPerTier=%s, maxMergeAtOnce=%d, "
+                        + "maxMergedSegmentMB=%s, mergeThreads=%s, maxMergeCount=%s, useCompoundFile=%b, storedFieldsMode=%s)",
+                name, ramBufferSizeMB, maxBufferedDocs == IndexWriterConfig.DISABLE_AUTO_FLUSH ? "disabled" : maxBufferedDocs,
+                segmentsPerTier, maxMergeAtOnce, maxMergedSegmentMB,
+                mergeThreads == ConcurrentMergeScheduler.AUTO_DETECT_MERGES_AND_THREADS ? "auto" : mergeThreads,
+                maxMergeCount == ConcurrentMergeScheduler.AUTO_DETECT_MERGES_AND_THREADS ? "auto" : maxMergeCount,
+                useCompoundFile, storedFieldsMode == Mode.BEST_COMPRESSION ? "compression" : "speed");
+    }
+}
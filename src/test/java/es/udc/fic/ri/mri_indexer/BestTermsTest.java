@@ -0,0 +1,115 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BestTermsTest {
+
+    private static final FieldType VECTORS_TYPE = new FieldType(TextField.TYPE_NOT_STORED);
+    static {
+        VECTORS_TYPE.setStoreTermVectors(true);
+        VECTORS_TYPE.freeze();
+    }
+
+    private static final String[] TEXTS = {
+            "a a a b c",
+            "a b b d",
+            "c c e e e e",
+            "a e f",
+            "f f g",
+    };
+
+    /* Two documents per segment, so the postings are looked up in the segment of the document */
+    private static Directory newIndex(boolean termVectors) throws IOException {
+        Directory dir = new ByteBuffersDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(new WhitespaceAnalyzer());
+        config.setMergePolicy(NoMergePolicy.INSTANCE);
+        try (IndexWriter writer = new IndexWriter(dir, config)) {
+            for (int i=0; i<TEXTS.length; i++) {
+                Document doc = new Document();
+                doc.add(termVectors ? new Field("contents", TEXTS[i], VECTORS_TYPE)
+                        : new TextField("contents", TEXTS[i], Field.Store.NO));
+                writer.addDocument(doc);
+                if (i % 2 == 1) {
+                    writer.commit();
+                }
+            }
+        }
+        return dir;
+    }
+
+    private static List<String> toStrings(List<TermStats> termStats) {
+        List<String> strings = new ArrayList<>();
+        for (TermStats term : termStats) {
+            strings.add(term.getName() + " " + term.getTf() + " " + term.getDf() + " " + term.getTfxIdf());
+        }
+        return strings;
+    }
+
+    @Test
+    public void ranksTermsOfDocument() throws IOException {
+        try (Directory dir = newIndex(false); DirectoryReader reader = DirectoryReader.open(dir)) {
+            assertTrue(reader.leaves().size() > 1);
+            List<TermStats> byTf = BestTerms.getBestTerms(reader, "contents", 2, "tf", 2);
+            assertEquals(2, byTf.size());
+            assertEquals("e", byTf.get(0).getName());
+            assertEquals(4, byTf.get(0).getTf());
+            assertEquals(2, byTf.get(0).getDf());
+            assertEquals("c", byTf.get(1).getName());
+            assertEquals(2, byTf.get(1).getTf());
+
+            // a is in three documents, b and d in fewer
+            List<TermStats> byDf = BestTerms.getBestTerms(reader, "contents", 1, "df", 1);
+            assertEquals("a", byDf.get(0).getName());
+            assertEquals(3, byDf.get(0).getDf());
+
+            List<TermStats> byTfxIdf = BestTerms.getBestTerms(reader, "contents", 1, "tfxidf", 3);
+            assertEquals("b", byTfxIdf.get(0).getName());
+            assertEquals(2 * Math.log10(5.0 / 2), byTfxIdf.get(0).getTfxIdf(), 1e-9);
+            assertEquals("d", byTfxIdf.get(1).getName());
+        }
+    }
+
+    @Test
+    public void readsSameTermsFromVectorsAndPostings() throws IOException {
+        try (Directory postingsDir = newIndex(false); Directory vectorsDir = newIndex(true);
+             DirectoryReader postings = DirectoryReader.open(postingsDir);
+             DirectoryReader vectors = DirectoryReader.open(vectorsDir)) {
+            for (int doc=0; doc<TEXTS.length; doc++) {
+                assertNull(postings.getTermVector(doc, "contents"));
+                assertNotNull(vectors.getTermVector(doc, "contents"));
+                for (String order : new String[] {"tf", "df", "tfxidf"}) {
+                    assertEquals(toStrings(BestTerms.getBestTerms(postings, "contents", doc, order, 10)),
+                            toStrings(BestTerms.getBestTerms(vectors, "contents", doc, order, 10)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void findsNothingOutsideIndex() throws IOException {
+        try (Directory dir = newIndex(false); DirectoryReader reader = DirectoryReader.open(dir)) {
+            assertTrue(BestTerms.getBestTerms(reader, "contents", TEXTS.length, "tf", 3).isEmpty());
+            assertTrue(BestTerms.getBestTerms(reader, "missing", 0, "tf", 3).isEmpty());
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.DateTools;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class DocumentTemplateTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void restoreVectors() {
+        DocumentTemplate.termVectors = false;
+    }
+
+    private Path write(String name, String text) throws IOException {
+        Path file = folder.getRoot().toPath().resolve(name);
+        Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static BasicFileAttributes attrs(Path file) throws IOException {
+        return Files.readAttributes(file, BasicFileAttributes.class);
+    }
+
+    @Test
+    public void reusesFieldsFromOneFileToTheNext() throws IOException {
+        Path first = write("first.txt", "first");
+        Path second = write("second.txt", "second text");
+        DocumentTemplate template = new DocumentTemplate();
+
+        Document doc = template.fill(first, attrs(first));
+        template.setContents("first", true);
+        List<IndexableField> fields = doc.getFields();
+        IndexableField[] firstFields = fields.toArray(new IndexableField[0]);
+
+        assertSame(doc, template.fill(second, attrs(second)));
+        template.setContents("second text", true);
+        assertEquals(firstFields.length, doc.getFields().size());
+        for (int i=0; i<firstFields.length; i++) {
+            assertSame(firstFields[i], doc.getFields().get(i));
+        }
+
+        BasicFileAttributes attrs = attrs(second);
+        assertEquals(second.toString(), doc.get("path"));
+        assertEquals("second text", doc.get("contents"));
+        assertEquals(attrs.lastModifiedTime().toString(), doc.get("lastModifiedTime"));
+        assertEquals(DateTools.timeToString(attrs.creationTime().toMillis(), DateTools.Resolution.MILLISECOND),
+                doc.get("creationTimeLucene"));
+        assertEquals(Thread.currentThread().getName(), doc.get("thread"));
+        assertEquals(attrs.size(), doc.getField(IncrementalIndex.SIZE_FIELD).numericValue().longValue());
+    }
+
+    @Test
+    public void resolvesHostnameOnce() throws IOException {
+        Path file = write("file.txt", "text");
+        String hostname = new DocumentTemplate().fill(file, attrs(file)).get("hostname");
+        assertEquals(InetAddress.getLocalHost().getHostName(), hostname);
+        // every template shares the same string
+        assertSame(hostname, new DocumentTemplate().fill(file, attrs(file)).get("hostname"));
+    }
+
+    @Test
+    public void fillDropsContentsOfPreviousFile() throws IOException {
+        Path file = write("file.txt", "text");
+        DocumentTemplate template = new DocumentTemplate();
+        template.fill(file, attrs(file));
+        template.setContents("text", false);
+        template.setStoredContents("text");
+
+        Document doc = template.fill(file, attrs(file));
+        assertNull(doc.getField("contents"));
+        template.setContents("other", true);
+        assertEquals(1, doc.getFields("contents").length);
+    }
+
+    @Test
+    public void writesEachFileWithTheSameTemplate() throws IOException {
+        DocumentTemplate.termVectors = true;
+        DocumentTemplate template = new DocumentTemplate();
+        try (Directory dir = new ByteBuffersDirectory()) {
+            try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+                for (int i=0; i<3; i++) {
+                    Path file = write("file" + i + ".txt", "word" + i);
+                    Document doc = template.fill(file, attrs(file));
+                    // the second file is indexed without storing its contents
+                    template.setContents("word" + i, i != 1);
+                    writer.addDocument(doc);
+                }
+            }
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                assertEquals(3, reader.numDocs());
+                IndexSearcher searcher = new IndexSearcher(reader);
+                for (int i=0; i<3; i++) {
+                    assertEquals(1, searcher.count(new TermQuery(new Term("contents", "word" + i))));
+                    assertEquals(1, searcher.count(new TermQuery(new Term("path",
+                            folder.getRoot().toPath().resolve("file" + i + ".txt").toString()))));
+                }
+                for (int doc=0; doc<reader.maxDoc(); doc++) {
+                    assertNotNull(reader.getTermVector(doc, "contents"));
+                    String contents = reader.document(doc).get("contents");
+                    String path = reader.document(doc).get("path");
+                    if (path.endsWith("file1.txt")) {
+                        assertNull(contents);
+                    } else {
+                        assertEquals(path.replaceAll(".*file(\\d)\\.txt", "word$1"), contents);
+                    }
+                }
+            }
+        }
+    }
+}
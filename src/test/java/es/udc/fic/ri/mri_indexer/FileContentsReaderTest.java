@@ -0,0 +1,87 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+
+public class FileContentsReaderTest {
+
+    private static final int THRESHOLD = 64;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path write(String text, Charset charset) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, text.getBytes(charset));
+        return file;
+    }
+
+    private static String read(Path file, Charset charset) throws IOException {
+        StringBuilder text = new StringBuilder();
+        try (Reader in = FileContentsReader.open(file, charset, THRESHOLD)) {
+            // small reads, so the chars decoded are handed out over several calls
+            char[] buffer = new char[7];
+            int n;
+            while ((n = in.read(buffer, 0, buffer.length)) != -1) {
+                text.append(buffer, 0, n);
+            }
+        }
+        return text.toString();
+    }
+
+    private static String repeat(String text, int times) {
+        StringBuilder result = new StringBuilder();
+        for (int i=0; i<times; i++) {
+            result.append(text);
+        }
+        return result.toString();
+    }
+
+    @Test
+    public void readsSmallAndMappedFiles() throws IOException {
+        for (String text : new String[] {"", "a", "año ñandú", repeat("x", THRESHOLD - 1), repeat("y", THRESHOLD),
+                repeat("año ñandú 日本\n", 1000)}) {
+            assertEquals(text, read(write(text, StandardCharsets.UTF_8), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void reusesBuffersAcrossCharsets() throws IOException {
+        String text = "cañón " + repeat("z", THRESHOLD);
+        Path utf8 = write(text, StandardCharsets.UTF_8);
+        Path latin1 = write(text, StandardCharsets.ISO_8859_1);
+        Path small = write("ñ", StandardCharsets.ISO_8859_1);
+        for (int i=0; i<3; i++) {
+            assertEquals(text, read(utf8, StandardCharsets.UTF_8));
+            assertEquals(text, read(latin1, StandardCharsets.ISO_8859_1));
+            assertEquals("ñ", read(small, StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    @Test
+    public void readsWholeFileWhichGrew() throws IOException {
+        // a file found small by the walk is read up to its current end, past the size of the pooled buffer
+        Path file = write("small", StandardCharsets.UTF_8);
+        assertEquals("small", read(file, StandardCharsets.UTF_8));
+        String grown = "small" + repeat("-grown", THRESHOLD);
+        Files.write(file, grown.getBytes(StandardCharsets.UTF_8));
+        assertEquals(grown, read(file, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void replacesMalformedInput() throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, new byte[] {'a', (byte) 0xff, 'b'});
+        assertEquals("a�b", read(file, StandardCharsets.UTF_8));
+    }
+}
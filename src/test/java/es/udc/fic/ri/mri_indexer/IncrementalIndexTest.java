@@ -0,0 +1,126 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IncrementalIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Path write(Path file, String text) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static BasicFileAttributes attrs(Path file) throws IOException {
+        return Files.readAttributes(file, BasicFileAttributes.class);
+    }
+
+    private static void add(IndexWriter writer, Path file) throws IOException {
+        DocumentTemplate template = new DocumentTemplate();
+        Document doc = template.fill(file, attrs(file));
+        template.setContents("text", false);
+        writer.updateDocument(new Term("path", file.toString()), doc);
+    }
+
+    private static int count(Directory dir, Path file) throws IOException {
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+            return new IndexSearcher(reader).count(new TermQuery(new Term("path", file.toString())));
+        }
+    }
+
+    @Test
+    public void findsUnchangedFiles() throws IOException {
+        Path docs = folder.newFolder("docs").toPath();
+        Path same = write(docs.resolve("same.txt"), "same");
+        Path longer = write(docs.resolve("longer.txt"), "short");
+        Path touched = write(docs.resolve("touched.txt"), "touched");
+        Path updated = write(docs.resolve("updated.txt"), "old");
+
+        try (Directory dir = new ByteBuffersDirectory();
+             IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+            for (Path file : new Path[] {same, longer, touched, updated}) {
+                add(writer, file);
+            }
+            // the old version of a file updated in the index is not looked at
+            write(updated, "new");
+            Files.setLastModifiedTime(updated, FileTime.fromMillis(1000));
+            add(writer, updated);
+            writer.commit();
+
+            write(longer, "longer");
+            long modified = attrs(touched).lastModifiedTime().toMillis();
+            Files.setLastModifiedTime(touched, FileTime.fromMillis(modified + 5000));
+            Path added = write(docs.resolve("added.txt"), "added");
+
+            try (IncrementalIndex incremental = IncrementalIndex.open(writer)) {
+                assertTrue(incremental.isUnchanged(same, attrs(same)));
+                assertFalse(incremental.isUnchanged(longer, attrs(longer)));
+                assertFalse(incremental.isUnchanged(touched, attrs(touched)));
+                assertTrue(incremental.isUnchanged(updated, attrs(updated)));
+                assertFalse(incremental.isUnchanged(added, attrs(added)));
+                assertEquals(2, incremental.getUnchanged());
+            }
+        }
+    }
+
+    @Test
+    public void deletesFilesNotSeen() throws IOException {
+        Path docs = folder.newFolder("docs").toPath();
+        Path other = folder.newFolder("other").toPath();
+        Path kept = write(docs.resolve("kept.txt"), "kept");
+        Path changed = write(docs.resolve("sub/changed.txt"), "changed");
+        Path removed = write(docs.resolve("sub/removed.txt"), "removed");
+        Path outside = write(other.resolve("outside.txt"), "outside");
+
+        try (Directory dir = new ByteBuffersDirectory();
+             IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+            for (Path file : new Path[] {kept, changed, removed, outside}) {
+                add(writer, file);
+            }
+            writer.commit();
+            write(changed, "changed again");
+            Files.delete(removed);
+
+            try (IncrementalIndex incremental = IncrementalIndex.open(writer)) {
+                // the walk only finds the files still there, changed or not
+                assertTrue(incremental.isUnchanged(kept, attrs(kept)));
+                assertFalse(incremental.isUnchanged(changed, attrs(changed)));
+
+                // only the documents under the folders walked are deleted
+                assertEquals(1, incremental.deleteMissing(writer, Collections.singletonList(docs)));
+            }
+            writer.commit();
+
+            assertEquals(1, count(dir, kept));
+            assertEquals(1, count(dir, changed));
+            assertEquals(0, count(dir, removed));
+            assertEquals(1, count(dir, outside));
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class IndexFilesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void restoreOptions() {
+        IndexFiles.setContentsOptions(-1, -1, true, -1, false);
+    }
+
+    private Path write(String text) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static String repeat(char c, int times) {
+        char[] chars = new char[times];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    public void takesLastLines() throws IOException {
+        assertEquals(Arrays.asList("b", "c"), IndexFiles.getLastLines(write("a\nb\nc\n"), 2));
+        assertEquals(Arrays.asList("b", "c"), IndexFiles.getLastLines(write("a\nb\nc"), 2));
+        assertEquals(Arrays.asList("b", "c"), IndexFiles.getLastLines(write("a\r\nb\r\nc\r\n"), 2));
+        assertEquals(Arrays.asList("", "c"), IndexFiles.getLastLines(write("a\n\nc\n"), 2));
+        assertEquals(Arrays.asList("a", "b", "c"), IndexFiles.getLastLines(write("a\nb\nc\n"), 10));
+        assertEquals(Collections.emptyList(), IndexFiles.getLastLines(write("a\nb\nc\n"), 0));
+        assertEquals(Collections.emptyList(), IndexFiles.getLastLines(write(""), 3));
+        assertEquals(Arrays.asList("año", "ñandú"), IndexFiles.getLastLines(write("x\naño\nñandú\n"), 2));
+    }
+
+    @Test
+    public void takesLastLinesAcrossBlocks() throws IOException {
+        // lines longer than the blocks scanned backwards, with breaks right at their edges
+        String first = repeat('a', 8191);
+        String second = repeat('b', 20000);
+        String third = repeat('c', 8192);
+        Path file = write(first + "\n" + second + "\n" + third + "\n");
+        assertEquals(Arrays.asList(third), IndexFiles.getLastLines(file, 1));
+        assertEquals(Arrays.asList(second, third), IndexFiles.getLastLines(file, 2));
+        assertEquals(Arrays.asList(first, second, third), IndexFiles.getLastLines(file, 3));
+    }
+
+    @Test
+    public void takesFirstAndLastLines() throws IOException {
+        String text = "1\n2\n3\n4\n5\n6\n";
+        assertEquals(Arrays.asList("1", "2", "5", "6"), IndexFiles.getLines(new StringReader(text), 2, 2));
+        assertEquals(Arrays.asList("1", "2"), IndexFiles.getLines(new StringReader(text), 2, -1));
+        assertEquals(Arrays.asList("4", "5", "6"), IndexFiles.getLines(new StringReader(text), -1, 3));
+        assertEquals(Arrays.asList("1", "2"), IndexFiles.getLines(new StringReader(text), 2, 0));
+        // lines are not taken twice when the first and the last overlap
+        assertEquals(Arrays.asList("1", "2", "3"), IndexFiles.getLines(new StringReader("1\n2\n3"), 2, 2));
+        assertEquals(Collections.emptyList(), IndexFiles.getLines(new StringReader(""), 2, 2));
+    }
+
+    @Test
+    public void takesSameLastLinesFromFileAndReader() throws IOException {
+        Random random = new Random(5);
+        for (int run=0; run<50; run++) {
+            StringBuilder text = new StringBuilder();
+            int numLines = random.nextInt(30);
+            for (int i=0; i<numLines; i++) {
+                text.append(repeat((char) ('a' + random.nextInt(26)), random.nextInt(3000)));
+                text.append(random.nextBoolean() ? "\n" : "\r\n");
+            }
+            if (random.nextBoolean() && text.length() > 0) {
+                text.setLength(text.length() - 1);
+            }
+            Path file = write(text.toString());
+            int n = random.nextInt(numLines + 2);
+            List<String> expected = IndexFiles.getLines(new StringReader(text.toString()), -1, n);
+            assertEquals(expected, IndexFiles.getLastLines(file, n));
+        }
+    }
+
+    @Test
+    public void readsOnlyLinesAsked() throws IOException {
+        Path file = write("1\n2\n3\n4\n5\n");
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+
+        IndexFiles.setContentsOptions(1, 2, true, -1, false);
+        assertEquals("1\n4\n5", IndexFiles.readContents(file, attrs));
+        IndexFiles.setContentsOptions(-1, 2, true, -1, false);
+        assertEquals("4\n5", IndexFiles.readContents(file, attrs));
+        IndexFiles.setContentsOptions(2, -1, true, -1, false);
+        assertEquals("1\n2", IndexFiles.readContents(file, attrs));
+        IndexFiles.setContentsOptions(-1, -1, true, -1, false);
+        assertEquals("1\n2\n3\n4\n5\n", IndexFiles.readContents(file, attrs));
+    }
+
+    @Test
+    public void keepsFirstAndLastLinesOfLongText() throws IOException {
+        List<String> lines = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        for (int i=0; i<1000; i++) {
+            lines.add("line" + i);
+            text.append("line").append(i).append('\n');
+        }
+        List<String> expected = new ArrayList<>(lines.subList(0, 3));
+        expected.addAll(lines.subList(990, 1000));
+        assertEquals(expected, IndexFiles.getLines(new StringReader(text.toString()), 3, 10));
+    }
+}
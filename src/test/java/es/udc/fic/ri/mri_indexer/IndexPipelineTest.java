@@ -0,0 +1,200 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class IndexPipelineTest {
+
+    private static final int NUM_FILES = 40;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void restoreOptions() {
+        IndexFiles.setContentsOptions(-1, -1, true, -1, false);
+    }
+
+    /* Files whose text names them, so a document filled from the wrong template or file is told */
+    private Path writeFiles() throws IOException {
+        Path docs = folder.newFolder("docs").toPath();
+        for (int i=0; i<NUM_FILES; i++) {
+            Files.write(docs.resolve("file" + i + ".txt"), textOf(i).getBytes(StandardCharsets.UTF_8));
+        }
+        return docs;
+    }
+
+    private static String textOf(int i) {
+        StringBuilder text = new StringBuilder("file").append(i).append('\n');
+        for (int j=0; j<i; j++) {
+            text.append("word").append(j).append(' ');
+        }
+        return text.toString();
+    }
+
+    private static IndexWriter newWriter(Directory dir) throws IOException {
+        return new IndexWriter(dir, new IndexWriterConfig(new WhitespaceAnalyzer()));
+    }
+
+    /* Indexes the files with a few builders and small batches, so the templates are reused many times */
+    private static IndexProgress index(IndexWriter writer, Path docs, IncrementalIndex incremental, int virtualReads)
+            throws IOException, InterruptedException {
+        IndexProgress progress = new IndexProgress();
+        new IndexPipeline(incremental, progress, 3, 1024 * 1024, 2, 2, 2, 4, virtualReads)
+                .indexAll(new String[] {docs.toString()}, writer, null, 8);
+        return progress;
+    }
+
+    private static DirectoryReader index(Directory dir, Path docs) throws IOException, InterruptedException {
+        try (IndexWriter writer = newWriter(dir)) {
+            index(writer, docs, null, 0);
+        }
+        return DirectoryReader.open(dir);
+    }
+
+    private static int fileNumber(Document doc) {
+        String name = doc.get("path").replaceAll(".*file", "");
+        return Integer.parseInt(name.substring(0, name.length() - ".txt".length()));
+    }
+
+    private static void assertIndexed(DirectoryReader reader) throws IOException {
+        assertEquals(NUM_FILES, reader.numDocs());
+        IndexSearcher searcher = new IndexSearcher(reader);
+        for (int i=0; i<NUM_FILES; i++) {
+            assertEquals(1, searcher.count(new TermQuery(new Term("contents", "file" + i))));
+            // every file but the last one has the word
+            assertEquals(NUM_FILES - 1 - i, searcher.count(new TermQuery(new Term("contents", "word" + i))));
+        }
+    }
+
+    @Test
+    public void storesWholeText() throws IOException, InterruptedException {
+        try (Directory dir = new ByteBuffersDirectory(); DirectoryReader reader = index(dir, writeFiles())) {
+            assertIndexed(reader);
+            for (int doc=0; doc<reader.maxDoc(); doc++) {
+                Document document = reader.document(doc);
+                assertEquals(textOf(fileNumber(document)), document.get("contents"));
+            }
+        }
+    }
+
+    @Test
+    public void streamsCappedCopy() throws IOException, InterruptedException {
+        IndexFiles.setContentsOptions(-1, -1, true, 12, false);
+        try (Directory dir = new ByteBuffersDirectory(); DirectoryReader reader = index(dir, writeFiles())) {
+            assertIndexed(reader);
+            for (int doc=0; doc<reader.maxDoc(); doc++) {
+                Document document = reader.document(doc);
+                String text = textOf(fileNumber(document));
+                assertEquals(text.substring(0, Math.min(12, text.length())), document.get("contents"));
+            }
+        }
+    }
+
+    @Test
+    public void streamsCompressedCopy() throws IOException, InterruptedException {
+        IndexFiles.setContentsOptions(-1, -1, true, -1, true);
+        try (Directory dir = new ByteBuffersDirectory(); DirectoryReader reader = index(dir, writeFiles())) {
+            assertIndexed(reader);
+            for (int doc=0; doc<reader.maxDoc(); doc++) {
+                Document document = reader.document(doc);
+                BytesRef bytes = BytesRef.deepCopyOf(document.getBinaryValue("contents"));
+                assertEquals(textOf(fileNumber(document)), inflate(bytes.bytes));
+            }
+        }
+    }
+
+    @Test
+    public void streamsWithoutStoring() throws IOException, InterruptedException {
+        IndexFiles.setContentsOptions(-1, -1, false, -1, false);
+        try (Directory dir = new ByteBuffersDirectory(); DirectoryReader reader = index(dir, writeFiles())) {
+            assertIndexed(reader);
+            for (int doc=0; doc<reader.maxDoc(); doc++) {
+                assertNull(reader.document(doc).get("contents"));
+            }
+        }
+    }
+
+    @Test
+    public void indexesTopLines() throws IOException, InterruptedException {
+        IndexFiles.setContentsOptions(1, -1, true, -1, false);
+        try (Directory dir = new ByteBuffersDirectory(); DirectoryReader reader = index(dir, writeFiles())) {
+            assertEquals(NUM_FILES, reader.numDocs());
+            IndexSearcher searcher = new IndexSearcher(reader);
+            assertEquals(0, searcher.count(new TermQuery(new Term("contents", "word0"))));
+            for (int doc=0; doc<reader.maxDoc(); doc++) {
+                Document document = reader.document(doc);
+                assertEquals("file" + fileNumber(document), document.get("contents"));
+            }
+        }
+    }
+
+    @Test
+    public void skipsUnchangedFiles() throws IOException, InterruptedException {
+        skipsUnchangedFiles(0);
+    }
+
+    @Test
+    public void skipsUnchangedFilesBeforeReadingOnVirtualThreads() throws IOException, InterruptedException {
+        assumeTrue(IndexPipeline.hasVirtualThreads());
+        skipsUnchangedFiles(4);
+    }
+
+    private void skipsUnchangedFiles(int virtualReads) throws IOException, InterruptedException {
+        Path docs = writeFiles();
+        try (Directory dir = new ByteBuffersDirectory()) {
+            index(dir, docs).close();
+            Files.write(docs.resolve("file3.txt"), "file3 changed".getBytes(StandardCharsets.UTF_8));
+
+            IndexProgress progress;
+            try (IndexWriter writer = newWriter(dir); IncrementalIndex incremental = IncrementalIndex.open(writer)) {
+                progress = index(writer, docs, incremental, virtualReads);
+                assertEquals(NUM_FILES - 1, incremental.getUnchanged());
+            }
+            assertTrue(progress.toString(), progress.toString().startsWith(
+                    "[progress] 1 documents written (1 added, 0 updated), " + (NUM_FILES - 1) + " skipped, 0 failed"));
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                assertEquals(1, new IndexSearcher(reader).count(new TermQuery(new Term("contents", "changed"))));
+            }
+        }
+    }
+
+    private static String inflate(byte[] bytes) throws IOException {
+        StringBuilder text = new StringBuilder();
+        try (Reader in = new InputStreamReader(new InflaterInputStream(new ByteArrayInputStream(bytes)),
+                StandardCharsets.UTF_8)) {
+            int c;
+            while ((c = in.read()) != -1) {
+                text.append((char) c);
+            }
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,154 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PartialIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void resetRun() {
+        IndexFiles.reset();
+    }
+
+    @Test
+    public void finishesOnceWalkedAndDone() {
+        AtomicInteger finished = new AtomicInteger();
+        PartialIndex partial = new PartialIndex(null, null, index -> finished.incrementAndGet());
+        partial.queued();
+        partial.queued();
+        partial.dequeued();
+        partial.done(1);
+        partial.dequeued();
+        assertFalse(partial.isDequeued());
+
+        // every file is written, but more could still be queued
+        partial.done(1);
+        assertEquals(0, finished.get());
+        partial.walked();
+        assertTrue(partial.isDequeued());
+        assertEquals(1, finished.get());
+    }
+
+    @Test
+    public void finishesWhenLastFileIsDone() {
+        AtomicInteger finished = new AtomicInteger();
+        PartialIndex partial = new PartialIndex(null, null, index -> finished.incrementAndGet());
+        partial.queued();
+        partial.walked();
+        assertEquals(0, finished.get());
+        partial.dequeued();
+        partial.done(1);
+        assertEquals(1, finished.get());
+    }
+
+    @Test
+    public void finishesEmptyFolder() {
+        AtomicInteger finished = new AtomicInteger();
+        PartialIndex partial = new PartialIndex(null, null, index -> finished.incrementAndGet());
+        partial.walked();
+        assertEquals(1, finished.get());
+    }
+
+    private static Path writeFolder(Path folder, String name, int numFiles) throws IOException {
+        Path docs = Files.createDirectories(folder.resolve(name));
+        for (int i=0; i<numFiles; i++) {
+            Files.write(docs.resolve(name + i + ".txt"), (name + " doc" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        return docs;
+    }
+
+    private static IndexWriter newWriter(Directory dir) throws IOException {
+        return new IndexWriter(dir, new IndexWriterConfig(new WhitespaceAnalyzer()));
+    }
+
+    @Test
+    public void mergesEachPartialIndex() throws Exception {
+        mergesEachPartialIndex(false);
+    }
+
+    @Test
+    public void mergesEachPartialIndexOfPipeline() throws Exception {
+        mergesEachPartialIndex(true);
+    }
+
+    private void mergesEachPartialIndex(boolean pipeline) throws Exception {
+        Path root = folder.getRoot().toPath();
+        String[] docs = {writeFolder(root, "first", 10).toString(), writeFolder(root, "second", 150).toString(),
+                writeFolder(root, "empty", 0).toString()};
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<Future<?>> merges = Collections.synchronizedList(new ArrayList<>());
+        try (Directory dir = new ByteBuffersDirectory(); IndexWriter writer = newWriter(dir)) {
+            PartialIndex[] partials = new PartialIndex[docs.length];
+            for (int i=0; i<docs.length; i++) {
+                Path path = root.resolve("partial" + i);
+                partials[i] = new PartialIndex(path, newWriter(FSDirectory.open(path)),
+                        partial -> merges.add(executor.submit(() -> {
+                            IndexFiles.mergePartialIndex(writer, partial, true);
+                            return null;
+                        })));
+            }
+
+            if (pipeline) {
+                new IndexPipeline(null, new IndexProgress(), 4, 1024 * 1024, 2, 2, 2, 4, 0)
+                        .indexAll(docs, writer, partials, 8);
+            } else {
+                IndexFiles.indexAll(docs, writer, partials, 3, 8);
+            }
+            // every partial index is handed to the merges once its files are written
+            assertEquals(docs.length, merges.size());
+            for (Future<?> merge : merges) {
+                try {
+                    merge.get();
+                } catch (ExecutionException e) {
+                    throw (Exception) e.getCause();
+                }
+            }
+            writer.commit();
+
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                assertEquals(160, reader.numDocs());
+                IndexSearcher searcher = new IndexSearcher(reader);
+                assertEquals(10, searcher.count(new TermQuery(new Term("contents", "first"))));
+                assertEquals(150, searcher.count(new TermQuery(new Term("contents", "second"))));
+            }
+            for (int i=0; i<docs.length; i++) {
+                assertFalse(Files.exists(root.resolve("partial" + i)));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class QueryServerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String parseError(String request, Path outputDir) {
+        try {
+            QueryServer.parse(request.split("\\s+"), outputDir);
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+        fail("Accepted " + request);
+        return null;
+    }
+
+    @Test
+    public void rejectsOptionWithoutValue() {
+        assertEquals("Missing value for -term", parseError("SimilarTerms -field contents -term", null));
+        assertEquals("Missing value for -top", parseError("BestTerms -field contents -docID 1 -top", null));
+    }
+
+    @Test
+    public void rejectsUnknownTool() {
+        assertEquals("Unknown tool: Nothing", parseError("Nothing -field contents", null));
+    }
+
+    @Test
+    public void refusesWriteIndexWithoutOutputDir() {
+        assertEquals("WriteIndex is only served with -outputDir", parseError("WriteIndex -outputfile terms", null));
+    }
+
+    @Test
+    public void keepsWriteIndexInsideOutputDir() throws IOException {
+        Path outputDir = folder.newFolder("out").toPath().toRealPath();
+        Path outside = folder.newFolder("outside").toPath().toRealPath();
+        Files.createDirectory(outputDir.resolve("sub"));
+
+        assertTrue(QueryServer.parse(new String[] {"WriteIndex", "-outputfile", "terms"}, outputDir)
+                instanceof WriteIndex);
+        QueryServer.parse(new String[] {"WriteIndex", "-outputfile", "sub/terms", "-split"}, outputDir);
+        QueryServer.parse(new String[] {"WriteIndex", "-outputfile", "sub/../terms"}, outputDir);
+        QueryServer.parse(new String[] {"WriteIndex", "-outputfile", outputDir.resolve("terms").toString()},
+                outputDir);
+
+        String error = "outputfile must be inside the output folder: ";
+        assertEquals(error + "../terms", parseError("WriteIndex -outputfile ../terms", outputDir));
+        assertEquals(error + outside.resolve("terms"),
+                parseError("WriteIndex -outputfile " + outside.resolve("terms"), outputDir));
+        assertEquals(error + ".", parseError("WriteIndex -outputfile .", outputDir));
+
+        // links leading out of the folder, to the file itself or to a folder on its way
+        Files.createSymbolicLink(outputDir.resolve("link"), outside);
+        Files.createSymbolicLink(outputDir.resolve("file"), outside.resolve("terms"));
+        assertEquals(error + "link/terms", parseError("WriteIndex -outputfile link/terms", outputDir));
+        assertEquals(error + "link/new/terms", parseError("WriteIndex -outputfile link/new/terms -split", outputDir));
+        assertEquals(error + "file", parseError("WriteIndex -outputfile file", outputDir));
+    }
+}
@@ -0,0 +1,103 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResultCacheTest {
+
+    private static byte[] response(int size) {
+        byte[] bytes = new byte[size];
+        bytes[0] = (byte) size;
+        return bytes;
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+        ResultCache cache = new ResultCache(100);
+        assertNull(cache.get(1, "a"));
+        cache.put(1, "a", response(10));
+        assertArrayEquals(response(10), cache.get(1, "a"));
+        assertArrayEquals(response(10), cache.get(1, "a"));
+        assertNull(cache.get(1, "b"));
+
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertTrue(cache.toString(), cache.toString().startsWith("2 hits, 2 misses (50.0% hit rate), 0 evictions"));
+    }
+
+    @Test
+    public void dropsEntriesOfOlderVersions() {
+        ResultCache cache = new ResultCache(100);
+        cache.get(1, "a");
+        cache.put(1, "a", response(10));
+        cache.put(1, "b", response(20));
+
+        // the first lookup with a newer reader drops everything
+        assertNull(cache.get(2, "a"));
+        assertNull(cache.get(2, "b"));
+        assertTrue(cache.toString(), cache.toString().endsWith("0 entries, 0/100 bytes"));
+
+        // and the queries still running over the older reader neither hit nor fill the cache
+        assertNull(cache.get(1, "a"));
+        cache.put(1, "a", response(10));
+        assertNull(cache.get(2, "a"));
+        assertEquals(0, cache.getHits());
+        assertEquals(5, cache.getMisses());
+    }
+
+    @Test
+    public void ignoresPutsOfOlderVersion() {
+        ResultCache cache = new ResultCache(100);
+        cache.get(5, "a");
+        cache.put(4, "a", response(10));
+        cache.put(5, "b", response(10));
+        assertNull(cache.get(5, "a"));
+        assertArrayEquals(response(10), cache.get(5, "b"));
+        assertTrue(cache.toString(), cache.toString().endsWith("1 entries, 10/100 bytes"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedBySize() {
+        ResultCache cache = new ResultCache(100);
+        cache.get(1, "a");
+        cache.put(1, "a", response(40));
+        cache.put(1, "b", response(40));
+        // using "a" makes "b" the least recently used one
+        assertArrayEquals(response(40), cache.get(1, "a"));
+        cache.put(1, "c", response(30));
+
+        assertNull(cache.get(1, "b"));
+        assertArrayEquals(response(40), cache.get(1, "a"));
+        assertArrayEquals(response(30), cache.get(1, "c"));
+        assertTrue(cache.toString(), cache.toString().endsWith("1 evictions, 2 entries, 70/100 bytes"));
+
+        // replacing an entry only counts its new size
+        cache.put(1, "a", response(60));
+        assertTrue(cache.toString(), cache.toString().endsWith("1 evictions, 2 entries, 90/100 bytes"));
+        cache.put(1, "d", response(50));
+        assertNull(cache.get(1, "c"));
+        assertNull(cache.get(1, "a"));
+        assertArrayEquals(response(50), cache.get(1, "d"));
+        assertTrue(cache.toString(), cache.toString().endsWith("3 evictions, 1 entries, 50/100 bytes"));
+    }
+
+    @Test
+    public void rejectsResponsesLargerThanCache() {
+        ResultCache cache = new ResultCache(100);
+        cache.get(1, "a");
+        cache.put(1, "a", response(50));
+        cache.put(1, "big", response(101));
+
+        assertNull(cache.get(1, "big"));
+        // nothing was evicted to make room for it
+        assertArrayEquals(response(50), cache.get(1, "a"));
+        assertTrue(cache.toString(), cache.toString().endsWith("0 evictions, 1 entries, 50/100 bytes"));
+
+        cache.put(1, "full", response(100));
+        assertArrayEquals(response(100), cache.get(1, "full"));
+    }
+}
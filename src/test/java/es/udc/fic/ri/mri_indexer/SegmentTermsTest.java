@@ -0,0 +1,169 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentTermsTest {
+
+    private static Directory dir;
+    private static DirectoryReader reader;
+
+    /*
+     * One segment per commit, as merges are disabled: one with more terms than a block holds, one with a term
+     * whose postings don't fit in a block, one without the field and a few small random ones sharing terms.
+     */
+    @BeforeClass
+    public static void createIndex() throws IOException {
+        dir = new ByteBuffersDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(new WhitespaceAnalyzer())
+                .setMergePolicy(NoMergePolicy.INSTANCE);
+        try (IndexWriter writer = new IndexWriter(dir, config)) {
+            for (int i=0; i<600; i++) {
+                StringBuilder text = new StringBuilder();
+                for (int j=0; j<10; j++) {
+                    text.append("unique").append(i * 10 + j).append(' ');
+                }
+                writer.addDocument(newDocument(text.append("shared").toString()));
+            }
+            writer.commit();
+
+            for (int i=0; i<70000; i++) {
+                writer.addDocument(newDocument("common common term" + (i % 50)));
+            }
+            writer.commit();
+
+            Document other = new Document();
+            other.add(new StringField("path", "other", Field.Store.YES));
+            writer.addDocument(other);
+            writer.commit();
+
+            Random random = new Random(7);
+            for (int s=0; s<4; s++) {
+                for (int i=0; i<200; i++) {
+                    StringBuilder text = new StringBuilder();
+                    int numTokens = 1 + random.nextInt(20);
+                    for (int j=0; j<numTokens; j++) {
+                        text.append("term").append(random.nextInt(80)).append(' ');
+                    }
+                    writer.addDocument(newDocument(text.toString()));
+                }
+                writer.commit();
+            }
+        }
+        reader = DirectoryReader.open(dir);
+        assertEquals(7, reader.leaves().size());
+    }
+
+    private static Document newDocument(String text) {
+        Document doc = new Document();
+        doc.add(new TextField("contents", text, Field.Store.NO));
+        return doc;
+    }
+
+    @AfterClass
+    public static void closeIndex() throws IOException {
+        reader.close();
+        dir.close();
+    }
+
+    @Test
+    public void mergesLikeMultiTermsWithPostings() throws IOException {
+        List<String> expected = readMultiTerms("contents", true);
+        List<String> actual = new ArrayList<>();
+        List<SegmentTerms> segments = SegmentTerms.open(reader, "contents", true);
+        long numTerms = SegmentTerms.merge(segments, (term, df, holders, ords, count) ->
+                actual.add(describe(term, df, holders, ords, count, true)));
+
+        assertEquals(expected.size(), numTerms);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void mergesLikeMultiTermsWithoutPostings() throws IOException {
+        List<String> expected = readMultiTerms("contents", false);
+        List<String> actual = new ArrayList<>();
+        List<SegmentTerms> segments = SegmentTerms.open(reader, "contents", false);
+        long numTerms = SegmentTerms.merge(segments, (term, df, holders, ords, count) ->
+                actual.add(describe(term, df, holders, ords, count, false)));
+
+        assertEquals(expected.size(), numTerms);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void mergesNothingForMissingField() throws IOException {
+        List<SegmentTerms> segments = SegmentTerms.open(reader, "missing", true);
+        assertEquals(reader.leaves().size(), segments.size());
+        long numTerms = SegmentTerms.merge(segments, (term, df, holders, ords, count) -> {
+            throw new AssertionError("Unexpected term " + term.utf8ToString());
+        });
+        assertEquals(0, numTerms);
+    }
+
+    /* The terms of the whole index as MultiTerms enumerates them, described as describe does */
+    private static List<String> readMultiTerms(String field, boolean withPostings) throws IOException {
+        List<String> result = new ArrayList<>();
+        Terms terms = MultiTerms.getTerms(reader, field);
+        TermsEnum termsEnum = terms.iterator();
+        PostingsEnum postings = null;
+        BytesRef term;
+        while ((term = termsEnum.next()) != null) {
+            StringBuilder line = new StringBuilder(term.utf8ToString())
+                    .append(" df=").append(termsEnum.docFreq())
+                    .append(" ttf=").append(termsEnum.totalTermFreq());
+            if (withPostings) {
+                postings = termsEnum.postings(postings, PostingsEnum.FREQS);
+                while (postings.nextDoc() != PostingsEnum.NO_MORE_DOCS) {
+                    line.append(' ').append(postings.docID()).append(':').append(postings.freq());
+                }
+            }
+            result.add(line.toString());
+        }
+        assertTrue(result.size() > 6000);
+        return result;
+    }
+
+    private static String describe(BytesRef term, int df, SegmentTerms[] segments, int[] ords, int count,
+                                   boolean withPostings) {
+        long ttf = 0;
+        for (int i=0; i<count; i++) {
+            ttf += segments[i].getTotalTermFreq(ords[i]);
+        }
+        StringBuilder line = new StringBuilder(term.utf8ToString())
+                .append(" df=").append(df)
+                .append(" ttf=").append(ttf);
+        if (withPostings) {
+            for (int i=0; i<count; i++) {
+                for (int j=segments[i].getStart(ords[i]); j<segments[i].getEnd(ords[i]); j++) {
+                    line.append(' ').append(segments[i].getDoc(j)).append(':').append(segments[i].getFreq(j));
+                }
+            }
+        }
+        return line.toString();
+    }
+}
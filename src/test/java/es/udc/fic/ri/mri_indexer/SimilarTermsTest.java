@@ -0,0 +1,272 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SimilarTermsTest {
+
+    private static final String FIELD = "contents";
+    private static final String[] REPS = {"bin", "tf", "tfxidf"};
+    private static final int NUM_DOCS = 60;
+
+    private static final FieldType VECTORS_TYPE = new FieldType(TextField.TYPE_NOT_STORED);
+    static {
+        VECTORS_TYPE.setStoreTermVectors(true);
+        VECTORS_TYPE.freeze();
+    }
+
+    private static Directory dir;
+    private static DirectoryReader reader;
+    /* The same documents with term vectors, to score by query */
+    private static Directory vectorsDir;
+    private static DirectoryReader vectorsReader;
+
+    /* Frequency of each term in each document, with the terms sorted as in the index */
+    private static final Map<String, int[]> freqs = new TreeMap<>();
+
+    @BeforeClass
+    public static void createIndex() throws IOException {
+        Random random = new Random(11);
+        String[] texts = new String[NUM_DOCS];
+        for (int doc=0; doc<NUM_DOCS; doc++) {
+            StringBuilder text = new StringBuilder();
+            int numTokens = 1 + random.nextInt(10);
+            for (int j=0; j<numTokens; j++) {
+                String term = String.format("t%02d", random.nextInt(30));
+                freqs.computeIfAbsent(term, t -> new int[NUM_DOCS])[doc]++;
+                text.append(term).append(' ');
+            }
+            texts[doc] = text.toString();
+        }
+
+        dir = new ByteBuffersDirectory();
+        writeDocuments(dir, texts, TextField.TYPE_NOT_STORED);
+        reader = DirectoryReader.open(dir);
+        vectorsDir = new ByteBuffersDirectory();
+        writeDocuments(vectorsDir, texts, VECTORS_TYPE);
+        vectorsReader = DirectoryReader.open(vectorsDir);
+    }
+
+    private static void writeDocuments(Directory directory, String[] texts, FieldType type) throws IOException {
+        IndexWriterConfig config = new IndexWriterConfig(new WhitespaceAnalyzer());
+        config.setMergePolicy(NoMergePolicy.INSTANCE);
+        try (IndexWriter writer = new IndexWriter(directory, config)) {
+            for (int doc=0; doc<texts.length; doc++) {
+                Document document = new Document();
+                document.add(new Field(FIELD, texts[doc], type));
+                writer.addDocument(document);
+                // several segments, so the vectors are merged from all of them
+                if (doc % 20 == 19) {
+                    writer.commit();
+                }
+            }
+        }
+    }
+
+    @AfterClass
+    public static void closeIndex() throws IOException {
+        reader.close();
+        dir.close();
+        vectorsReader.close();
+        vectorsDir.close();
+    }
+
+    /* The vector of the term with every document, as the dense vectors used to be built */
+    private static double[] denseVector(String term, String rep) {
+        int[] termFreqs = freqs.get(term);
+        int df = 0;
+        for (int freq : termFreqs) {
+            df += freq > 0 ? 1 : 0;
+        }
+        double[] vector = new double[NUM_DOCS];
+        for (int doc=0; doc<NUM_DOCS; doc++) {
+            vector[doc] = termFreqs[doc] == 0 ? 0 : SimilarTerms.getWeight(rep, termFreqs[doc], df, NUM_DOCS);
+        }
+        return vector;
+    }
+
+    private static double cosine(double[] v1, double[] v2) {
+        double dot = 0, norm1 = 0, norm2 = 0;
+        for (int i=0; i<v1.length; i++) {
+            dot += v1[i] * v2[i];
+            norm1 += v1[i] * v1[i];
+            norm2 += v2[i] * v2[i];
+        }
+        double cosine = dot / (Math.sqrt(norm1) * Math.sqrt(norm2));
+        return Double.isNaN(cosine) ? 0.0 : cosine;
+    }
+
+    private static double dot(double[] v1, double[] v2) {
+        double dot = 0;
+        for (int i=0; i<v1.length; i++) {
+            dot += v1[i] * v2[i];
+        }
+        return dot;
+    }
+
+    @Test
+    public void keepsOnlyDocumentsOfEachTerm() throws IOException {
+        for (String rep : REPS) {
+            TermMatrix vectors = SimilarTerms.getTermVectors(reader, FIELD, rep);
+            assertEquals(freqs.size(), vectors.size());
+            int ord = 0;
+            for (Map.Entry<String, int[]> entry : freqs.entrySet()) {
+                assertEquals(entry.getKey(), vectors.getTerm(ord));
+                List<Integer> docs = new ArrayList<>();
+                for (int doc=0; doc<NUM_DOCS; doc++) {
+                    if (entry.getValue()[doc] > 0) {
+                        docs.add(doc);
+                    }
+                }
+                int[] expected = docs.stream().mapToInt(Integer::intValue).toArray();
+                assertArrayEquals(expected, vectors.getDocs(ord));
+
+                double[] dense = denseVector(entry.getKey(), rep);
+                double[] weights = vectors.getWeights(ord);
+                for (int i=0; i<expected.length; i++) {
+                    assertEquals(dense[expected[i]], weights[i], 1e-12);
+                }
+                assertEquals(Math.sqrt(dot(dense, dense)), vectors.getNorm(ord), 1e-9);
+                ord++;
+            }
+        }
+    }
+
+    @Test
+    public void mergesSameCosineAsDenseVectors() throws IOException {
+        for (String rep : REPS) {
+            TermMatrix vectors = SimilarTerms.getTermVectors(reader, FIELD, rep);
+            for (int ord1=0; ord1<vectors.size(); ord1++) {
+                double[] dense1 = denseVector(vectors.getTerm(ord1), rep);
+                for (int ord2=0; ord2<vectors.size(); ord2++) {
+                    double expected = cosine(dense1, denseVector(vectors.getTerm(ord2), rep));
+                    assertEquals(rep + " " + ord1 + " " + ord2, expected, vectors.getCosineSimilarity(ord1, ord2),
+                            1e-9);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void ranksSameTermsAsDenseVectors() throws IOException {
+        List<String> terms = new ArrayList<>(freqs.keySet());
+        for (String rep : REPS) {
+            TermMatrix vectors = SimilarTerms.getTermVectors(reader, FIELD, rep);
+            for (String term : Arrays.asList(terms.get(0), terms.get(7), terms.get(terms.size() - 1))) {
+                double[] query = denseVector(term, rep);
+                List<String> others = new ArrayList<>(terms);
+                others.remove(term);
+                // a stable sort keeps the ties in the order of the terms
+                others.sort(Comparator.comparingDouble((String other) -> -cosine(query, denseVector(other, rep))));
+
+                List<TermSimilarity> ranking = SimilarTerms.getSimilarTerms(vectors, term, 5);
+                assertEquals(5, ranking.size());
+                for (int i=0; i<5; i++) {
+                    assertEquals(others.get(i), ranking.get(i).getName());
+                    assertEquals(cosine(query, denseVector(others.get(i), rep)), ranking.get(i).getSimilarity(),
+                            1e-9);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void findsNothingForUnknownTerm() throws IOException {
+        assertNull(SimilarTerms.getSimilarTerms(SimilarTerms.getTermVectors(reader, FIELD, "tf"), "missing", 5));
+    }
+
+    @Test
+    public void scoresByQuerySameAsWholeMatrix() throws IOException {
+        assertTrue(SimilarTerms.hasTermVectors(vectorsReader, FIELD));
+        for (String rep : REPS) {
+            TermMatrix vectors = SimilarTerms.getTermVectors(reader, FIELD, rep);
+            TermNorms norms = TermNorms.open(vectorsReader, FIELD, rep);
+            for (String term : freqs.keySet()) {
+                List<TermSimilarity> full = SimilarTerms.getSimilarTerms(vectors, term, freqs.size());
+                List<TermSimilarity> byQuery = SimilarTerms.getSimilarTerms(vectorsReader, norms, FIELD, term, rep,
+                        freqs.size());
+
+                // only the terms sharing a document with the query are scored
+                int coOccurring = 0;
+                while (coOccurring < full.size() && full.get(coOccurring).getSimilarity() > 1e-12) {
+                    coOccurring++;
+                }
+                assertEquals(rep + " " + term, coOccurring, byQuery.size());
+                for (int i=0; i<coOccurring; i++) {
+                    assertEquals(full.get(i).getSimilarity(), byQuery.get(i).getSimilarity(), 1e-9);
+                    assertEquals(cosine(denseVector(term, rep), denseVector(byQuery.get(i).getName(), rep)),
+                            byQuery.get(i).getSimilarity(), 1e-9);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void findsNothingByQueryForUnknownTerm() throws IOException {
+        TermNorms norms = TermNorms.open(vectorsReader, FIELD, "tf");
+        assertNull(SimilarTerms.getSimilarTerms(vectorsReader, norms, FIELD, "missing", "tf", 5));
+    }
+
+    @Test
+    public void scoresWholeVocabularyWithoutTermVectors() throws IOException {
+        assertFalse(SimilarTerms.hasTermVectors(reader, FIELD));
+        String[] args = {"-field", FIELD, "-term", "t03", "-top", "5", "-rep", "tf"};
+        String expected = run(reader, args).out;
+
+        String[] queryArgs = Arrays.copyOf(args, args.length + 2);
+        queryArgs[args.length] = "-mode";
+        queryArgs[args.length + 1] = "query";
+        Output fallback = run(reader, queryArgs);
+        assertEquals(expected, fallback.out);
+        assertTrue(fallback.err, fallback.err.startsWith("No term vectors for field 'contents'"));
+        assertEquals(expected, run(vectorsReader, queryArgs).out);
+    }
+
+    private static class Output {
+        String out;
+        String err;
+    }
+
+    private static Output run(DirectoryReader indexReader, String[] args) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        try (PrintStream outStream = new PrintStream(out, true, "UTF-8");
+             PrintStream errStream = new PrintStream(err, true, "UTF-8")) {
+            SimilarTerms.parse(args, false).run(indexReader, outStream, errStream);
+        }
+        Output output = new Output();
+        output.out = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        output.err = new String(err.toByteArray(), StandardCharsets.UTF_8);
+        return output;
+    }
+}
@@ -0,0 +1,106 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SphericalKMeansTest {
+
+    /* Sparse vectors over 1000 documents, each term taking 1 to 30 of them at random with random weights */
+    private static TermMatrix randomMatrix(int numTerms, long seed) {
+        Random random = new Random(seed);
+        TermMatrix matrix = new TermMatrix();
+        for (int t=0; t<numTerms; t++) {
+            matrix.startTerm(new BytesRef("term" + t));
+            int doc = -1;
+            int numEntries = 1 + random.nextInt(30);
+            for (int e=0; e<numEntries && doc < 999; e++) {
+                doc += 1 + random.nextInt(30);
+                matrix.addEntry(Math.min(doc, 999), 1 + random.nextInt(5));
+            }
+            matrix.finishTerm();
+        }
+        return matrix;
+    }
+
+    @Test
+    public void repeatsRunWithSameSeed() {
+        int[] ords = IntStream.range(0, 500).toArray();
+        SphericalKMeans kmeans = new SphericalKMeans(8, 50, 0, 1234);
+        int[] first = kmeans.cluster(randomMatrix(500, 99), ords);
+        int iterations = kmeans.getIterations();
+
+        for (int run=0; run<5; run++) {
+            // a fresh matrix and instance, as a new query would use
+            SphericalKMeans again = new SphericalKMeans(8, 50, 0, 1234);
+            assertArrayEquals(first, again.cluster(randomMatrix(500, 99), ords));
+            assertEquals(iterations, again.getIterations());
+            // the same instance run again
+            assertArrayEquals(first, kmeans.cluster(randomMatrix(500, 99), ords));
+        }
+
+        Set<Integer> clusters = new HashSet<>();
+        for (int c : first) {
+            assertTrue(c >= 0 && c < 8);
+            clusters.add(c);
+        }
+        assertEquals(8, clusters.size());
+    }
+
+    @Test
+    public void separatesOrthogonalGroups() {
+        // four groups of terms on disjoint documents, nearly parallel within each group
+        TermMatrix matrix = new TermMatrix();
+        for (int t=0; t<40; t++) {
+            int group = t % 4;
+            matrix.startTerm(new BytesRef("term" + t));
+            for (int d=0; d<5; d++) {
+                matrix.addEntry(group * 10 + d, d == t % 5 ? 1.1 : 1.0);
+            }
+            matrix.finishTerm();
+        }
+
+        int[] ords = IntStream.range(0, 40).toArray();
+        for (long seed : new long[] {1, 2, 3}) {
+            int[] clusters = new SphericalKMeans(4, 20, 0, seed).cluster(matrix, ords);
+            for (int t=4; t<40; t++) {
+                assertEquals("seed " + seed, clusters[t % 4], clusters[t]);
+            }
+            assertEquals(4, IntStream.of(clusters).distinct().count());
+        }
+    }
+
+    @Test
+    public void seedsFewerClustersThanDistinctVectors() {
+        TermMatrix matrix = new TermMatrix();
+        for (int t=0; t<6; t++) {
+            matrix.startTerm(new BytesRef("term" + t));
+            matrix.addEntry(t % 2, 2.0);
+            matrix.finishTerm();
+        }
+
+        int[] clusters = new SphericalKMeans(5, 10, 0, 7).cluster(matrix, IntStream.range(0, 6).toArray());
+        assertEquals(2, IntStream.of(clusters).distinct().count());
+        for (int t=2; t<6; t++) {
+            assertEquals(clusters[t % 2], clusters[t]);
+        }
+    }
+
+    @Test
+    public void clustersOnlyGivenTerms() {
+        TermMatrix matrix = randomMatrix(100, 5);
+        int[] ords = {3, 17, 42, 64, 99};
+        int[] clusters = new SphericalKMeans(3, 20, 0, 11).cluster(matrix, ords);
+        assertEquals(ords.length, clusters.length);
+        assertArrayEquals(clusters, new SphericalKMeans(3, 20, 0, 11).cluster(matrix, ords));
+        assertEquals(0, new SphericalKMeans(3, 20, 0, 11).cluster(matrix, new int[0]).length);
+    }
+}
@@ -0,0 +1,129 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StatsFieldTest {
+
+    /* Terms a (df 3, ttf 5), b (df 2, ttf 2), c (df 1, ttf 1) and d (df 1, ttf 4) in body */
+    private static Directory newIndex() throws IOException {
+        Directory dir = new ByteBuffersDirectory();
+        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+            writer.addDocument(doc("a a a b c", "x"));
+            writer.addDocument(doc("a b", "x"));
+            writer.addDocument(doc("a d d d d", "y"));
+        }
+        return dir;
+    }
+
+    private static Document doc(String body, String tag) {
+        Document doc = new Document();
+        doc.add(new TextField("body", body, Field.Store.NO));
+        doc.add(new StringField("tag", tag, Field.Store.NO));
+        return doc;
+    }
+
+    private static String run(Directory dir, String... args) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DirectoryReader reader = DirectoryReader.open(dir);
+             PrintStream print = new PrintStream(out, true, "UTF-8")) {
+            StatsField.parse(args, false).run(reader, print, System.err);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void countsTermsInOnePass() throws IOException {
+        try (Directory dir = newIndex()) {
+            String json = run(dir, "-field", "body", "-terms", "-top", "2", "-format", "jsonl");
+            assertEquals("{\"field\":\"body\",\"maxDoc\":3,\"sumDocFreq\":7,\"sumTotalTermFreq\":12,\"docCount\":3"
+                    + ",\"numTerms\":4,\"avgFieldLength\":4.0,\"dfHistogram\":[2,2],\"ttfHistogram\":[1,1,2]"
+                    + ",\"topDf\":[{\"term\":\"a\",\"df\":3},{\"term\":\"b\",\"df\":2}]"
+                    + ",\"topTtf\":[{\"term\":\"a\",\"ttf\":5},{\"term\":\"d\",\"ttf\":4}]}"
+                    + System.lineSeparator(), json);
+        }
+    }
+
+    @Test
+    public void printsHistogramsAsText() throws IOException {
+        try (Directory dir = newIndex()) {
+            List<String> lines = Arrays.asList(run(dir, "-field", "body", "-terms", "-top", "1")
+                    .split(System.lineSeparator()));
+            assertTrue(lines.contains(String.format("%-20s%-20d", "NUM_TERMS", 4)));
+            assertTrue(lines.contains(String.format("%-20s%-20s%d", "DF_HISTOGRAM", "1", 2)));
+            assertTrue(lines.contains(String.format("%-20s%-20s%d", "", "2-3", 2)));
+            assertTrue(lines.contains(String.format("%-20s%-20s%d", "TTF_HISTOGRAM", "1", 1)));
+            assertTrue(lines.contains(String.format("%-20s%-20s%d", "", "4-7", 2)));
+            assertTrue(lines.contains(String.format("%-20s%-20s%d", "TOP_DF", "a", 3)));
+            assertTrue(lines.contains(String.format("%-20s%-20s%d", "TOP_TTF", "a", 5)));
+        }
+    }
+
+    @Test
+    public void walksFieldsInParallelInTheSameOrder() throws IOException {
+        try (Directory dir = newIndex()) {
+            String sequential = run(dir, "-terms", "-format", "jsonl", "-numThreads", "1");
+            String parallel = run(dir, "-terms", "-format", "jsonl", "-numThreads", "4");
+            assertEquals(sequential, parallel);
+
+            String[] lines = parallel.split(System.lineSeparator());
+            assertEquals(2, lines.length);
+            assertTrue(lines[0].startsWith("{\"field\":\"body\","));
+            assertTrue(lines[1], lines[1].startsWith("{\"field\":\"tag\",\"maxDoc\":3,\"sumDocFreq\":3"));
+            assertTrue(lines[1], lines[1].contains(",\"topDf\":[{\"term\":\"x\",\"df\":2},{\"term\":\"y\",\"df\":1}]"));
+        }
+    }
+
+    @Test
+    public void keepsRankingThroughCompaction() throws IOException {
+        try (Directory dir = new ByteBuffersDirectory()) {
+            // every term beats the ones before it by ttf, so the heap takes them all and is compacted
+            StringBuilder text = new StringBuilder();
+            for (int i=0; i<1200; i++) {
+                for (int j=0; j<=i; j++) {
+                    text.append(String.format("t%04d ", i));
+                }
+            }
+            // terms tied with the best one, which come after it
+            for (int j=0; j<1200; j++) {
+                text.append("t1200 t1201 ");
+            }
+            try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+                Document doc = new Document();
+                doc.add(new TextField("body", text.toString(), Field.Store.NO));
+                writer.addDocument(doc);
+            }
+
+            String json = run(dir, "-field", "body", "-terms", "-top", "2", "-format", "jsonl");
+            // ties go to the first term in term order
+            assertTrue(json, json.contains(",\"topDf\":[{\"term\":\"t0000\",\"df\":1},{\"term\":\"t0001\",\"df\":1}]"));
+            assertTrue(json, json.contains(
+                    ",\"topTtf\":[{\"term\":\"t1199\",\"ttf\":1200},{\"term\":\"t1200\",\"ttf\":1200}]"));
+            assertTrue(json, json.contains(",\"numTerms\":1202,"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownFormat() {
+        StatsField.parse(new String[] {"-format", "csv"}, false);
+    }
+}
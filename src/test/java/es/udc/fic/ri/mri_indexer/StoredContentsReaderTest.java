@@ -0,0 +1,165 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StoredContentsReaderTest {
+
+    private static final String TEXT = "uno dos tres cuatro cinco seis siete ocho nueve diez";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String readAll(Reader in, int bufferSize) throws IOException {
+        StringBuilder text = new StringBuilder();
+        char[] buffer = new char[bufferSize];
+        int n;
+        while ((n = in.read(buffer, 0, buffer.length)) != -1) {
+            text.append(buffer, 0, n);
+        }
+        return text.toString();
+    }
+
+    private static String inflate(byte[] bytes) throws IOException {
+        return readAll(new InputStreamReader(new InflaterInputStream(new ByteArrayInputStream(bytes)),
+                StandardCharsets.UTF_8), 16);
+    }
+
+    @Test
+    public void copiesTextRead() throws IOException {
+        StoredContentsReader copy = new StoredContentsReader(new StringReader(TEXT), -1, false);
+        assertEquals(TEXT, readAll(copy, 7));
+        assertEquals(TEXT, copy.getText());
+        assertNull(copy.getBytes());
+        assertEquals(2L * TEXT.length(), copy.ramBytesUsed());
+    }
+
+    @Test
+    public void capsCopy() throws IOException {
+        StoredContentsReader copy = new StoredContentsReader(new StringReader(TEXT), 10, false);
+        // the whole text is still read through it
+        assertEquals('u', copy.read());
+        assertEquals(TEXT.substring(1), readAll(copy, 3));
+        assertEquals(TEXT.substring(0, 10), copy.getText());
+    }
+
+    @Test
+    public void readsRestOnClose() throws IOException {
+        StoredContentsReader copy = new StoredContentsReader(new StringReader(TEXT), -1, false);
+        char[] buffer = new char[4];
+        assertEquals(4, copy.read(buffer, 0, 4));
+        assertEquals(3, copy.skip(3));
+        copy.close();
+        assertEquals(TEXT, copy.getText());
+    }
+
+    @Test
+    public void deflatesCopy() throws IOException {
+        String text = TEXT + " año ñandú";
+        StoredContentsReader copy = new StoredContentsReader(new StringReader(text), -1, true);
+        readAll(copy, 5);
+        assertNull(copy.getText());
+        assertEquals(text, inflate(copy.getBytes()));
+
+        StoredContentsReader capped = new StoredContentsReader(new StringReader(text), 3, true);
+        capped.close();
+        assertEquals("uno", inflate(capped.getBytes()));
+    }
+
+    private Document fill(DocumentTemplate template, Reader in, StoredContentsReader copy) throws IOException {
+        Path file = folder.newFile().toPath();
+        Document doc = template.fill(file, Files.readAttributes(file, BasicFileAttributes.class));
+        template.setContents(copy == null ? in : copy);
+        if (copy != null) {
+            template.setStoredContents(copy);
+        }
+        return doc;
+    }
+
+    @Test
+    public void storesCopyOfContentsIndexed() throws IOException {
+        try (Directory dir = new ByteBuffersDirectory()) {
+            try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+                // the copies are only read by the writer, as it inverts the contents
+                DocumentTemplate template = new DocumentTemplate();
+                StoredContentsReader capped = new StoredContentsReader(new StringReader(TEXT), 7, false);
+                writer.addDocument(fill(template, null, capped));
+                StoredContentsReader compressed = new StoredContentsReader(new StringReader(TEXT), -1, true);
+                writer.addDocument(fill(template, null, compressed));
+            }
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                assertEquals("uno dos", reader.document(0).get("contents"));
+                BytesRef bytes = reader.document(1).getBinaryValue("contents");
+                assertEquals(TEXT, inflate(BytesRef.deepCopyOf(bytes).bytes));
+                assertEquals(2, new IndexSearcher(reader).count(new TermQuery(new Term("contents", "diez"))));
+            }
+        }
+    }
+
+    @Test
+    public void keepsWriterOpenWhenReadFails() throws IOException {
+        Reader failing = new Reader() {
+            private boolean read = false;
+
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                if (read) {
+                    throw new IOException("disk gone");
+                }
+                read = true;
+                cbuf[off] = 'a';
+                return 1;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        try (Directory dir = new ByteBuffersDirectory()) {
+            try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+                DocumentTemplate template = new DocumentTemplate();
+                try {
+                    writer.addDocument(fill(template, null, new StoredContentsReader(failing, -1, false)));
+                    fail("Indexed a document which could not be read");
+                } catch (IOException e) {
+                    assertEquals("disk gone", e.getMessage());
+                }
+                assertTrue(writer.isOpen());
+                assertNull(writer.getTragicException());
+                writer.addDocument(fill(template, new StringReader(TEXT), null));
+            }
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                assertEquals(1, reader.numDocs());
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TermEmbeddingsTest {
+
+    private static final String FIELD = "contents";
+    private static final long SEED = 5;
+
+    private static Directory dir;
+    private static DirectoryReader reader;
+    private static TermNorms norms;
+    private static TermMatrix vectors;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void createIndex() throws IOException {
+        dir = new ByteBuffersDirectory();
+        writeDocuments(dir);
+        reader = DirectoryReader.open(dir);
+        norms = TermNorms.open(reader, FIELD, "tf");
+        vectors = SimilarTerms.getTermVectors(reader, FIELD, "tf");
+    }
+
+    /* Random terms, a few of them in many documents so their vectors share some */
+    private static void writeDocuments(Directory directory) throws IOException {
+        Random random = new Random(9);
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+            for (int i=0; i<300; i++) {
+                StringBuilder text = new StringBuilder();
+                int numTokens = 1 + random.nextInt(15);
+                for (int j=0; j<numTokens; j++) {
+                    text.append("term").append(random.nextInt(random.nextBoolean() ? 10 : 100)).append(' ');
+                }
+                Document doc = new Document();
+                doc.add(new TextField(FIELD, text.toString(), Field.Store.NO));
+                writer.addDocument(doc);
+            }
+        }
+    }
+
+    @AfterClass
+    public static void closeIndex() throws IOException {
+        reader.close();
+        dir.close();
+    }
+
+    /* Mean error of the projected cosines of every pair of terms against their exact cosines */
+    private static double getMeanError(TermEmbeddings embeddings) {
+        double error = 0;
+        int pairs = 0;
+        for (int ord1=0; ord1<embeddings.size(); ord1++) {
+            float[] vector = embeddings.getVector(ord1);
+            for (int ord2=ord1+1; ord2<embeddings.size(); ord2++) {
+                error += Math.abs(embeddings.getSimilarity(vector, ord2) - vectors.getCosineSimilarity(ord1, ord2));
+                pairs++;
+            }
+        }
+        return error / pairs;
+    }
+
+    @Test
+    public void projectsUnitVectorsOfEachTerm() throws IOException {
+        TermEmbeddings embeddings = TermEmbeddings.open(reader, norms, FIELD, "tf", 32, SEED);
+        assertEquals(norms.size(), embeddings.size());
+        assertEquals(vectors.size(), embeddings.size());
+        assertEquals(32, embeddings.getDims());
+        for (int ord=0; ord<embeddings.size(); ord++) {
+            float[] vector = embeddings.getVector(ord);
+            assertEquals(1, embeddings.getSimilarity(vector, ord), 1e-5);
+        }
+    }
+
+    @Test
+    public void repeatsProjectionWithSameSeed() throws IOException {
+        TermEmbeddings embeddings = TermEmbeddings.open(reader, norms, FIELD, "tf", 32, SEED);
+        TermEmbeddings same = TermEmbeddings.open(reader, norms, FIELD, "tf", 32, SEED);
+        TermEmbeddings other = TermEmbeddings.open(reader, norms, FIELD, "tf", 32, SEED + 1);
+        boolean differs = false;
+        for (int ord=0; ord<embeddings.size(); ord++) {
+            assertArrayEquals(embeddings.getVector(ord), same.getVector(ord), 0f);
+            differs |= !Arrays.equals(embeddings.getVector(ord), other.getVector(ord));
+        }
+        assertTrue(differs);
+    }
+
+    @Test
+    public void approachesExactCosineWithMoreDimensions() throws IOException {
+        double fewDims = getMeanError(TermEmbeddings.open(reader, norms, FIELD, "tf", 16, SEED));
+        double manyDims = getMeanError(TermEmbeddings.open(reader, norms, FIELD, "tf", 1024, SEED));
+        assertTrue(fewDims + " " + manyDims, manyDims < fewDims / 2);
+        assertTrue(Double.toString(manyDims), manyDims < 0.05);
+    }
+
+    @Test
+    public void ranksByProjectedCosine() throws IOException {
+        TermEmbeddings embeddings = TermEmbeddings.open(reader, norms, FIELD, "tf", 1024, SEED);
+        List<TermSimilarity> ranking = SimilarTerms.getSimilarTerms(norms, embeddings, null, 0, "term3", 10);
+        assertEquals(10, ranking.size());
+        int queryOrd = vectors.getOrd("term3");
+        float[] query = embeddings.getVector(queryOrd);
+        for (int i=0; i<ranking.size(); i++) {
+            TermSimilarity term = ranking.get(i);
+            assertFalse(term.getName().equals("term3"));
+            int ord = vectors.getOrd(term.getName());
+            assertEquals(embeddings.getSimilarity(query, ord), term.getSimilarity(), 0);
+            assertEquals(vectors.getCosineSimilarity(queryOrd, ord), term.getSimilarity(), 0.1);
+            if (i > 0) {
+                assertTrue(ranking.get(i - 1).getSimilarity() >= term.getSimilarity());
+            }
+        }
+        // the best term by the exact cosine is still the first one
+        assertEquals(SimilarTerms.getSimilarTerms(vectors, "term3", 1).get(0).getName(), ranking.get(0).getName());
+        assertNull(SimilarTerms.getSimilarTerms(norms, embeddings, null, 0, "missing", 10));
+    }
+
+    @Test
+    public void clustersProjectedVectorsAsMatrix() throws IOException {
+        TermEmbeddings embeddings = TermEmbeddings.open(reader, norms, FIELD, "tf", 64, SEED);
+        List<TermSimilarity> ranking = SimilarTerms.getSimilarTerms(norms, embeddings, null, 0, "term3", 8);
+        TermMatrix projected = embeddings.getVectors(norms, ranking);
+        assertEquals(ranking.size(), projected.size());
+        int query = projected.getOrd(ranking.get(0).getName());
+        float[] vector = embeddings.getVector(vectors.getOrd(ranking.get(0).getName()));
+        for (int ord=0; ord<projected.size(); ord++) {
+            assertEquals(embeddings.getSimilarity(vector, vectors.getOrd(projected.getTerm(ord))),
+                    projected.getCosineSimilarity(query, ord), 1e-5);
+        }
+    }
+
+    @Test
+    public void loadsSameVectorsFromSideFile() throws IOException {
+        Path path = folder.newFolder().toPath();
+        try (Directory fsDir = FSDirectory.open(path)) {
+            writeDocuments(fsDir);
+            try (DirectoryReader fsReader = DirectoryReader.open(fsDir)) {
+                TermNorms fsNorms = TermNorms.open(fsReader, FIELD, "tf");
+                TermEmbeddings built = TermEmbeddings.open(fsReader, fsNorms, FIELD, "tf", 32, SEED);
+                TermEmbeddings loaded = TermEmbeddings.open(fsReader, fsNorms, FIELD, "tf", 32, SEED);
+                // other dimensions or seeds get their own file
+                TermEmbeddings.open(fsReader, fsNorms, FIELD, "tf", 16, SEED);
+                TermEmbeddings.open(fsReader, fsNorms, FIELD, "tf", 32, SEED + 1);
+                try (Stream<Path> files = Files.list(path)) {
+                    assertEquals(3, files.filter(file -> file.getFileName().toString().startsWith("termembeddings-"))
+                            .count());
+                }
+
+                TermEmbeddings inMemory = TermEmbeddings.open(reader, norms, FIELD, "tf", 32, SEED);
+                for (int ord=0; ord<inMemory.size(); ord++) {
+                    assertArrayEquals(inMemory.getVector(ord), built.getVector(ord), 0f);
+                    assertArrayEquals(inMemory.getVector(ord), loaded.getVector(ord), 0f);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TermLshTest {
+
+    private static final String FIELD = "contents";
+    private static final int DIMS = 32;
+    private static final long SEED = 17;
+
+    private static Directory dir;
+    private static DirectoryReader reader;
+    private static TermNorms norms;
+    private static TermEmbeddings embeddings;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void createIndex() throws IOException {
+        dir = new ByteBuffersDirectory();
+        writeDocuments(dir);
+        reader = DirectoryReader.open(dir);
+        norms = TermNorms.open(reader, FIELD, "tf");
+        embeddings = TermEmbeddings.open(reader, norms, FIELD, "tf", DIMS, SEED);
+    }
+
+    /* Random terms, two of them always in the same documents and so with the same vector */
+    private static void writeDocuments(Directory directory) throws IOException {
+        Random random = new Random(3);
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+            for (int i=0; i<300; i++) {
+                StringBuilder text = new StringBuilder();
+                int numTokens = 1 + random.nextInt(15);
+                for (int j=0; j<numTokens; j++) {
+                    text.append("term").append(random.nextInt(200)).append(' ');
+                }
+                if (i % 7 == 0) {
+                    text.append("twin1 twin2");
+                }
+                Document doc = new Document();
+                doc.add(new TextField(FIELD, text.toString(), Field.Store.NO));
+                writer.addDocument(doc);
+            }
+        }
+    }
+
+    @AfterClass
+    public static void closeIndex() throws IOException {
+        reader.close();
+        dir.close();
+    }
+
+    @Test
+    public void findsOwnBucketWithoutProbes() throws IOException {
+        TermLsh lsh = TermLsh.open(reader, norms, embeddings, FIELD, "tf", 4, 8, SEED);
+        int numTerms = embeddings.size();
+        FixedBitSet[] candidates = new FixedBitSet[numTerms];
+        for (int ord=0; ord<numTerms; ord++) {
+            candidates[ord] = lsh.getCandidates(embeddings.getVector(ord), 0);
+            assertTrue(candidates[ord].get(ord));
+            assertTrue(candidates[ord].cardinality() < numTerms);
+        }
+
+        // sharing a bucket in any table is symmetric
+        for (int a=0; a<numTerms; a++) {
+            for (int b=0; b<numTerms; b++) {
+                assertEquals(candidates[a].get(b), candidates[b].get(a));
+            }
+        }
+
+        int twin1 = norms.find(new BytesRef("twin1"));
+        int twin2 = norms.find(new BytesRef("twin2"));
+        assertTrue(candidates[twin1].get(twin2));
+        assertTrue(candidates[twin2].get(twin1));
+    }
+
+    @Test
+    public void returnsWholeBuckets() throws IOException {
+        // with a single table the buckets split the terms, and a probe adds a whole bucket
+        TermLsh lsh = TermLsh.open(reader, norms, embeddings, FIELD, "tf", 1, 6, SEED);
+        int numTerms = embeddings.size();
+        for (int ord=0; ord<numTerms; ord++) {
+            FixedBitSet bucket = lsh.getCandidates(embeddings.getVector(ord), 0);
+            FixedBitSet probed = lsh.getCandidates(embeddings.getVector(ord), 1);
+            for (int other=0; other<numTerms; other++) {
+                FixedBitSet otherBucket = lsh.getCandidates(embeddings.getVector(other), 0);
+                if (bucket.get(other)) {
+                    assertEquals(bucket, otherBucket);
+                }
+                if (probed.get(other)) {
+                    assertTrue(isSubset(otherBucket, probed));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void probesAddCandidates() throws IOException {
+        TermLsh lsh = TermLsh.open(reader, norms, embeddings, FIELD, "tf", 2, 10, SEED);
+        int numTerms = embeddings.size();
+        boolean grew = false;
+        for (int ord=0; ord<numTerms; ord++) {
+            float[] vector = embeddings.getVector(ord);
+            FixedBitSet previous = lsh.getCandidates(vector, 0);
+            for (int probes=1; probes<=12; probes++) {
+                FixedBitSet next = lsh.getCandidates(vector, probes);
+                assertTrue(isSubset(previous, next));
+                grew |= next.cardinality() > previous.cardinality();
+                previous = next;
+            }
+            // more probes than bits flip each bit once
+            assertEquals(lsh.getCandidates(vector, 10), previous);
+        }
+        assertTrue(grew);
+    }
+
+    @Test
+    public void takesEveryTermWithoutBits() throws IOException {
+        TermLsh lsh = TermLsh.open(reader, norms, embeddings, FIELD, "tf", 3, 0, SEED);
+        FixedBitSet candidates = lsh.getCandidates(embeddings.getVector(0), 2);
+        assertEquals(embeddings.size(), candidates.cardinality());
+    }
+
+    @Test
+    public void findsNothingForEmptyField() throws IOException {
+        TermNorms missingNorms = TermNorms.open(reader, "missing", "tf");
+        TermEmbeddings missing = TermEmbeddings.open(reader, missingNorms, "missing", "tf", DIMS, SEED);
+        TermLsh lsh = TermLsh.open(reader, missingNorms, missing, "missing", "tf", 2, 8, SEED);
+        assertEquals(0, lsh.getCandidates(new float[DIMS], 3).cardinality());
+    }
+
+    @Test
+    public void loadsSameBucketsFromSideFile() throws IOException {
+        Path path = folder.newFolder().toPath();
+        try (Directory fsDir = FSDirectory.open(path)) {
+            writeDocuments(fsDir);
+            try (DirectoryReader fsReader = DirectoryReader.open(fsDir)) {
+                TermNorms fsNorms = TermNorms.open(fsReader, FIELD, "tf");
+                TermEmbeddings fsEmbeddings = TermEmbeddings.open(fsReader, fsNorms, FIELD, "tf", DIMS, SEED);
+                TermLsh built = TermLsh.open(fsReader, fsNorms, fsEmbeddings, FIELD, "tf", 4, 8, SEED);
+                try (Stream<Path> files = Files.list(path)) {
+                    assertEquals(1, files.filter(file -> file.getFileName().toString().startsWith("termlsh-")).count());
+                }
+                TermLsh loaded = TermLsh.open(fsReader, fsNorms, fsEmbeddings, FIELD, "tf", 4, 8, SEED);
+                TermLsh inMemory = TermLsh.open(reader, norms, embeddings, FIELD, "tf", 4, 8, SEED);
+                for (int ord=0; ord<fsEmbeddings.size(); ord++) {
+                    float[] vector = fsEmbeddings.getVector(ord);
+                    for (int probes=0; probes<3; probes++) {
+                        FixedBitSet expected = inMemory.getCandidates(vector, probes);
+                        assertEquals(expected, built.getCandidates(vector, probes));
+                        assertEquals(expected, loaded.getCandidates(vector, probes));
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean isSubset(FixedBitSet a, FixedBitSet b) {
+        FixedBitSet union = a.clone();
+        union.or(b);
+        return union.equals(b);
+    }
+}
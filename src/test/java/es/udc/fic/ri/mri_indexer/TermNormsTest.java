@@ -0,0 +1,157 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TermNormsTest {
+
+    /* Fields which used to share a file: "." and "_" were both written as "_", and case is lost in some systems */
+    private static final String[] FIELDS = {"a.b", "a_b", "Title", "title"};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void addDocument(IndexWriter writer, String text) throws IOException {
+        Document doc = new Document();
+        for (String field : FIELDS) {
+            doc.add(new TextField(field, field + " " + text, Field.Store.NO));
+        }
+        writer.addDocument(doc);
+    }
+
+    private static IndexWriter newWriter(Directory dir) throws IOException {
+        return new IndexWriter(dir, new IndexWriterConfig(new WhitespaceAnalyzer()));
+    }
+
+    @Test
+    public void givesEachFieldItsOwnName() {
+        Set<String> names = new HashSet<>();
+        for (String field : FIELDS) {
+            names.add(IndexSideFile.getName("termnorms", field, "tf").toLowerCase(Locale.ROOT));
+        }
+        names.add(IndexSideFile.getName("termnorms", "a_2e_b", "tf").toLowerCase(Locale.ROOT));
+        assertEquals(FIELDS.length + 1, names.size());
+        assertEquals("termnorms-_54_itle-tf", IndexSideFile.getName("termnorms", "Title", "tf"));
+        assertEquals("termnorms-contents-tf", IndexSideFile.getName("termnorms", "contents", "tf"));
+    }
+
+    @Test
+    public void keepsCollidingFieldsApart() throws IOException {
+        Path path = folder.newFolder().toPath();
+        try (Directory dir = FSDirectory.open(path)) {
+            try (IndexWriter writer = newWriter(dir)) {
+                addDocument(writer, "x x y");
+                addDocument(writer, "y");
+            }
+
+            // built and written by the first reader, loaded from the files by the second one
+            for (int run=0; run<2; run++) {
+                try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                    for (String field : FIELDS) {
+                        TermNorms norms = TermNorms.open(reader, field, "tf");
+                        assertEquals(field, 3, norms.size());
+                        int ord = norms.find(new BytesRef(field));
+                        assertTrue(field, ord >= 0);
+                        assertEquals(field, norms.getTerm(ord));
+                        assertEquals(2, norms.getDf(ord));
+                        assertEquals(-1, norms.find(new BytesRef(otherField(field))));
+                    }
+                }
+            }
+
+            try (Stream<Path> files = Files.list(path)) {
+                Set<String> names = files.map(file -> file.getFileName().toString().toLowerCase(Locale.ROOT))
+                        .filter(name -> name.startsWith("termnorms-"))
+                        .collect(Collectors.toSet());
+                assertEquals(FIELDS.length, names.size());
+            }
+        }
+    }
+
+    private static String otherField(String field) {
+        for (String other : FIELDS) {
+            if (!other.equals(field)) {
+                return other;
+            }
+        }
+        throw new AssertionError();
+    }
+
+    @Test
+    public void loadsSideFileUntilIndexChanges() throws IOException {
+        Path path = folder.newFolder().toPath();
+        try (Directory dir = FSDirectory.open(path)) {
+            try (IndexWriter writer = newWriter(dir)) {
+                addDocument(writer, "x x x y");
+                addDocument(writer, "x z");
+            }
+
+            Path file = path.resolve(TermNorms.getFileName("title", "tf"));
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                TermNorms norms = TermNorms.open(reader, "title", "tf");
+                assertNorms(norms, reader.getIndexCommit().getGeneration());
+            }
+            assertTrue(Files.isRegularFile(file));
+
+            // the next run maps the file instead of writing it again
+            FileTime written = FileTime.fromMillis(0);
+            Files.setLastModifiedTime(file, written);
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                assertNorms(TermNorms.open(reader, "title", "tf"), reader.getIndexCommit().getGeneration());
+            }
+            assertEquals(written, Files.getLastModifiedTime(file));
+
+            // a new commit makes the file out of date, so it is built again
+            try (IndexWriter writer = newWriter(dir)) {
+                addDocument(writer, "w");
+            }
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                TermNorms norms = TermNorms.open(reader, "title", "tf");
+                assertEquals(reader.getIndexCommit().getGeneration(), norms.getGeneration());
+                assertEquals(3, norms.getNumDocs());
+                assertEquals(3, norms.getDf(norms.find(new BytesRef("title"))));
+                assertTrue(norms.find(new BytesRef("w")) >= 0);
+            }
+            assertNotEquals(written, Files.getLastModifiedTime(file));
+        }
+    }
+
+    /* Norms of the first index of loadsSideFileUntilIndexChanges with tf weights: the square root of sum tf^2 */
+    private static void assertNorms(TermNorms norms, long generation) {
+        assertEquals(generation, norms.getGeneration());
+        assertEquals(2, norms.getNumDocs());
+        assertEquals(4, norms.size());
+        assertEquals("title", norms.getTerm(0));
+        assertEquals("x", norms.getTerm(1));
+        assertEquals(Math.sqrt(2), norms.getNorm(norms.find(new BytesRef("title"))), 1e-9);
+        assertEquals(Math.sqrt(9 + 1), norms.getNorm(norms.find(new BytesRef("x"))), 1e-9);
+        assertEquals(1, norms.getDf(norms.find(new BytesRef("y"))));
+        assertEquals(1, norms.getNorm(norms.find(new BytesRef("z"))), 1e-9);
+        assertEquals(-1, norms.find(new BytesRef("missing")));
+    }
+}
@@ -0,0 +1,108 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TopTermsTest {
+
+    @Test
+    public void sortsBestFirst() {
+        TopTerms top = new TopTerms(3);
+        top.insert(0, 0.5);
+        top.insert(1, 0.9);
+        top.insert(2, 0.1);
+        top.insert(3, 0.7);
+        top.insert(4, 0.3);
+
+        assertEquals(3, top.size());
+        assertArrayEquals(new int[] {1, 3, 0}, top.sort());
+        assertEquals(0.9, top.getScore(0), 0);
+        assertEquals(0.7, top.getScore(1), 0);
+        assertEquals(0.5, top.getScore(2), 0);
+        assertEquals(0, top.size());
+    }
+
+    @Test
+    public void breaksTiesByLowerOrdinal() {
+        TopTerms top = new TopTerms(3);
+        top.insert(7, 1.0);
+        top.insert(2, 1.0);
+        top.insert(5, 1.0);
+        top.insert(9, 1.0);
+        top.insert(1, 1.0);
+
+        assertArrayEquals(new int[] {1, 2, 5}, top.sort());
+    }
+
+    @Test
+    public void rejectsWorseTermsOnceFull() {
+        TopTerms top = new TopTerms(2);
+        assertTrue(top.insert(4, 0.5));
+        assertTrue(top.insert(6, 0.5));
+        assertFalse(top.insert(1, 0.1));
+        // same score as the worst term kept, but a higher ordinal
+        assertFalse(top.insert(8, 0.5));
+        // same score as the worst term kept, with a lower ordinal
+        assertTrue(top.insert(5, 0.5));
+
+        assertArrayEquals(new int[] {4, 5}, top.sort());
+    }
+
+    @Test
+    public void keepsNothingWithZeroSize() {
+        TopTerms top = new TopTerms(0);
+        assertFalse(top.insert(0, 1.0));
+        assertEquals(0, top.size());
+        assertEquals(0, top.sort().length);
+    }
+
+    @Test
+    public void matchesStableSortOfScores() {
+        Random random = new Random(42);
+        int n = 1000;
+        double[] scores = new double[n];
+        for (int i=0; i<n; i++) {
+            // few distinct scores, so there are many ties
+            scores[i] = random.nextInt(20) / 4.0;
+        }
+
+        for (int k : new int[] {1, 10, 100, n, n + 5}) {
+            TopTerms top = new TopTerms(k);
+            for (int i=0; i<n; i++) {
+                top.insert(i, scores[i]);
+            }
+            int[] expected = IntStream.range(0, n).boxed()
+                    .sorted(Comparator.comparingDouble((Integer i) -> scores[i]).reversed())
+                    .limit(k)
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+
+            int[] sorted = top.sort();
+            assertArrayEquals("k=" + k, expected, sorted);
+            for (int i=0; i<sorted.length; i++) {
+                assertEquals(scores[sorted[i]], top.getScore(i), 0);
+            }
+        }
+    }
+
+    @Test
+    public void ordersNegativeAndInfiniteScores() {
+        TopTerms top = new TopTerms(4);
+        top.insert(0, Double.NEGATIVE_INFINITY);
+        top.insert(1, -2.0);
+        top.insert(2, Double.POSITIVE_INFINITY);
+        top.insert(3, -0.5);
+        top.insert(4, 0.0);
+
+        assertEquals("[2, 4, 3, 1]", Arrays.toString(top.sort()));
+    }
+}
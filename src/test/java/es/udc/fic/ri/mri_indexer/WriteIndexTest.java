@@ -0,0 +1,160 @@
+package es.udc.fic.ri.mri_indexer;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.ByteBuffersDataOutput;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class WriteIndexTest {
+
+    /* Terms indexed as they are, with their frequencies, so every byte of them reaches the output */
+    private static final FieldType KEYWORD = new FieldType(StringField.TYPE_NOT_STORED);
+    static {
+        KEYWORD.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+        KEYWORD.freeze();
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void escapesJsonl() throws IOException {
+        String field = "we\"ird\\name";
+        try (Directory dir = new ByteBuffersDirectory()) {
+            try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+                writer.addDocument(keywords(field, "a\"b", "a\"b", "back\\slash", "tab\there", "ctl\u0001"));
+                writer.addDocument(keywords(field, "a\"b", "café", "日本", "line\nbreak"));
+            }
+            List<String> lines;
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                lines = Files.readAllLines(write(reader, "jsonl", 1), StandardCharsets.UTF_8);
+            }
+
+            String prefix = "{\"field\":\"we\\\"ird\\\\name\",\"term\":\"";
+            assertEquals(Arrays.asList(
+                    prefix + "a\\\"b\",\"df\":2,\"ttf\":3}",
+                    prefix + "back\\\\slash\",\"df\":1,\"ttf\":1}",
+                    prefix + "café\",\"df\":1,\"ttf\":1}",
+                    prefix + "ctl\\u0001\",\"df\":1,\"ttf\":1}",
+                    prefix + "line\\u000abreak\",\"df\":1,\"ttf\":1}",
+                    prefix + "tab\\u0009here\",\"df\":1,\"ttf\":1}",
+                    prefix + "日本\",\"df\":1,\"ttf\":1}"), lines);
+        }
+    }
+
+    @Test
+    public void writesBinaryWithLuceneVInts() throws IOException {
+        try (Directory dir = new ByteBuffersDirectory()) {
+            // a long term and a df and ttf above 127, so their lengths and counts take several bytes
+            char[] longTerm = new char[300];
+            Arrays.fill(longTerm, 'z');
+            try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+                for (int i=0; i<200; i++) {
+                    Document doc = new Document();
+                    doc.add(new TextField("body", "x x y" + i, Field.Store.NO));
+                    if (i % 50 == 0) {
+                        doc.add(new TextField("title", new String(longTerm) + " título", Field.Store.NO));
+                    }
+                    writer.addDocument(doc);
+                }
+                writer.commit();
+                writer.addDocument(new Document());
+                Document empty = new Document();
+                empty.add(new TextField("empty", "", Field.Store.NO));
+                writer.addDocument(empty);
+            }
+
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                byte[] expected = encodeBinary(reader);
+                assertArrayEquals(expected, Files.readAllBytes(write(reader, "binary", 1)));
+                assertArrayEquals(expected, Files.readAllBytes(write(reader, "binary", 3)));
+            }
+        }
+    }
+
+    @Test
+    public void encodesVIntBoundaries() throws IOException {
+        try (Directory dir = new ByteBuffersDirectory()) {
+            try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+                for (int i=0; i<128; i++) {
+                    writer.addDocument(keywords("f", "a"));
+                }
+            }
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                byte[] bytes = Files.readAllBytes(write(reader, "binary", 1));
+                // name "f", term "a" (length 1 + 1) with df = ttf = 128 as 0x80 0x01, then the end of the field
+                assertArrayEquals(new byte[] {1, 'f', 2, 'a', (byte) 0x80, 1, (byte) 0x80, 1, 0}, bytes);
+            }
+        }
+    }
+
+    private static Document keywords(String field, String... terms) {
+        Document doc = new Document();
+        for (String term : terms) {
+            doc.add(new Field(field, term, KEYWORD));
+        }
+        return doc;
+    }
+
+    private Path write(DirectoryReader reader, String format, int numThreads) throws IOException {
+        Path output = folder.newFolder().toPath().resolve("terms");
+        WriteIndex query = WriteIndex.parse(new String[] {"-outputfile", output.toString(), "-format", format,
+                "-numThreads", Integer.toString(numThreads)}, false);
+        PrintStream quiet = new PrintStream(new ByteArrayOutputStream());
+        query.run(reader, quiet, quiet);
+        return output;
+    }
+
+    /* The binary format as documented, written with the vInts of Lucene from the merged terms */
+    private static byte[] encodeBinary(DirectoryReader reader) throws IOException {
+        ByteBuffersDataOutput out = new ByteBuffersDataOutput();
+        for (FieldInfo fieldInfo : FieldInfos.getMergedFieldInfos(reader)) {
+            byte[] name = fieldInfo.name.getBytes(StandardCharsets.UTF_8);
+            out.writeVInt(name.length);
+            out.writeBytes(name, name.length);
+            Terms terms = MultiTerms.getTerms(reader, fieldInfo.name);
+            if (terms != null) {
+                TermsEnum termsEnum = terms.iterator();
+                BytesRef term;
+                while ((term = termsEnum.next()) != null) {
+                    out.writeVInt(term.length + 1);
+                    out.writeBytes(term.bytes, term.offset, term.length);
+                    out.writeVInt(termsEnum.docFreq());
+                    out.writeVLong(termsEnum.totalTermFreq());
+                }
+            }
+            out.writeVInt(0);
+        }
+        return out.toArrayCopy();
+    }
+}